@@ -0,0 +1,63 @@
+package ru.mit.spbau.antonpp.ftp.bench;
+
+import lombok.Getter;
+import ru.mit.spbau.antonpp.ftp.client.FtpClient;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+import ru.mit.spbau.antonpp.ftp.server.exceptions.FtpServerException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * In-process server on loopback that serves a temporary directory. The directory is removed when the server is
+ * closed.
+ *
+ * @author antonpp
+ * @since 03/02/2017
+ */
+class BenchmarkServer implements Closeable {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 31500;
+
+    @Getter
+    private final Path root;
+    private final FtpServer server;
+
+    BenchmarkServer(boolean nonBlocking) throws IOException, FtpServerException {
+        root = Files.createTempDirectory("ftp-bench");
+        server = new FtpServer(PORT, nonBlocking);
+        server.start();
+    }
+
+    FtpClient connect() throws FtpClientException {
+        return new FtpClient(HOST, PORT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.stop();
+        } finally {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.mit.spbau.antonpp.ftp.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink that drops everything written into it, so a download costs only the transfer itself.
+ *
+ * @author antonpp
+ * @since 03/02/2017
+ */
+class DiscardChannel implements WritableByteChannel {
+
+    private boolean open = true;
+
+    @Override
+    public int write(ByteBuffer src) {
+        final int written = src.remaining();
+        src.position(src.limit());
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
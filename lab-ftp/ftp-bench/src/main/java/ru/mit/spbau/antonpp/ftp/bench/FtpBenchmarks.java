@@ -0,0 +1,49 @@
+package ru.mit.spbau.antonpp.ftp.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once for every number of concurrent clients and saves results of each run as JSON, so that
+ * runs can be compared with each other.
+ * <p>
+ * Arguments are regular JMH options. If the number of threads is given with -t, only that run is made. Results are
+ * written to the directory from the "ftp.bench.results" property.
+ * <p>
+ * Note that a blocking server holds a handler thread per connection, so it cannot serve more clients than it has
+ * handler threads.
+ *
+ * @author antonpp
+ * @since 03/02/2017
+ */
+public class FtpBenchmarks {
+
+    private static final int[] CLIENTS = {1, 2, 4};
+    private static final String RESULTS_PROPERTY = "ftp.bench.results";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        final File resultDir = new File(System.getProperty(RESULTS_PROPERTY, "jmh"));
+        if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+            throw new RunnerException("Could not create " + resultDir);
+        }
+        final int[] clients = options.getThreads().hasValue() ? new int[]{options.getThreads().get()} : CLIENTS;
+        for (final int threads : clients) {
+            final OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(options);
+            if (options.getIncludes().isEmpty()) {
+                builder.include(FtpBenchmarks.class.getPackage().getName() + ".*");
+            }
+            builder.threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "clients-" + threads + ".json").getPath());
+            new Runner(builder.build()).run();
+        }
+    }
+}
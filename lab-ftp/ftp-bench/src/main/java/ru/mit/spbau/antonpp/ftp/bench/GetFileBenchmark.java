@@ -0,0 +1,85 @@
+package ru.mit.spbau.antonpp.ftp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.mit.spbau.antonpp.ftp.client.FtpClient;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.exceptions.FtpServerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads of a single file of the given size. Every benchmark thread has its own connection, so the number of
+ * threads is the number of concurrent clients.
+ *
+ * @author antonpp
+ * @since 03/02/2017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetFileBenchmark {
+
+    private static final String FILE_NAME = "file";
+    private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the downloaded file in bytes: 1 KB, 1 MB, 100 MB and 1 GB.
+     */
+    @Param({"1024", "1048576", "104857600", "1073741824"})
+    public long size;
+
+    @Param({"false", "true"})
+    public boolean nonBlocking;
+
+    private BenchmarkServer server;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, FtpServerException {
+        server = new BenchmarkServer(nonBlocking);
+        final Path file = server.getRoot().resolve(FILE_NAME);
+        final byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+        new Random(size).nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long left = size; left > 0; left -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(left, chunk.length));
+            }
+        }
+        path = file.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public long getFile(Client client) throws FtpClientException {
+        return client.ftp.getFile(path, client.sink);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private final DiscardChannel sink = new DiscardChannel();
+        private FtpClient ftp;
+
+        @Setup(Level.Trial)
+        public void connect(GetFileBenchmark benchmark) throws FtpClientException {
+            ftp = benchmark.server.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            ftp.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ru.mit.spbau.antonpp.ftp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mit.spbau.antonpp.ftp.client.FtpClient;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.exceptions.FtpServerException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listings of a directory with the given number of files, both as a whole response and as a stream of frames.
+ *
+ * @author antonpp
+ * @since 03/02/2017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListFilesBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public boolean nonBlocking;
+
+    private BenchmarkServer server;
+    private String dir;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, FtpServerException {
+        server = new BenchmarkServer(nonBlocking);
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(server.getRoot().resolve("file-" + i));
+        }
+        dir = server.getRoot().toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public Map<String, Boolean> listFiles(Client client) throws FtpClientException {
+        return client.ftp.listFiles(dir);
+    }
+
+    @Benchmark
+    public void listFilesStreamed(Client client, Blackhole blackhole) throws FtpClientException {
+        final Iterator<?> records = client.ftp.listFilesStreamed(dir);
+        while (records.hasNext()) {
+            blackhole.consume(records.next());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private FtpClient ftp;
+
+        @Setup(Level.Trial)
+        public void connect(ListFilesBenchmark benchmark) throws FtpClientException {
+            ftp = benchmark.server.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            ftp.close();
+        }
+    }
+}
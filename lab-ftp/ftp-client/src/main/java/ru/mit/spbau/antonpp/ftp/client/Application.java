@@ -2,13 +2,17 @@ package ru.mit.spbau.antonpp.ftp.client;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.google.common.io.BaseEncoding;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.compression.Codecs;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -20,8 +24,14 @@ import java.util.Scanner;
 @Slf4j
 public class Application {
 
+    private static final double MEGABYTE = 1024 * 1024;
+
     private final JCommander jc;
     private FtpClient ftpClient;
+    /**
+     * Wraps {@link #ftpClient} if downloaded files are cached.
+     */
+    private CachingFtpClient cachingClient;
 
     @Parameter(names = {"--host"})
     private String host = "localhost";
@@ -29,6 +39,18 @@ public class Application {
     @Parameter(names = {"-p", "--port"})
     private int port = 12345;
 
+    @Parameter(names = {"--connections"}, description = "Number of concurrent downloads of mirror command")
+    private int connections = 4;
+
+    @Parameter(names = {"--compress"}, description = "Ask the server to compress downloaded files")
+    private boolean compress;
+
+    @Parameter(names = {"--cache"}, description = "Directory where downloaded files are cached")
+    private String cacheDir;
+
+    @Parameter(names = {"--cache-size"}, description = "Maximum size of cached files in megabytes")
+    private long cacheMegabytes = 1024;
+
     @Parameter(names = {"-h", "--help"}, description = "Print this help message and exit", help = true)
     private boolean help;
 
@@ -56,7 +78,17 @@ public class Application {
         System.out.printf(fmt, "help", "Print list of available commands");
         System.out.printf(fmt, "exit", "Exit the application");
         System.out.printf(fmt, "get source destination", "Download specified file");
+        System.out.printf(fmt, "put source destination", "Upload local file to the server");
+        System.out.printf(fmt, "mget destination source...", "Download several files into the destination dir");
+        System.out.printf(fmt, "resume source destination", "Continue downloading of partially saved file");
+        System.out.printf(fmt, "sync source destination", "Update local copy downloading only changed blocks");
+        System.out.printf(fmt, "mirror remoteDir localDir", "Download the directory tree, skipping unchanged files");
         System.out.printf(fmt, "list dir", "List contents of the dir");
+        System.out.printf(fmt, "ls dir", "List contents of the dir with sizes and modification times");
+        System.out.printf(fmt, "find dir pattern", "Find entries of the directory tree matching the glob pattern");
+        System.out.printf(fmt, "du path", "Print total size and number of files of the directory tree");
+        System.out.printf(fmt, "stat path", "Print size, modification time and MD5 of the file");
+        System.out.printf(fmt, "stats", "Print metrics of the server");
         System.out.printf(fmt, "connect", "Connect to the server " +
                 "(host and port were specified in command line arguments of the application)");
         System.out.printf(fmt, "disconnect", "Disconnect from the server");
@@ -99,9 +131,39 @@ public class Application {
                     case "get":
                         handleGet(split);
                         break;
+                    case "put":
+                        handlePut(split);
+                        break;
+                    case "resume":
+                        handleResume(split);
+                        break;
+                    case "mirror":
+                        handleMirror(split);
+                        break;
+                    case "sync":
+                        handleSync(split);
+                        break;
+                    case "mget":
+                        handleMget(split);
+                        break;
                     case "list":
                         handleList(split);
                         break;
+                    case "ls":
+                        handleListStreamed(split);
+                        break;
+                    case "find":
+                        handleFind(split);
+                        break;
+                    case "du":
+                        handleDiskUsage(split);
+                        break;
+                    case "stat":
+                        handleStat(split);
+                        break;
+                    case "stats":
+                        handleStats();
+                        break;
                     case "help":
                     default:
                         printCommands();
@@ -123,6 +185,7 @@ public class Application {
             printToLogAndSout("Failed to correctly close client", e);
         } finally {
             ftpClient = null;
+            cachingClient = null;
         }
     }
 
@@ -133,10 +196,18 @@ public class Application {
         }
         try {
             ftpClient = new FtpClient(host, port);
+            if (compress) {
+                ftpClient.setCompression(Codecs.DEFLATE);
+            }
+            if (cacheDir != null) {
+                cachingClient = new CachingFtpClient(ftpClient, Paths.get(cacheDir), cacheMegabytes * 1024 * 1024);
+            }
             System.out.println("Connected to the server.");
         } catch (FtpClientException e) {
             printToLogAndSout("Failed to start client " +
                     "(consider checking if FTP server is running on specified host:port)", e);
+        } catch (IOException e) {
+            printToLogAndSout("Failed to open cache directory " + cacheDir, e);
         }
     }
 
@@ -158,6 +229,105 @@ public class Application {
         }
     }
 
+    private void handleListStreamed(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 2) {
+            System.out.println("You must provide exactly one path as an argument");
+        } else {
+            System.out.println("Waiting for response...");
+            try {
+                val response = ftpClient.listFilesStreamed(split[1]);
+                while (response.hasNext()) {
+                    val record = response.next();
+                    System.out.printf("  %12d  %tF %<tT  %s%s%n", record.getSize(), record.getLastModified(),
+                            record.getName(), record.isDirectory() ? "/" : "");
+                }
+            } catch (FtpClientException | UncheckedIOException e) {
+                printToLogAndSout("FTP client failed to execute LIST_STREAM", e);
+            }
+        }
+    }
+
+    private void handleFind(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 3) {
+            System.out.println("You must provide a path and a pattern as arguments");
+            return;
+        }
+        try {
+            val response = ftpClient.find(split[1], split[2]);
+            while (response.hasNext()) {
+                val record = response.next();
+                System.out.printf("  %12d  %tF %<tT  %s%s%n", record.getSize(), record.getLastModified(),
+                        record.getName(), record.isDirectory() ? "/" : "");
+            }
+        } catch (FtpClientException | UncheckedIOException e) {
+            printToLogAndSout("FTP client failed to execute FIND", e);
+        }
+    }
+
+    private void handleDiskUsage(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 2) {
+            System.out.println("You must provide exactly one path as an argument");
+            return;
+        }
+        try {
+            val usage = ftpClient.diskUsage(split[1]);
+            if (usage.getSize() < 0) {
+                System.out.println("Not found");
+            } else {
+                System.out.printf("  %d bytes in %d files, %d directories%n", usage.getSize(), usage.getFiles(),
+                        usage.getDirectories());
+            }
+        } catch (FtpClientException e) {
+            printToLogAndSout("FTP client failed to execute DU", e);
+        }
+    }
+
+    private void handleStat(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 2) {
+            System.out.println("You must provide exactly one path as an argument");
+            return;
+        }
+        try {
+            val stat = ftpClient.stat(split[1]);
+            if (stat.getSize() < 0) {
+                System.out.println("Not a file");
+            } else {
+                System.out.printf("  %d  %tF %<tT  %s%n", stat.getSize(), stat.getLastModified(),
+                        BaseEncoding.base16().lowerCase().encode(stat.getDigest()));
+            }
+        } catch (FtpClientException e) {
+            printToLogAndSout("FTP client failed to execute STAT", e);
+        }
+    }
+
+    private void handleStats() {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        try {
+            ftpClient.getStats().forEach((name, value) -> System.out.printf("  %-32s %d%n", name, value));
+        } catch (FtpClientException e) {
+            printToLogAndSout("FTP client failed to execute STATS", e);
+        }
+    }
+
     private void handleGet(String[] split) {
         if (ftpClient == null) {
             System.out.println("You must connect first");
@@ -168,14 +338,147 @@ public class Application {
         } else {
             System.out.println("Waiting for response...");
             try {
-                val response = ftpClient.getFile(split[1]);
-                Files.write(Paths.get(split[2]), response);
-                System.out.println("File saved");
+                if (cachingClient != null) {
+                    val hits = cachingClient.getHits();
+                    val size = cachingClient.getFile(split[1], Paths.get(split[2]));
+                    System.out.printf("File saved (%d bytes%s)%n", size,
+                            cachingClient.getHits() > hits ? ", not modified since cached" : "");
+                } else {
+                    val size = ftpClient.getFile(split[1], Paths.get(split[2]));
+                    System.out.printf("File saved (%d bytes)%n", size);
+                }
             } catch (FtpClientException e) {
                 printToLogAndSout("FTP client failed to execute GET", e);
+            }
+        }
+    }
+
+    private void handlePut(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 3) {
+            System.out.println("You must provide path to the uploading file and where to save it on the server");
+        } else {
+            System.out.println("Uploading...");
+            try {
+                val size = ftpClient.putFile(Paths.get(split[1]), split[2]);
+                System.out.printf("File uploaded (%d bytes)%n", size);
+            } catch (FtpClientException e) {
+                printToLogAndSout("FTP client failed to execute PUT", e);
+            }
+        }
+    }
+
+    private void handleMget(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length < 3) {
+            System.out.println("You must provide where to save the result and paths to the downloading files");
+        } else {
+            System.out.println("Waiting for response...");
+            val destination = Paths.get(split[1]);
+            try {
+                val files = ftpClient.getFiles(Arrays.asList(split).subList(2, split.length));
+                while (files.hasNext()) {
+                    val file = files.next();
+                    if (!file.isFound()) {
+                        System.out.printf("  %s not found%n", file.getPath());
+                        continue;
+                    }
+                    Files.write(destination.resolve(Paths.get(file.getPath()).getFileName()), file.getContent());
+                    System.out.printf("  %s saved (%d bytes)%n", file.getPath(), file.getContent().length);
+                }
+            } catch (FtpClientException | UncheckedIOException e) {
+                printToLogAndSout("FTP client failed to execute MGET", e);
             } catch (IOException e) {
-                printToLogAndSout("Failed to save file at specified location", e);
+                printToLogAndSout("Failed to save file", e);
+            }
+        }
+    }
+
+    private void handleResume(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 3) {
+            System.out.println("You must provide path to the downloading file and where it is partially saved");
+        } else {
+            System.out.println("Waiting for response...");
+            try {
+                val size = ftpClient.resumeFile(split[1], Paths.get(split[2]));
+                System.out.printf("File saved (%d bytes received)%n", size);
+            } catch (FtpClientException e) {
+                printToLogAndSout("FTP client failed to execute GET_RANGE", e);
+            }
+        }
+    }
+
+    private void handleSync(String[] split) {
+        if (ftpClient == null) {
+            System.out.println("You must connect first");
+            return;
+        }
+        if (split.length != 3) {
+            System.out.println("You must provide path to the downloading file and where its local copy is saved");
+        } else {
+            System.out.println("Waiting for response...");
+            try {
+                val size = ftpClient.syncTo(split[1], Paths.get(split[2]));
+                System.out.printf("File synced (%d bytes received)%n", size);
+            } catch (FtpClientException e) {
+                printToLogAndSout("FTP client failed to sync the file", e);
+            }
+        }
+    }
+
+    private void handleMirror(String[] split) {
+        if (split.length != 3) {
+            System.out.println("You must provide the directory on the server and where to save it");
+            return;
+        }
+        val start = System.nanoTime();
+        try {
+            val summary = new Mirror(host, port, connections).mirror(split[1], Paths.get(split[2]),
+                    new ProgressPrinter(start));
+            System.out.printf("%nDownloaded %d files (%d bytes), skipped %d up to date files in %.1f s%n",
+                    summary.getDownloadedFiles(), summary.getDownloadedBytes(), summary.getSkippedFiles(),
+                    summary.getElapsedMillis() / 1000.0);
+        } catch (FtpClientException e) {
+            System.out.println();
+            printToLogAndSout("FTP client failed to mirror the directory", e);
+        }
+    }
+
+    private static double secondsSince(long start) {
+        return Math.max(System.nanoTime() - start, 1) / 1e9;
+    }
+
+    /**
+     * Prints mirror progress on a single line. Downloads report progress from several threads, so updates are
+     * printed one at a time and an update that arrives after a newer one is not printed.
+     */
+    private static final class ProgressPrinter implements Mirror.ProgressCallback {
+
+        private final long start;
+        private int printedFiles;
+
+        private ProgressPrinter(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public synchronized void progress(int downloadedFiles, int queuedFiles, long downloadedBytes) {
+            if (downloadedFiles < printedFiles) {
+                return;
             }
+            printedFiles = downloadedFiles;
+            System.out.printf("\r  %d/%d files, %.1f MB, %.1f MB/s", downloadedFiles, queuedFiles,
+                    downloadedBytes / MEGABYTE, downloadedBytes / MEGABYTE / secondsSince(start));
         }
     }
 
@@ -0,0 +1,427 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client that does not hold a thread while it waits for the server, so a few threads can serve connections to many
+ * servers. Requests are sent without waiting for responses to the previous ones, the server answers them in order.
+ * <p>
+ * Futures are completed by threads of the channel group, so dependent actions and writes to sinks of downloads run
+ * on these threads and must not block for long.
+ *
+ * @author antonpp
+ * @since 08/02/2017
+ */
+@Slf4j
+public class AsyncFtpClient implements Closeable {
+
+    /**
+     * A whole entry of a listing always fits in the buffer, so it could be parsed at once.
+     */
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private final AsynchronousSocketChannel channel;
+    /**
+     * Received bytes that are not parsed yet, the buffer is in read mode between reads from the channel.
+     */
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Deque<Write> writes = new ArrayDeque<>();
+    /**
+     * Responses that are expected from the server, in the order of the requests.
+     */
+    private final Deque<Response<?>> responses = new ArrayDeque<>();
+    private final CompletionHandler<Integer, Void> readHandler = new ReadHandler();
+    private boolean writing;
+    private boolean reading;
+    @Nullable
+    private FtpClientException failure;
+
+    private AsyncFtpClient(AsynchronousSocketChannel channel) {
+        this.channel = channel;
+        input.flip();
+    }
+
+    public static CompletableFuture<AsyncFtpClient> connect(String host, int port) {
+        return connect(host, port, null);
+    }
+
+    /**
+     * @param group group whose threads complete the futures, null for the default group
+     * @return client that is connected to the server
+     */
+    public static CompletableFuture<AsyncFtpClient> connect(String host, int port,
+                                                            @Nullable AsynchronousChannelGroup group) {
+        final CompletableFuture<AsyncFtpClient> result = new CompletableFuture<>();
+        final AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            result.completeExceptionally(new FtpClientException("Could not open a channel", e));
+            return result;
+        }
+        channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void ignored, Void attachment) {
+                log.debug("connected");
+                result.complete(new AsyncFtpClient(channel));
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                closeQuietly(channel);
+                result.completeExceptionally(new FtpClientException("Could not connect to specified host", exc));
+            }
+        });
+        return result;
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close channel", e);
+        }
+    }
+
+    private static ByteBuffer encode(int requestCode, @Nullable String path) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeInt(requestCode);
+            if (path != null) {
+                dos.writeUTF(path);
+            }
+        } catch (IOException e) {
+            // the path is longer than UTF limit, writes to memory do not fail otherwise
+            throw new IllegalArgumentException("Path is too long", e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * @return names of entries of the directory and whether they are directories, empty if it does not exist
+     */
+    public CompletableFuture<Map<String, Boolean>> listFiles(String dir) {
+        val response = new ListResponse();
+        send(encode(RequestCode.RQ_LIST, dir), response, null);
+        return response.future;
+    }
+
+    /**
+     * Downloads the file into the sink. The sink is written by threads of the channel group.
+     *
+     * @return size of the file, 0 if it does not exist
+     */
+    public CompletableFuture<Long> getFile(String path, WritableByteChannel sink) {
+        val response = new GetResponse(sink);
+        send(encode(RequestCode.RQ_GET, path), response, null);
+        return response.future;
+    }
+
+    /**
+     * Ends the session after responses to all previous requests are received and closes the connection.
+     */
+    public CompletableFuture<Void> disconnect() {
+        val response = new DisconnectResponse();
+        val sent = new CompletableFuture<Void>();
+        send(encode(RequestCode.RQ_DISCONNECT, null), response, sent);
+        return CompletableFuture.allOf(response.future, sent).thenRun(() -> {
+            close();
+            log.debug("disconnected");
+        });
+    }
+
+    /**
+     * Closes the connection at once, requests that are not finished yet fail.
+     */
+    @Override
+    public void close() {
+        fail(new FtpClientException("Client is closed"));
+    }
+
+    private void send(ByteBuffer request, Response<?> response, @Nullable CompletableFuture<Void> sent) {
+        final boolean startWriting;
+        final boolean startReading;
+        synchronized (this) {
+            if (failure != null) {
+                response.future.completeExceptionally(failure);
+                if (sent != null) {
+                    sent.completeExceptionally(failure);
+                }
+                return;
+            }
+            // both queues are updated at once, so responses are expected in the order requests are written
+            writes.add(new Write(request, sent));
+            responses.add(response);
+            startWriting = !writing;
+            writing = true;
+            startReading = !reading;
+            reading = true;
+        }
+        if (startWriting) {
+            writeNext();
+        }
+        if (startReading) {
+            readResponses();
+        }
+    }
+
+    private void writeNext() {
+        final Write next;
+        synchronized (this) {
+            next = writes.peekFirst();
+            if (next == null || failure != null) {
+                writing = false;
+                return;
+            }
+        }
+        channel.write(next.buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                if (!next.buffer.hasRemaining()) {
+                    synchronized (AsyncFtpClient.this) {
+                        writes.pollFirst();
+                    }
+                    if (next.sent != null) {
+                        next.sent.complete(null);
+                    }
+                }
+                writeNext();
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                fail(new FtpClientException("Failed to send request", exc));
+            }
+        });
+    }
+
+    /**
+     * Parses received bytes for expected responses and reads more when they are not enough. Only one thread at
+     * a time runs it, the one that set {@link #reading}.
+     */
+    private void readResponses() {
+        while (true) {
+            final Response<?> head;
+            synchronized (this) {
+                head = failure == null ? responses.peekFirst() : null;
+                if (head == null) {
+                    reading = false;
+                    return;
+                }
+            }
+            final boolean finished;
+            try {
+                finished = head.consume(input);
+            } catch (IOException | RuntimeException e) {
+                fail(new FtpClientException("Failed to read response", e));
+                return;
+            }
+            if (!finished) {
+                input.compact();
+                channel.read(input, null, readHandler);
+                return;
+            }
+            synchronized (this) {
+                responses.pollFirst();
+            }
+            head.complete();
+        }
+    }
+
+    private void fail(FtpClientException exception) {
+        final List<Response<?>> failed;
+        final List<Write> unsent;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = exception;
+            failed = new ArrayList<>(responses);
+            unsent = new ArrayList<>(writes);
+            responses.clear();
+            writes.clear();
+        }
+        closeQuietly(channel);
+        log.debug("Connection closed", exception);
+        failed.forEach(response -> response.future.completeExceptionally(exception));
+        unsent.stream()
+                .filter(write -> write.sent != null)
+                .forEach(write -> write.sent.completeExceptionally(exception));
+    }
+
+    private static final class Write {
+        private final ByteBuffer buffer;
+        /**
+         * Completed when the whole buffer is written, if someone waits for it.
+         */
+        @Nullable
+        private final CompletableFuture<Void> sent;
+
+        private Write(ByteBuffer buffer, @Nullable CompletableFuture<Void> sent) {
+            this.buffer = buffer;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Parser of a response that is fed with received bytes as they arrive.
+     */
+    private abstract static class Response<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        /**
+         * Parses as much of the response as possible. Bytes that could not be parsed yet are left in the buffer.
+         *
+         * @param in received bytes in read mode
+         * @return true if the whole response is parsed
+         */
+        abstract boolean consume(ByteBuffer in) throws IOException;
+
+        abstract T result();
+
+        void complete() {
+            future.complete(result());
+        }
+    }
+
+    private static final class ListResponse extends Response<Map<String, Boolean>> {
+        private final Map<String, Boolean> entries = new HashMap<>();
+        private int count = -1;
+        private int parsed;
+
+        /**
+         * @return the string if it and the following extra bytes are received, otherwise null
+         */
+        @Nullable
+        private static String readUtf(ByteBuffer in, int extra) throws IOException {
+            if (in.remaining() < Short.BYTES) {
+                return null;
+            }
+            val length = Short.BYTES + (in.getShort(in.position()) & 0xffff);
+            if (in.remaining() < length + extra) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+        }
+
+        @Override
+        boolean consume(ByteBuffer in) throws IOException {
+            if (count < 0) {
+                if (in.remaining() < Integer.BYTES) {
+                    return false;
+                }
+                count = in.getInt();
+            }
+            while (parsed < count) {
+                val name = readUtf(in, 1);
+                if (name == null) {
+                    return false;
+                }
+                entries.put(name, in.get() != 0);
+                parsed++;
+            }
+            return true;
+        }
+
+        @Override
+        Map<String, Boolean> result() {
+            return entries;
+        }
+    }
+
+    private static final class GetResponse extends Response<Long> {
+        private final WritableByteChannel sink;
+        private long size = -1;
+        private long remaining;
+
+        private GetResponse(WritableByteChannel sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        boolean consume(ByteBuffer in) throws IOException {
+            if (size < 0) {
+                if (in.remaining() < Long.BYTES) {
+                    return false;
+                }
+                size = in.getLong();
+                remaining = size;
+            }
+            if (remaining > 0 && in.hasRemaining()) {
+                val chunk = in.duplicate();
+                chunk.limit(chunk.position() + (int) Math.min(in.remaining(), remaining));
+                val length = chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    sink.write(chunk);
+                }
+                in.position(in.position() + length);
+                remaining -= length;
+            }
+            return remaining == 0;
+        }
+
+        @Override
+        Long result() {
+            return size;
+        }
+    }
+
+    /**
+     * Disconnect has no response, it is finished as soon as all previous responses are received.
+     */
+    private static final class DisconnectResponse extends Response<Void> {
+        @Override
+        boolean consume(ByteBuffer in) {
+            return true;
+        }
+
+        @Override
+        Void result() {
+            return null;
+        }
+    }
+
+    private final class ReadHandler implements CompletionHandler<Integer, Void> {
+        @Override
+        public void completed(Integer read, Void attachment) {
+            input.flip();
+            if (read < 0) {
+                fail(new FtpClientException("Connection closed by the server", new EOFException()));
+                return;
+            }
+            readResponses();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            fail(new FtpClientException("Failed to receive response", exc));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.google.common.hash.Hashing;
+import ru.mit.spbau.antonpp.ftp.data.BlockSums;
+import ru.mit.spbau.antonpp.ftp.sync.RollingChecksum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds blocks of a remote file in a local file. Blocks are looked up at every offset of the local file, so data that
+ * was shifted by insertions or deletions is found too. A window is compared by its rolling checksum first, MD5 is
+ * computed only if some block has the same rolling checksum.
+ *
+ * @author antonpp
+ * @since 07/02/2017
+ */
+final class BlockMatcher {
+
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private BlockMatcher() {
+    }
+
+    /**
+     * The last block of the remote file is never matched if it is shorter than the block size.
+     *
+     * @return for every block its position in the local file, -1 if it is not found
+     */
+    static long[] match(BlockSums sums, FileChannel local) throws IOException {
+        final int blockSize = sums.getBlockSize();
+        final long[] result = new long[sums.getBlockCount()];
+        Arrays.fill(result, -1);
+        final int fullBlocks = (int) (sums.getFileSize() / blockSize);
+        final Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+        for (int i = 0; i < fullBlocks; i++) {
+            blocksByChecksum.computeIfAbsent(sums.getRolling()[i], key -> new ArrayList<>()).add(i);
+        }
+        if (blocksByChecksum.isEmpty()) {
+            return result;
+        }
+
+        final byte[] data = new byte[blockSize + READ_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final RollingChecksum checksum = new RollingChecksum();
+        // data[start, limit) holds bytes of the local file from dataOffset + start
+        long dataOffset = 0;
+        int start = 0;
+        int limit = 0;
+        boolean hasWindow = false;
+        // the rest of the file is in the buffer, so it is not read again on every roll
+        boolean isEof = false;
+        int left = fullBlocks;
+        while (left > 0) {
+            // the window and the byte after it must be in the buffer
+            if (limit - start <= blockSize && !isEof) {
+                System.arraycopy(data, start, data, 0, limit - start);
+                dataOffset += start;
+                limit -= start;
+                start = 0;
+                buffer.clear().position(limit);
+                if (local.read(buffer, dataOffset + limit) > 0) {
+                    limit = buffer.position();
+                    continue;
+                }
+                isEof = true;
+            }
+            if (limit - start < blockSize) {
+                break;
+            }
+            if (!hasWindow) {
+                checksum.reset(data, start, blockSize);
+                hasWindow = true;
+            }
+            final List<Integer> candidates = blocksByChecksum.get(checksum.value());
+            boolean matched = false;
+            if (candidates != null) {
+                final byte[] strong = Hashing.md5().hashBytes(data, start, blockSize).asBytes();
+                for (int block : candidates) {
+                    if (Arrays.equals(sums.getStrong()[block], strong)) {
+                        matched = true;
+                        if (result[block] < 0) {
+                            result[block] = dataOffset + start;
+                            left--;
+                        }
+                    }
+                }
+            }
+            if (matched) {
+                start += blockSize;
+                hasWindow = false;
+            } else if (start + blockSize < limit) {
+                checksum.roll(data[start], data[start + blockSize]);
+                start++;
+            } else {
+                // the window reached the end of the file
+                break;
+            }
+        }
+        return result;
+    }
+}
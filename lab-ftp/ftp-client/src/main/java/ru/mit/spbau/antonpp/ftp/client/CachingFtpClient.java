@@ -0,0 +1,337 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads files through an {@link FtpClient}, keeping copies of them in a local directory. Before a cached copy is
+ * used, it is validated with a conditional GET, so an unchanged file costs a round trip and a few bytes instead of
+ * the whole transfer. The total size of the copies is bounded, least recently used ones are evicted.
+ * <p>
+ * Every copy is stored in a file named after MD5 of its remote path: MD5 of the contents (16 bytes) followed by the
+ * contents. The digest is computed while the file is received, so it always describes what is actually stored.
+ * Access order survives restarts as modification times of the copies. The directory must not be shared by clients
+ * of different servers or by several clients at once. Like {@link FtpClient}, the class is not thread-safe.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Slf4j
+public class CachingFtpClient {
+
+    private static final int MD5_SIZE = 16;
+    private static final String TEMP_SUFFIX = ".part";
+
+    @NotNull
+    private final FtpClient client;
+    @NotNull
+    private final Path directory;
+    private final long maxBytes;
+    /**
+     * Copies by names of their files, access-ordered, so the first entry is the least recently used one.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Loads the index of copies left in the directory by previous runs.
+     *
+     * @param client    connected client, it is not closed by this class
+     * @param directory directory of cached copies, it is created if it does not exist
+     * @param maxBytes  maximum total size of the copies
+     * @throws IOException if the directory could not be read
+     */
+    public CachingFtpClient(@NotNull FtpClient client, @NotNull Path directory, long maxBytes) throws IOException {
+        this.client = client;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    // left by an interrupted download
+                    Files.delete(file);
+                } else if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(CachingFtpClient::lastModified));
+        for (Path file : files) {
+            val digest = readDigest(file);
+            if (digest != null) {
+                put(file.getFileName().toString(), new Entry(digest, Files.size(file)));
+            }
+        }
+        evict();
+        log.debug("{} cached files, {} bytes", entries.size(), totalBytes);
+    }
+
+    /**
+     * Downloads the whole file into memory, unless the cached copy is up to date.
+     *
+     * @param path path to the file on the server
+     * @return file content, empty if the file does not exist
+     * @throws FtpClientException if request failed or the cache could not be used
+     */
+    public byte[] getFile(String path) throws FtpClientException {
+        val copy = fetch(path);
+        if (copy == null) {
+            return new byte[0];
+        }
+        try (FileChannel file = FileChannel.open(copy, StandardOpenOption.READ)) {
+            if (file.size() - MD5_SIZE > Integer.MAX_VALUE - 8) {
+                throw new FtpClientException("File is too large to be loaded in memory: " + file.size() + " bytes");
+            }
+            val data = ByteBuffer.allocate((int) (file.size() - MD5_SIZE));
+            while (data.hasRemaining()) {
+                if (file.read(data, MD5_SIZE + data.position()) < 0) {
+                    throw new IOException("Cached copy was truncated");
+                }
+            }
+            return data.array();
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to read cached copy of " + path, e);
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * Saves the file at the specified location, replacing the existing file. It is downloaded only if the cached copy
+     * is missing or out of date.
+     *
+     * @param path        path to the file on the server
+     * @param destination where to save the file
+     * @return size of the file, 0 if it does not exist
+     * @throws FtpClientException if request failed or destination could not be written
+     */
+    public long getFile(String path, Path destination) throws FtpClientException {
+        val copy = fetch(path);
+        if (copy == null) {
+            return 0;
+        }
+        try (FileChannel source = FileChannel.open(copy, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(destination, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            val size = source.size() - MD5_SIZE;
+            for (long position = 0; position < size; ) {
+                val transferred = source.transferTo(MD5_SIZE + position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Cached copy was truncated");
+                }
+                position += transferred;
+            }
+            return size;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save file at " + destination, e);
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of requests that downloaded the file
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total size of the cached copies
+     */
+    public long getCachedBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Makes the cached copy of the file up to date. The copy is not evicted until the next request, so the caller
+     * could read it.
+     *
+     * @return cached copy or null if the file does not exist
+     */
+    @Nullable
+    private Path fetch(String path) throws FtpClientException {
+        val name = Hashing.md5().hashString(path, StandardCharsets.UTF_8).toString();
+        val copy = directory.resolve(name);
+        val temp = directory.resolve(name + TEMP_SUFFIX);
+        Entry entry = entries.get(name);
+        if (entry != null && !Files.isRegularFile(copy)) {
+            log.debug("Cached copy of {} was deleted", path);
+            remove(name);
+            entry = null;
+        }
+        try {
+            try {
+                final DigestChannel received;
+                try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    file.position(MD5_SIZE);
+                    received = new DigestChannel(file);
+                    val stat = client.getFileIfChanged(path, entry == null ? null : entry.digest, received);
+                    if (stat == null) {
+                        log.debug("{} is up to date", path);
+                        hits++;
+                        Files.setLastModifiedTime(copy, FileTime.fromMillis(System.currentTimeMillis()));
+                        return copy;
+                    }
+                    misses++;
+                    if (stat.getSize() < 0) {
+                        remove(name);
+                        Files.deleteIfExists(copy);
+                        return null;
+                    }
+                    file.write(ByteBuffer.wrap(received.digest()), 0);
+                }
+                Files.move(temp, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                put(name, new Entry(received.digest(), Files.size(copy)));
+                log.debug("{} is cached, {} bytes", path, Files.size(copy) - MD5_SIZE);
+                return copy;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to update cached copy of " + path, e);
+        }
+    }
+
+    private void put(String name, Entry entry) {
+        remove(name);
+        entries.put(name, entry);
+        totalBytes += entry.size;
+    }
+
+    private void remove(String name) {
+        val old = entries.remove(name);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+    }
+
+    private void evict() {
+        val iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue().size;
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("Failed to evict " + eldest.getKey(), e);
+            }
+        }
+    }
+
+    @Nullable
+    private static byte[] readDigest(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            val digest = ByteBuffer.allocate(MD5_SIZE);
+            while (digest.hasRemaining()) {
+                if (channel.read(digest) < 0) {
+                    log.debug("{} is not a cached copy", file);
+                    return null;
+                }
+            }
+            return digest.array();
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final byte[] digest;
+        /**
+         * Size of the file of the copy including the digest.
+         */
+        private final long size;
+
+        private Entry(@NotNull byte[] digest, long size) {
+            this.digest = digest;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Computes MD5 of the bytes written to the target.
+     */
+    private static final class DigestChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final MessageDigest md5;
+        private byte[] digest;
+
+        private DigestChannel(WritableByteChannel target) {
+            this.target = target;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            val written = src.duplicate();
+            val count = target.write(src);
+            written.limit(written.position() + count);
+            md5.update(written);
+            return count;
+        }
+
+        private byte[] digest() {
+            if (digest == null) {
+                digest = md5.digest();
+            }
+            return digest;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
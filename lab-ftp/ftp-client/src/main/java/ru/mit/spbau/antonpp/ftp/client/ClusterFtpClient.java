@@ -0,0 +1,363 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.data.DiskUsage;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+import ru.mit.spbau.antonpp.ftp.data.FileStat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of a group of servers that serve the same tree, each on its own host:port. Every path is routed to nodes by
+ * consistent hashing with virtual nodes, so requests of different paths are spread over the group, and every node
+ * receives the same part of the tree all the time, which its listing, content and digest caches hold.
+ * <p>
+ * A path is stored on {@code replicas} nodes: the first ones clockwise from the path on the ring. Reads are sent to
+ * the first of them and fail over to the next one if a node cannot be reached; PUT is sent to all of them. Requests
+ * never leave these nodes, the rest of the ring does not hold the path. A node that failed is skipped for a while, so
+ * its paths are served by the other replicas, and it is tried again after the retry period. If all replicas are down,
+ * they are tried anyway. Nodes may join and leave at any time, only about 1/N of the paths move then. Files are not
+ * moved between nodes: with a replicated tree, a joining node must be populated before it is added, e.g. by
+ * mirroring. For a tree that all nodes share, e.g. on a network file system, use as many replicas as there are nodes
+ * to let reads fail over to any of them.
+ * <p>
+ * Connections are taken from a pool, so the client may be used by several threads at once.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Slf4j
+public class ClusterFtpClient implements Closeable {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+    private static final int DEFAULT_CONNECTIONS_PER_NODE = 4;
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 5_000;
+
+    private final int replicas;
+    private final long retryAfterNanos;
+    private final FtpClientPool pool;
+    private final ConsistentHashRing ring;
+    /**
+     * Nodes that failed, with the time when they are tried again.
+     */
+    private final Map<String, Long> downUntil = new HashMap<>();
+
+    /**
+     * Creates a client with default settings.
+     *
+     * @param nodes    addresses of the servers as host:port
+     * @param replicas number of nodes every path is stored on
+     */
+    public ClusterFtpClient(Collection<String> nodes, int replicas) {
+        this(nodes, replicas, DEFAULT_VIRTUAL_NODES, DEFAULT_CONNECTIONS_PER_NODE, DEFAULT_RETRY_AFTER_MILLIS);
+    }
+
+    /**
+     * @param nodes              addresses of the servers as host:port
+     * @param replicas           number of nodes every path is stored on
+     * @param virtualNodes       number of points of every node on the ring
+     * @param connectionsPerNode maximum number of open connections to one node
+     * @param retryAfterMillis   how long a node that failed is skipped
+     */
+    public ClusterFtpClient(Collection<String> nodes, int replicas, int virtualNodes, int connectionsPerNode,
+                            long retryAfterMillis) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("At least one replica is required");
+        }
+        if (retryAfterMillis < 0) {
+            throw new IllegalArgumentException("Retry period must not be negative");
+        }
+        this.replicas = replicas;
+        retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+        ring = new ConsistentHashRing(virtualNodes);
+        nodes.forEach(this::addNode);
+        pool = new FtpClientPool(connectionsPerNode);
+    }
+
+    /**
+     * Adds a node to the group, it takes over its part of paths from other nodes.
+     *
+     * @param node address of the server as host:port
+     * @throws IllegalArgumentException if the address is malformed
+     */
+    public synchronized void addNode(String node) {
+        port(node);
+        if (ring.add(node)) {
+            log.debug("Node {} joined", node);
+        }
+    }
+
+    /**
+     * Removes a node from the group, its paths are taken over by other nodes.
+     */
+    public synchronized void removeNode(String node) {
+        if (ring.remove(node)) {
+            downUntil.remove(node);
+            log.debug("Node {} left", node);
+        }
+    }
+
+    /**
+     * @return addresses of all nodes of the group, including ones that are down
+     */
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(ring.getNodes());
+    }
+
+    /**
+     * @param path path on the server
+     * @return replicas of the path that are not down, in the order they are tried. If all of them are down, they
+     * are tried anyway.
+     */
+    public synchronized List<String> nodesFor(String path) {
+        val now = System.nanoTime();
+        val replicaNodes = ring.nodesFor(path, replicas, node -> true);
+        val nodes = new ArrayList<String>();
+        for (String node : replicaNodes) {
+            val until = downUntil.get(node);
+            if (until == null || until - now <= 0) {
+                nodes.add(node);
+            }
+        }
+        return nodes.isEmpty() ? replicaNodes : nodes;
+    }
+
+    /**
+     * Runs the function with a connection to a node of the path. If the node cannot be reached, the function is run
+     * again with the next node, so it must be safe to repeat. Like in {@link FtpClientPool#withClient}, lazy results
+     * must be consumed inside the function.
+     *
+     * @param path     path the request is routed by
+     * @param function request to a node
+     * @return result of the function
+     * @throws FtpClientException if no node could be reached or the request failed for another reason
+     */
+    public <T> T execute(String path, FtpClientPool.ClientFunction<T> function) throws FtpClientException {
+        val nodes = nodesFor(path);
+        if (nodes.isEmpty()) {
+            throw new FtpClientException("There are no nodes in the group");
+        }
+        FtpClientException failure = null;
+        for (String node : nodes) {
+            try {
+                return withNode(node, function);
+            } catch (FtpClientException e) {
+                if (!isNodeFailure(e)) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        throw new FtpClientException("No node of " + path + " could be reached", failure);
+    }
+
+    /**
+     * @see FtpClient#getFile(String)
+     */
+    public byte[] getFile(String path) throws FtpClientException {
+        return execute(path, client -> client.getFile(path));
+    }
+
+    /**
+     * @see FtpClient#getFile(String, Path)
+     */
+    public long getFile(String path, Path destination) throws FtpClientException {
+        // opened in advance, so that a destination that cannot be written is not taken for a failure of a node
+        try (FileChannel file = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            val sink = new LocalSink(file);
+            return execute(path, client -> {
+                try {
+                    // a failed attempt may have written a part of the file
+                    file.truncate(0).position(0);
+                } catch (IOException e) {
+                    throw new LocalFailureException("Failed to save file at " + destination, e);
+                }
+                try {
+                    return client.getFile(path, sink);
+                } catch (FtpClientException e) {
+                    if (sink.failure != null) {
+                        throw new LocalFailureException("Failed to save file at " + destination, sink.failure);
+                    }
+                    throw e;
+                }
+            });
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save file at " + destination, e);
+        }
+    }
+
+    /**
+     * @see FtpClient#listFiles(String)
+     */
+    public Map<String, Boolean> listFiles(String dir) throws FtpClientException {
+        return execute(dir, client -> client.listFiles(dir));
+    }
+
+    /**
+     * @see FtpClient#stat(String)
+     */
+    public FileStat stat(String path) throws FtpClientException {
+        return execute(path, client -> client.stat(path));
+    }
+
+    /**
+     * @see FtpClient#find(String, String)
+     */
+    public List<FileRecord> find(String dir, String pattern) throws FtpClientException {
+        return execute(dir, client -> {
+            final List<FileRecord> found = new ArrayList<>();
+            client.find(dir, pattern).forEachRemaining(found::add);
+            return found;
+        });
+    }
+
+    /**
+     * @see FtpClient#diskUsage(String)
+     */
+    public DiskUsage diskUsage(String path) throws FtpClientException {
+        return execute(path, client -> client.diskUsage(path));
+    }
+
+    /**
+     * Uploads the file to every node of the path that can be reached.
+     *
+     * @param local  file to upload
+     * @param remote path on the servers, its parent directory must exist
+     * @return number of nodes that stored the file
+     * @throws FtpClientException if no node stored the file
+     */
+    public int putFile(Path local, String remote) throws FtpClientException {
+        // checked in advance, so that a missing file is not taken for a failure of a node
+        if (!Files.isReadable(local) || !Files.isRegularFile(local)) {
+            throw new FtpClientException(local + " is not a readable file");
+        }
+        int stored = 0;
+        FtpClientException failure = null;
+        for (String node : nodesFor(remote)) {
+            try {
+                withNode(node, client -> client.putFile(local, remote));
+                stored++;
+            } catch (FtpClientException e) {
+                failure = e;
+            }
+        }
+        if (stored == 0) {
+            throw new FtpClientException("No node stored " + remote, failure);
+        }
+        return stored;
+    }
+
+    /**
+     * Closes idle connections to all nodes.
+     */
+    @Override
+    public void close() throws IOException {
+        pool.close();
+    }
+
+    private <T> T withNode(String node, FtpClientPool.ClientFunction<T> function) throws FtpClientException {
+        try {
+            val result = pool.withClient(host(node), port(node), function);
+            synchronized (this) {
+                if (downUntil.remove(node) != null) {
+                    log.info("Node {} is up again", node);
+                }
+            }
+            return result;
+        } catch (FtpClientException e) {
+            if (isNodeFailure(e)) {
+                log.warn("Node {} failed, it is skipped for {} ms: {}", new Object[]{node,
+                        TimeUnit.NANOSECONDS.toMillis(retryAfterNanos), e.getMessage()});
+                synchronized (this) {
+                    if (ring.getNodes().contains(node)) {
+                        downUntil.put(node, System.nanoTime() + retryAfterNanos);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Requests fail with an I/O error if the node is not reachable or the connection breaks, errors reported by
+     * the server itself, e.g. an upload it could not store, have no cause. Errors of local files are I/O errors too,
+     * they are reported as {@link LocalFailureException}.
+     */
+    private static boolean isNodeFailure(FtpClientException e) {
+        return !(e instanceof LocalFailureException) && e.getCause() instanceof IOException;
+    }
+
+    private static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    private static int port(String node) {
+        val colon = node.lastIndexOf(':');
+        try {
+            val port = colon > 0 ? Integer.parseInt(node.substring(colon + 1)) : -1;
+            if (port > 0 && port <= 0xFFFF) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            log.debug("Malformed port of {}", node);
+        }
+        throw new IllegalArgumentException("Node address must be host:port, got " + node);
+    }
+
+    /**
+     * Failure of the local side of a request, the node is not blamed for it.
+     */
+    private static final class LocalFailureException extends FtpClientException {
+        private LocalFailureException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Remembers the error of a write, so that it can be told from an error of the connection.
+     */
+    private static final class LocalSink implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private volatile IOException failure;
+
+        private LocalSink(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            try {
+                return target.write(src);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
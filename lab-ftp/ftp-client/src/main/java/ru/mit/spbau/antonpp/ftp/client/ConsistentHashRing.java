@@ -0,0 +1,108 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.google.common.hash.Hashing;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hashing of keys to nodes. Every node is placed on the ring at several points (virtual nodes), a key
+ * belongs to the node of the first point at or after the hash of the key. When a node joins or leaves, only keys of
+ * the arcs next to its points move, about 1/N of all keys, and they are spread evenly over the other nodes.
+ * <p>
+ * The class is not thread-safe.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+final class ConsistentHashRing {
+
+    private final int virtualNodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes = new LinkedHashSet<>();
+
+    /**
+     * @param virtualNodes number of points of every node, more points give a more even distribution
+     */
+    ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("At least one virtual node is required");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @return false if the node is already on the ring
+     */
+    boolean add(String node) {
+        if (!nodes.add(node)) {
+            return false;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            // a collision is practically impossible with 64-bit hashes, the earlier node keeps the point then
+            ring.putIfAbsent(hash(node + "#" + i), node);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the node is not on the ring
+     */
+    boolean remove(String node) {
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(node + "#" + i), node);
+        }
+        return true;
+    }
+
+    Collection<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Walks the ring clockwise from the key and collects distinct nodes accepted by the filter.
+     *
+     * @param key    key to be placed
+     * @param count  maximum number of nodes
+     * @param filter nodes that are not accepted are skipped, e.g. ones that are down
+     * @return nodes in order of preference, the first one is the owner of the key
+     */
+    List<String> nodesFor(String key, int count, Predicate<String> filter) {
+        final List<String> result = new ArrayList<>(Math.min(count, nodes.size()));
+        final Set<String> seen = new HashSet<>();
+        val start = hash(key);
+        for (Map<Long, String> points : Arrays.asList(ring.tailMap(start, true), ring.headMap(start, false))) {
+            for (Map.Entry<Long, String> point : points.entrySet()) {
+                val node = point.getValue();
+                if (seen.add(node) && filter.test(node)) {
+                    result.add(node);
+                    if (result.size() == count) {
+                        return result;
+                    }
+                }
+                if (seen.size() == nodes.size()) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long hash(String value) {
+        return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -1,17 +1,48 @@
 package ru.mit.spbau.antonpp.ftp.client;
 
+import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.jetbrains.annotations.Nullable;
 import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.compression.Codec;
+import ru.mit.spbau.antonpp.ftp.compression.Codecs;
+import ru.mit.spbau.antonpp.ftp.data.BlockSums;
+import ru.mit.spbau.antonpp.ftp.data.DiskUsage;
+import ru.mit.spbau.antonpp.ftp.data.FileContent;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+import ru.mit.spbau.antonpp.ftp.data.FileStat;
+import ru.mit.spbau.antonpp.ftp.protocol.FileStatus;
 import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * This is class holds client socket and implements client-side protocol.
@@ -22,17 +53,43 @@ import java.util.Map;
 @Slf4j
 public class FtpClient implements Closeable {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Some VMs reserve header words in an array, so the largest array is a bit smaller than Integer.MAX_VALUE.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MD5_SIZE = 16;
+
     private final Socket clientSocket;
 
     private final DataInputStream inputStream;
+    /**
+     * Requests are buffered and sent with a single write when their arguments are complete, so the arguments are not
+     * held back by Nagle's algorithm until the server acknowledges the request code.
+     */
     private final DataOutputStream outputStream;
+    /**
+     * Streamed response that was not read till the end. It must be consumed before the next request.
+     */
+    private PendingResponse pendingResponse;
+    /**
+     * Codec requested for downloads of whole files if no codec is specified explicitly.
+     */
+    private int compression = Codecs.NONE;
+    private final Map<Integer, Codec> codecs = new HashMap<>();
+    /**
+     * Codec of the file being received, null if the file is not compressed.
+     */
+    private Codec responseCodec;
 
     public FtpClient(String host, int port) throws FtpClientException {
         try {
-            clientSocket = new Socket(host, port);
+            // the socket is opened through a channel, so uploads are sent with zero-copy
+            clientSocket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            clientSocket.setTcpNoDelay(true);
             inputStream = new DataInputStream(clientSocket.getInputStream());
-            outputStream = new DataOutputStream(clientSocket.getOutputStream());
-        } catch (IOException e) {
+            outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        } catch (IOException | UnresolvedAddressException e) {
             throw new FtpClientException("Could not connect to specified host", e);
         }
         log.debug("connected");
@@ -41,8 +98,9 @@ public class FtpClient implements Closeable {
     public Map<String, Boolean> listFiles(String dir) throws FtpClientException {
         try {
             val result = new HashMap<String, Boolean>();
-            outputStream.writeInt(RequestCode.RQ_LIST);
+            startRequest(RequestCode.RQ_LIST);
             outputStream.writeUTF(dir);
+            outputStream.flush();
             val len = inputStream.readInt();
             log.debug("Received list length: {}", len);
             for (int i = 0; i < len; i++) {
@@ -54,26 +112,752 @@ public class FtpClient implements Closeable {
         }
     }
 
-    public byte[] getFile(String path) throws FtpClientException {
+    /**
+     * Polls counters of the server: connections, handler pool, bytes sent, number and latency of requests.
+     *
+     * @return names and values of the metrics in the order they were sent
+     * @throws FtpClientException if request failed
+     */
+    public Map<String, Long> getStats() throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_STATS);
+            outputStream.flush();
+            val len = inputStream.readInt();
+            final Map<String, Long> result = new LinkedHashMap<>();
+            for (int i = 0; i < len; i++) {
+                result.put(inputStream.readUTF(), inputStream.readLong());
+            }
+            return result;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute STATS", e);
+        }
+    }
+
+    /**
+     * Makes a round trip to the server without any other effect.
+     *
+     * @throws FtpClientException if the connection is broken
+     */
+    public void noop() throws FtpClientException {
         try {
-            outputStream.writeInt(RequestCode.RQ_GET);
+            startRequest(RequestCode.RQ_NOOP);
+            outputStream.flush();
+            if (!inputStream.readBoolean()) {
+                throw new IOException("Unexpected response");
+            }
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute NOOP", e);
+        }
+    }
+
+    /**
+     * Lists the directory without loading the whole listing into memory. Entries are returned in directory order
+     * and come with their sizes and modification times. The iterator reads the connection lazily, so if another
+     * request is made before the iterator is exhausted, the rest of the listing is skipped.
+     *
+     * @param dir path to the directory on the server
+     * @return entries of the directory, empty if it does not exist
+     * @throws FtpClientException if request failed
+     */
+    public Iterator<FileRecord> listFilesStreamed(String dir) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_LIST_STREAM);
+            outputStream.writeUTF(dir);
+            outputStream.flush();
+            val listing = new ListingIterator();
+            pendingResponse = listing;
+            return listing;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute LIST_STREAM", e);
+        }
+    }
+
+    /**
+     * Searches the subtree on the server. Entries come in no particular order and their names are paths relative to
+     * the directory. Like {@link #listFilesStreamed(String)}, the iterator reads the connection lazily.
+     *
+     * @param dir     path to the directory on the server
+     * @param pattern glob or {@code regex:} pattern, matched against names of entries unless it contains {@code /},
+     *                see {@link RequestCode#RQ_FIND}
+     * @return matching entries, empty if the directory does not exist or the pattern is invalid
+     * @throws FtpClientException if request failed
+     */
+    public Iterator<FileRecord> find(String dir, String pattern) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_FIND);
+            outputStream.writeUTF(dir);
+            outputStream.writeUTF(pattern);
+            outputStream.flush();
+            val listing = new ListingIterator();
+            pendingResponse = listing;
+            return listing;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute FIND", e);
+        }
+    }
+
+    /**
+     * @param path path to a file or directory on the server
+     * @return total size and number of files and directories of the subtree; the size is -1 if it does not exist
+     * @throws FtpClientException if request failed
+     */
+    public DiskUsage diskUsage(String path) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_DU);
             outputStream.writeUTF(path);
-            val len = inputStream.readLong();
-            log.debug("Received file size: {}", len);
-            byte[] data = new byte[(int) len];
-            inputStream.readFully(data);
-            return data;
+            outputStream.flush();
+            val size = inputStream.readLong();
+            if (size < 0) {
+                return DiskUsage.builder().size(-1).build();
+            }
+            return DiskUsage.builder()
+                    .size(size)
+                    .files(inputStream.readLong())
+                    .directories(inputStream.readLong())
+                    .build();
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute DU", e);
+        }
+    }
+
+    /**
+     * Makes the server compress all following downloads of whole files, unless a codec is specified for a download
+     * explicitly. The server may still send a file as is if it does not compress well.
+     *
+     * @param codecId identifier of a codec registered in {@link Codecs}, {@link Codecs#NONE} disables compression
+     */
+    public void setCompression(int codecId) {
+        if (codecId != Codecs.NONE && codec(codecId) == null) {
+            throw new IllegalArgumentException("Unknown codec " + codecId);
+        }
+        compression = codecId;
+    }
+
+    /**
+     * Downloads the whole file into memory. Use {@link #getFile(String, Path)} for files that may be large.
+     *
+     * @param path path to the file on the server
+     * @return file content, empty if the file does not exist
+     * @throws FtpClientException if request failed or the file does not fit into an array
+     */
+    public byte[] getFile(String path) throws FtpClientException {
+        try {
+            val len = requestFile(path, compression);
+            if (len > MAX_ARRAY_SIZE) {
+                // the response must be consumed anyway to keep the connection usable
+                receiveFile(len, null);
+                throw new FtpClientException("File is too large to be loaded in memory: " + len + " bytes");
+            }
+            if (responseCodec == null) {
+                byte[] data = new byte[(int) len];
+                inputStream.readFully(data);
+                return data;
+            }
+            val data = new ByteArrayOutputStream((int) len);
+            receiveFile(len, Channels.newChannel(data));
+            return data.toByteArray();
         } catch (IOException e) {
             throw new FtpClientException("Failed to execute GET", e);
         }
     }
 
+    /**
+     * Downloads several files with a single request, so small files do not cost a round trip each. Files are
+     * returned in the requested order; the iterator reads the connection lazily, so if another request is made
+     * before the iterator is exhausted, the rest of the files are skipped.
+     *
+     * @param paths paths to the files on the server
+     * @return contents of the files, a file that does not exist is returned as not found
+     * @throws FtpClientException if request failed
+     */
+    public Iterator<FileContent> getFiles(List<String> paths) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_MGET);
+            outputStream.writeInt(paths.size());
+            for (String path : paths) {
+                outputStream.writeUTF(path);
+            }
+            outputStream.flush();
+            val batch = new BatchIterator(new ArrayList<>(paths));
+            pendingResponse = batch.hasNext() ? batch : null;
+            return batch;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute MGET", e);
+        }
+    }
+
+    /**
+     * Streams the file to the sink, so the file is never held in memory.
+     *
+     * @param path path to the file on the server
+     * @param sink channel where the content is written
+     * @return number of received bytes
+     * @throws FtpClientException if request failed
+     */
+    public long getFile(String path, WritableByteChannel sink) throws FtpClientException {
+        return getFile(path, sink, compression);
+    }
+
+    /**
+     * Streams the file to the sink, asking the server to compress it with the specified codec.
+     *
+     * @param path    path to the file on the server
+     * @param sink    channel where the content is written
+     * @param codecId identifier of a codec registered in {@link Codecs}, {@link Codecs#NONE} for plain GET
+     * @return number of bytes of the file
+     * @throws FtpClientException if request failed
+     */
+    public long getFile(String path, WritableByteChannel sink, int codecId) throws FtpClientException {
+        try {
+            val len = requestFile(path, codecId);
+            receiveFile(len, sink);
+            return len;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute GET", e);
+        }
+    }
+
+    /**
+     * Downloads the file and saves it at the specified location, replacing the existing file.
+     *
+     * @param path        path to the file on the server
+     * @param destination where to save the file
+     * @return number of received bytes
+     * @throws FtpClientException if request failed or destination could not be written
+     */
+    public long getFile(String path, Path destination) throws FtpClientException {
+        try (FileChannel file = FileChannel.open(destination, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return getFile(path, file);
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save file at " + destination, e);
+        }
+    }
+
+    /**
+     * Downloads a part of the file. The range is truncated by the end of the file.
+     *
+     * @param path   path to the file on the server
+     * @param offset position of the first byte
+     * @param len    maximum number of bytes
+     * @param sink   channel where the content is written
+     * @return number of received bytes, 0 if file does not exist or offset is beyond its end
+     * @throws FtpClientException if request failed
+     */
+    public long getRange(String path, long offset, long len, WritableByteChannel sink) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_GET_RANGE);
+            outputStream.writeUTF(path);
+            outputStream.writeLong(offset);
+            outputStream.writeLong(len);
+            outputStream.flush();
+            val fileSz = inputStream.readLong();
+            val received = inputStream.readLong();
+            log.debug("Received file size: {}", fileSz);
+            log.debug("Received range size: {}", received);
+            receive(received, sink);
+            return received;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute GET_RANGE", e);
+        }
+    }
+
+    /**
+     * @param path path to the file on the server
+     * @return size of the file or -1 if it is not a regular file
+     * @throws FtpClientException if request failed
+     */
+    public long getSize(String path) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_GET_RANGE);
+            outputStream.writeUTF(path);
+            outputStream.writeLong(0);
+            outputStream.writeLong(0);
+            outputStream.flush();
+            val fileSz = inputStream.readLong();
+            receive(inputStream.readLong(), null);
+            return fileSz;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute GET_RANGE", e);
+        }
+    }
+
+    /**
+     * @param path path to the file on the server
+     * @return size, modification time and MD5 of the file; the size is -1 if it is not a regular file
+     * @throws FtpClientException if request failed
+     */
+    public FileStat stat(String path) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_STAT);
+            outputStream.writeUTF(path);
+            outputStream.flush();
+            val fileSz = inputStream.readLong();
+            if (fileSz < 0) {
+                return FileStat.builder().size(-1).build();
+            }
+            return readStat(fileSz);
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute STAT", e);
+        }
+    }
+
+    /**
+     * Downloads the file unless the client's copy is up to date, i.e. has the same MD5 as the file on the server.
+     *
+     * @param path   path to the file on the server
+     * @param digest MD5 of the client's copy, null if the client has none
+     * @param sink   channel where the content is written if the file has changed
+     * @return null if the client's copy is up to date, otherwise attributes of the file that was written to the sink;
+     * the size is -1 if it is not a regular file
+     * @throws FtpClientException if request failed
+     */
+    @Nullable
+    public FileStat getFileIfChanged(String path, @Nullable byte[] digest, WritableByteChannel sink)
+            throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_GET_IF_CHANGED);
+            outputStream.writeUTF(path);
+            outputStream.write(digest == null ? new byte[MD5_SIZE] : digest);
+            outputStream.flush();
+            val status = inputStream.readByte();
+            if (status == FileStatus.NOT_FOUND) {
+                return FileStat.builder().size(-1).build();
+            }
+            val stat = readStat(inputStream.readLong());
+            if (status == FileStatus.NOT_MODIFIED) {
+                log.debug("{} is not modified", path);
+                return null;
+            }
+            receive(stat.getSize(), sink);
+            return stat;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute GET_IF_CHANGED", e);
+        }
+    }
+
+    private FileStat readStat(long fileSz) throws IOException {
+        val lastModified = inputStream.readLong();
+        final byte[] digest = new byte[MD5_SIZE];
+        inputStream.readFully(digest);
+        return FileStat.builder().size(fileSz).lastModified(lastModified).digest(digest).build();
+    }
+
+    /**
+     * Continues downloading of a partially saved file: only bytes after the end of the local file are requested.
+     * If there is no local file, the whole file is downloaded.
+     *
+     * @param path        path to the file on the server
+     * @param destination partially downloaded file
+     * @return number of received bytes
+     * @throws FtpClientException if request failed or destination could not be written
+     */
+    public long resumeFile(String path, Path destination) throws FtpClientException {
+        try (FileChannel file = FileChannel.open(destination, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            val offset = file.size();
+            file.position(offset);
+            log.debug("Resuming {} from {}", path, offset);
+            return getRange(path, offset, Long.MAX_VALUE, file);
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save file at " + destination, e);
+        }
+    }
+
+    /**
+     * Uploads the file. The server stores it under a temporary name and renames it into place when all of it is
+     * received, so the previous version stays readable until then. Contents are sent from the file to the socket
+     * without copying them to the heap.
+     *
+     * @param local  file to upload
+     * @param remote path on the server inside of its upload root, relative paths are relative to the root. Its
+     *               parent directory must exist.
+     * @return number of sent bytes
+     * @throws FtpClientException if the file could not be read, request failed or the server could not store the file
+     */
+    public long putFile(Path local, String remote) throws FtpClientException {
+        try (FileChannel file = FileChannel.open(local, StandardOpenOption.READ)) {
+            val fileSz = file.size();
+            startRequest(RequestCode.RQ_PUT);
+            outputStream.writeUTF(remote);
+            outputStream.writeLong(fileSz);
+            outputStream.flush();
+            val socket = clientSocket.getChannel();
+            for (long position = 0; position < fileSz; ) {
+                val sent = file.transferTo(position, fileSz - position, socket);
+                if (sent <= 0) {
+                    // the connection cannot be used anymore, since the server waits for the rest of the file
+                    throw new IOException(local + " was truncated during upload");
+                }
+                position += sent;
+            }
+            if (!inputStream.readBoolean()) {
+                throw new FtpClientException("Server could not store " + remote);
+            }
+            log.debug("Uploaded {} bytes to {}", fileSz, remote);
+            return fileSz;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute PUT", e);
+        }
+    }
+
+    /**
+     * Requests checksums of blocks of the file.
+     *
+     * @param path      path to the file on the server
+     * @param blockSize preferred block size, 0 to let the server choose it
+     * @return checksums, file size is -1 if it is not a regular file
+     * @throws FtpClientException if request failed
+     */
+    public BlockSums getBlockSums(String path, int blockSize) throws FtpClientException {
+        try {
+            startRequest(RequestCode.RQ_BLOCKSUMS);
+            outputStream.writeUTF(path);
+            outputStream.writeInt(blockSize);
+            outputStream.flush();
+            val fileSz = inputStream.readLong();
+            val actualBlockSize = inputStream.readInt();
+            log.debug("Received file size {} and block size {}", fileSz, actualBlockSize);
+            val builder = BlockSums.builder().fileSize(fileSz).blockSize(actualBlockSize);
+            if (fileSz < 0) {
+                return builder.rolling(new int[0]).strong(new byte[0][]).build();
+            }
+            if (actualBlockSize <= 0 || (fileSz + actualBlockSize - 1) / actualBlockSize > MAX_ARRAY_SIZE) {
+                throw new IOException("Server chose invalid block size " + actualBlockSize);
+            }
+            val count = (int) ((fileSz + actualBlockSize - 1) / actualBlockSize);
+            final int[] rolling = new int[count];
+            final byte[][] strong = new byte[count][MD5_SIZE];
+            for (int i = 0; i < count; i++) {
+                rolling[i] = inputStream.readInt();
+                inputStream.readFully(strong[i]);
+            }
+            final byte[] fileHash = new byte[MD5_SIZE];
+            inputStream.readFully(fileHash);
+            return builder.rolling(rolling).strong(strong).fileHash(fileHash).build();
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to execute BLOCKSUMS", e);
+        }
+    }
+
+    /**
+     * Updates the local copy of the file, downloading only the blocks that are not found in it. The new version is
+     * assembled next to the local file and replaces it when it is complete, so the local file is never left
+     * half-updated. If there is no local file, the whole file is downloaded.
+     *
+     * @param path        path to the file on the server
+     * @param destination local copy of the file
+     * @return number of received bytes of the file
+     * @throws FtpClientException if the file does not exist, request failed or destination could not be written
+     */
+    public long syncTo(String path, Path destination) throws FtpClientException {
+        if (!Files.isRegularFile(destination)) {
+            // GET answers a missing file with an empty one, which must not be saved as its copy
+            if (getSize(path) < 0) {
+                throw new FtpClientException(path + " is not a file");
+            }
+            return getFile(path, destination);
+        }
+        val sums = getBlockSums(path, 0);
+        if (sums.getFileSize() < 0) {
+            throw new FtpClientException(path + " is not a file");
+        }
+        Path temp = null;
+        boolean replaced = false;
+        try {
+            long received;
+            try (FileChannel local = FileChannel.open(destination, StandardOpenOption.READ)) {
+                val offsets = BlockMatcher.match(sums, local);
+                val parent = destination.toAbsolutePath().getParent();
+                temp = Files.createTempFile(parent, destination.getFileName().toString(), ".part");
+                try (FileChannel result = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    received = assemble(path, sums, offsets, local, result);
+                }
+            }
+            if (!Arrays.equals(com.google.common.io.Files.hash(temp.toFile(), Hashing.md5()).asBytes(),
+                    sums.getFileHash())) {
+                // the file was changed on the server after its checksums were sent
+                log.debug("{} does not match the checksum, downloading it again", path);
+                received += getFile(path, temp);
+            }
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+            log.debug("{} bytes of {} were reused", sums.getFileSize() - received, path);
+            return received;
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to sync " + destination, e);
+        } finally {
+            if (temp != null && !replaced) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    log.warn("Failed to delete " + temp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the new version of the file: blocks found locally are copied, consecutive missing blocks are requested
+     * as a single range.
+     *
+     * @return number of received bytes
+     */
+    private long assemble(String path, BlockSums sums, long[] offsets, FileChannel local, FileChannel result)
+            throws IOException, FtpClientException {
+        val blockSize = (long) sums.getBlockSize();
+        val fileSz = sums.getFileSize();
+        long received = 0;
+        int i = 0;
+        while (i < offsets.length) {
+            int j = i + 1;
+            if (offsets[i] >= 0) {
+                while (j < offsets.length && offsets[j] == offsets[j - 1] + blockSize) {
+                    j++;
+                }
+                val count = Math.min(j * blockSize, fileSz) - i * blockSize;
+                for (long copied = 0; copied < count; ) {
+                    val sent = local.transferTo(offsets[i] + copied, count - copied, result);
+                    if (sent <= 0) {
+                        throw new IOException("Local file was truncated during sync");
+                    }
+                    copied += sent;
+                }
+            } else {
+                while (j < offsets.length && offsets[j] < 0) {
+                    j++;
+                }
+                val count = Math.min(j * blockSize, fileSz) - i * blockSize;
+                if (getRange(path, i * blockSize, count, result) != count) {
+                    throw new IOException("File was truncated on the server");
+                }
+                received += count;
+            }
+            i = j;
+        }
+        return received;
+    }
+
+    /**
+     * Sends GET or, if a codec is specified, GET_COMPRESSED and reads the header of the response.
+     * Codec chosen by the server is saved in {@link #responseCodec}.
+     *
+     * @return size of the file
+     */
+    private long requestFile(String path, int codecId) throws IOException {
+        if (codecId == Codecs.NONE) {
+            startRequest(RequestCode.RQ_GET);
+            outputStream.writeUTF(path);
+            responseCodec = null;
+        } else {
+            startRequest(RequestCode.RQ_GET_COMPRESSED);
+            outputStream.writeUTF(path);
+            outputStream.writeInt(codecId);
+        }
+        outputStream.flush();
+        val len = inputStream.readLong();
+        log.debug("Received file size: {}", len);
+        if (codecId != Codecs.NONE) {
+            val chosen = inputStream.readInt();
+            log.debug("Server chose codec {}", chosen);
+            if (chosen != Codecs.NONE && chosen != codecId) {
+                throw new IOException("Server chose unexpected codec " + chosen);
+            }
+            responseCodec = chosen == Codecs.NONE ? null : codec(chosen);
+        }
+        return len;
+    }
+
+    /**
+     * Reads the file that follows the response header, decompressing it if needed.
+     */
+    private void receiveFile(long len, WritableByteChannel sink) throws IOException {
+        if (responseCodec == null) {
+            receive(len, sink);
+            return;
+        }
+        byte[] raw = new byte[0];
+        byte[] compressed = new byte[0];
+        long remaining = len;
+        while (remaining > 0) {
+            val rawLength = inputStream.readInt();
+            val compressedLength = inputStream.readInt();
+            if (rawLength <= 0 || rawLength > remaining || compressedLength <= 0 || compressedLength > rawLength) {
+                throw new IOException("Malformed compressed chunk");
+            }
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+                compressed = new byte[rawLength];
+            }
+            if (compressedLength == rawLength) {
+                inputStream.readFully(raw, 0, rawLength);
+            } else {
+                inputStream.readFully(compressed, 0, compressedLength);
+                responseCodec.decompress(compressed, compressedLength, raw, rawLength);
+            }
+            if (sink != null) {
+                val chunk = ByteBuffer.wrap(raw, 0, rawLength);
+                while (chunk.hasRemaining()) {
+                    sink.write(chunk);
+                }
+            }
+            remaining -= rawLength;
+        }
+    }
+
+    private Codec codec(int codecId) {
+        return codecs.computeIfAbsent(codecId, Codecs::create);
+    }
+
+    private void startRequest(int requestCode) throws IOException {
+        if (pendingResponse != null) {
+            pendingResponse.skipRest();
+        }
+        outputStream.writeInt(requestCode);
+    }
+
+    /**
+     * Reads exactly len bytes of a response and writes them to the sink. If the sink is null, data is discarded.
+     */
+    private void receive(long len, WritableByteChannel sink) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(len, 1))];
+        long remaining = len;
+        while (remaining > 0) {
+            val read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Connection closed with " + remaining + " bytes left");
+            }
+            if (sink != null) {
+                final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    sink.write(chunk);
+                }
+            }
+            remaining -= read;
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        outputStream.writeInt(RequestCode.RQ_DISCONNECT);
-        outputStream.close();
-        inputStream.close();
-        clientSocket.close();
-        log.debug("disconnected");
+        try {
+            startRequest(RequestCode.RQ_DISCONNECT);
+            outputStream.close();
+            inputStream.close();
+        } finally {
+            // the socket must be released even if the connection is already broken
+            clientSocket.close();
+            codecs.values().forEach(Codec::close);
+            log.debug("disconnected");
+        }
+    }
+
+    private interface PendingResponse {
+        void skipRest() throws IOException;
+    }
+
+    /**
+     * Reads frames of a streamed listing on demand. I/O errors are rethrown as {@link UncheckedIOException}.
+     */
+    private final class ListingIterator implements Iterator<FileRecord>, PendingResponse {
+        private int leftInFrame;
+        private boolean finished;
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!finished && leftInFrame == 0) {
+                    leftInFrame = inputStream.readInt();
+                    log.debug("Received listing frame of {} entries", leftInFrame);
+                    if (leftInFrame == 0) {
+                        finished = true;
+                        pendingResponse = null;
+                    }
+                }
+                return !finished;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read listing", e);
+            }
+        }
+
+        @Override
+        public FileRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                --leftInFrame;
+                return FileRecord.builder()
+                        .name(inputStream.readUTF())
+                        .directory(inputStream.readBoolean())
+                        .size(inputStream.readLong())
+                        .lastModified(inputStream.readLong())
+                        .build();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read listing", e);
+            }
+        }
+
+        @Override
+        public void skipRest() throws IOException {
+            try {
+                while (hasNext()) {
+                    next();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Reads files of a batch on demand. I/O errors are rethrown as {@link UncheckedIOException}.
+     */
+    private final class BatchIterator implements Iterator<FileContent>, PendingResponse {
+        private final Iterator<String> paths;
+
+        private BatchIterator(List<String> paths) {
+            this.paths = paths.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return paths.hasNext();
+        }
+
+        @Override
+        public FileContent next() {
+            val path = paths.next();
+            if (!paths.hasNext()) {
+                pendingResponse = null;
+            }
+            try {
+                val status = inputStream.readByte();
+                val len = inputStream.readLong();
+                log.debug("Received {} status {} and size {}", new Object[]{path, status, len});
+                if (len > MAX_ARRAY_SIZE) {
+                    receive(len, null);
+                    throw new IOException("File is too large to be loaded in memory: " + len + " bytes");
+                }
+                final byte[] data = new byte[(int) len];
+                inputStream.readFully(data);
+                return FileContent.builder()
+                        .path(path)
+                        .found(status == FileStatus.OK)
+                        .content(data)
+                        .build();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + path, e);
+            }
+        }
+
+        @Override
+        public void skipRest() throws IOException {
+            while (paths.hasNext()) {
+                paths.next();
+                inputStream.readByte();
+                receive(inputStream.readLong(), null);
+            }
+            pendingResponse = null;
+        }
     }
 }
@@ -0,0 +1,311 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections to servers open between operations, so that an operation does not pay for a new TCP connection
+ * and the server does not start a new handler for it. At most a fixed number of connections to every host:port exist
+ * at once, and borrowers wait for a free one when the limit is reached.
+ * <p>
+ * Connections that stay idle longer than the idle timeout are closed in background. A connection that has been idle
+ * for a while is checked with NOOP before it is lent, so connections closed by the server are not handed out.
+ *
+ * @author antonpp
+ * @since 05/02/2017
+ */
+@Slf4j
+public class FtpClientPool implements Closeable {
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+    private static final long DEFAULT_VALIDATE_AFTER_MILLIS = 5_000;
+    private static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30_000;
+
+    private final int maxPerHost;
+    private final long idleTimeoutNanos;
+    private final long validateAfterNanos;
+    private final long borrowTimeoutNanos;
+    private final Map<String, HostPool> pools = new HashMap<>();
+    /**
+     * Pools of borrowed connections, connections are compared by identity.
+     */
+    private final Map<FtpClient, HostPool> lent = new IdentityHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private boolean closed;
+
+    /**
+     * Creates a pool with default timeouts.
+     *
+     * @param maxPerHost maximum number of connections to one host:port
+     */
+    public FtpClientPool(int maxPerHost) {
+        this(maxPerHost, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_VALIDATE_AFTER_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxPerHost          maximum number of connections to one host:port
+     * @param idleTimeoutMillis   idle connections are closed after this time
+     * @param validateAfterMillis connections idle for longer than this are checked before they are lent
+     * @param borrowTimeoutMillis how long to wait for a free connection when the limit is reached
+     */
+    public FtpClientPool(int maxPerHost, long idleTimeoutMillis, long validateAfterMillis, long borrowTimeoutMillis) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("At least one connection per host is required");
+        }
+        if (idleTimeoutMillis <= 0 || validateAfterMillis < 0 || borrowTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive, other timeouts must not be negative");
+        }
+        this.maxPerHost = maxPerHost;
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+        borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "ftp-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(FtpClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.debug("Failed to close connection", e);
+        }
+    }
+
+    /**
+     * Takes an idle connection to the server or opens a new one. The connection must be given back with
+     * {@link #release} or {@link #invalidate}.
+     *
+     * @throws FtpClientException if the server is not available, the pool is closed or no connection became free
+     *                            in time
+     */
+    public FtpClient borrow(String host, int port) throws FtpClientException {
+        final long deadline = System.nanoTime() + borrowTimeoutNanos;
+        while (true) {
+            HostPool pool;
+            final Idle idle;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new FtpClientException("Pool is closed");
+                    }
+                    // looked up every time, since the evictor drops pools without connections
+                    pool = pools.computeIfAbsent(host + ":" + port, key -> new HostPool(host, port));
+                    if (!pool.idle.isEmpty() || pool.size < maxPerHost) {
+                        break;
+                    }
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        throw new FtpClientException("No free connection to " + host + ":" + port);
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new FtpClientException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                idle = pool.idle.pollFirst();
+                if (idle == null) {
+                    // the slot is taken before connecting, so the limit holds while the connection is opened
+                    pool.size++;
+                }
+            }
+            final FtpClient client = idle == null ? connect(pool) : validate(pool, idle);
+            if (client != null) {
+                synchronized (this) {
+                    lent.put(client, pool);
+                }
+                return client;
+            }
+        }
+    }
+
+    /**
+     * Gives back a borrowed connection, so that it could be reused.
+     *
+     * @throws IllegalArgumentException if the connection was not borrowed from this pool
+     */
+    public void release(FtpClient client) {
+        synchronized (this) {
+            final HostPool pool = takeBack(client);
+            if (!closed) {
+                pool.idle.addFirst(new Idle(client, System.nanoTime()));
+                notifyAll();
+                return;
+            }
+            pool.size--;
+        }
+        closeQuietly(client);
+    }
+
+    /**
+     * Closes a borrowed connection that must not be reused, e.g. after a failed request.
+     *
+     * @throws IllegalArgumentException if the connection was not borrowed from this pool
+     */
+    public void invalidate(FtpClient client) {
+        synchronized (this) {
+            takeBack(client).size--;
+            notifyAll();
+        }
+        closeQuietly(client);
+    }
+
+    /**
+     * Runs the function with a pooled connection. If the function fails, the connection is closed, otherwise it
+     * is given back to the pool. The result must not read the connection afterwards, so lazy iterators should be
+     * consumed inside the function.
+     *
+     * @return result of the function
+     * @throws FtpClientException if no connection could be borrowed or the function failed
+     */
+    public <T> T withClient(String host, int port, ClientFunction<T> function) throws FtpClientException {
+        final FtpClient client = borrow(host, port);
+        final T result;
+        try {
+            result = function.apply(client);
+        } catch (FtpClientException | RuntimeException e) {
+            invalidate(client);
+            throw e;
+        }
+        release(client);
+        return result;
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        final List<FtpClient> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (HostPool pool : pools.values()) {
+                pool.idle.forEach(idle -> toClose.add(idle.client));
+                pool.size -= pool.idle.size();
+                pool.idle.clear();
+            }
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        toClose.forEach(FtpClientPool::closeQuietly);
+    }
+
+    private HostPool takeBack(FtpClient client) {
+        final HostPool pool = lent.remove(client);
+        if (pool == null) {
+            throw new IllegalArgumentException("Connection was not borrowed from this pool");
+        }
+        return pool;
+    }
+
+    private FtpClient connect(HostPool pool) throws FtpClientException {
+        try {
+            return new FtpClient(pool.host, pool.port);
+        } catch (FtpClientException e) {
+            synchronized (this) {
+                pool.size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the connection if it is alive, null if it was broken and closed
+     */
+    private FtpClient validate(HostPool pool, Idle idle) {
+        if (System.nanoTime() - idle.since < validateAfterNanos) {
+            return idle.client;
+        }
+        try {
+            idle.client.noop();
+            return idle.client;
+        } catch (FtpClientException e) {
+            log.debug("Idle connection to {}:{} is broken", pool.host, pool.port);
+            synchronized (this) {
+                pool.size--;
+                notifyAll();
+            }
+            closeQuietly(idle.client);
+            return null;
+        }
+    }
+
+    private void evictIdle() {
+        final List<FtpClient> toClose = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final Iterator<HostPool> pools = this.pools.values().iterator();
+            while (pools.hasNext()) {
+                final HostPool pool = pools.next();
+                // connections are reused from the head, so the longest idle ones are at the tail
+                while (!pool.idle.isEmpty() && now - pool.idle.peekLast().since > idleTimeoutNanos) {
+                    toClose.add(pool.idle.pollLast().client);
+                    pool.size--;
+                }
+                if (pool.size == 0) {
+                    pools.remove();
+                }
+            }
+        }
+        if (!toClose.isEmpty()) {
+            log.debug("Closing {} idle connections", toClose.size());
+        }
+        toClose.forEach(FtpClientPool::closeQuietly);
+    }
+
+    /**
+     * Operation made with a pooled connection.
+     */
+    public interface ClientFunction<T> {
+        T apply(FtpClient client) throws FtpClientException;
+    }
+
+    private static final class HostPool {
+        private final String host;
+        private final int port;
+        /**
+         * Most recently used connections first.
+         */
+        private final Deque<Idle> idle = new ArrayDeque<>();
+        /**
+         * Number of idle, borrowed and being opened connections.
+         */
+        private int size;
+
+        private HostPool(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private static final class Idle {
+        private final FtpClient client;
+        private final long since;
+
+        private Idle(FtpClient client, long since) {
+            this.client = client;
+            this.since = since;
+        }
+    }
+}
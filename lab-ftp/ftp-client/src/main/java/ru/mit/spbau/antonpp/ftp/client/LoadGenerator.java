@@ -0,0 +1,165 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line tool that puts a server under load of many concurrent users. Every user is a {@link VirtualClient}
+ * with its own connection that sends a random mix of GET and LIST requests. Users are started evenly during the ramp
+ * up, requests sent before it ends are not measured. When the run is over, throughput and latency percentiles of
+ * every request type are printed.
+ *
+ * @author antonpp
+ * @since 04/02/2017
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+    /**
+     * Time given to users to receive their last responses before their connections are closed.
+     */
+    private static final long GRACE_PERIOD_SECONDS = 10;
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Parameter(names = {"--host"})
+    private String host = "localhost";
+
+    @Parameter(names = {"-p", "--port"})
+    private int port = 12345;
+
+    @Parameter(names = {"-c", "--clients"}, description = "Number of concurrent users")
+    private int clients = 10;
+
+    @Parameter(names = {"-d", "--duration"}, description = "Measured time in seconds")
+    private int duration = 30;
+
+    @Parameter(names = {"--ramp-up"}, description = "Seconds during which users are started, not measured")
+    private int rampUp = 5;
+
+    @Parameter(names = {"--think-time"}, description = "Milliseconds between consecutive requests of a user, " +
+            "latencies of requests delayed by slow responses are counted from the moment they were due")
+    private int thinkTime = 100;
+
+    @Parameter(names = {"--get-ratio"}, description = "Part of requests that are GETs, others are LISTs")
+    private double getRatio = 0.5;
+
+    @Parameter(names = {"--list"}, description = "Directory listed by LIST requests")
+    private String listDir = ".";
+
+    @Parameter(names = {"--get"}, description = "Files downloaded by GET requests, chosen randomly")
+    private List<String> getFiles = new ArrayList<>();
+
+    @Parameter(names = {"-h", "--help"}, description = "Print this help message and exit", help = true)
+    private boolean help;
+
+    public static void main(String[] args) throws InterruptedException {
+        val generator = new LoadGenerator();
+        val jc = new JCommander(generator);
+        try {
+            jc.parse(args);
+            generator.validate();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            jc.usage();
+            System.exit(1);
+        }
+        if (generator.help) {
+            jc.usage();
+        } else {
+            generator.run();
+        }
+    }
+
+    private static void printRow(String type, Histogram latency, long errors, double seconds) {
+        System.out.printf("%-6s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", type, latency.getTotalCount(), errors,
+                seconds > 0 ? latency.getTotalCount() / seconds : 0,
+                latency.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                latency.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                latency.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                latency.getMaxValue() / NANOS_PER_MILLI);
+    }
+
+    private void validate() {
+        if (clients < 1 || duration < 1 || rampUp < 0 || thinkTime < 1) {
+            throw new IllegalArgumentException("Number of clients and times must be positive");
+        }
+        if (getRatio < 0 || getRatio > 1) {
+            throw new IllegalArgumentException("GET ratio must be between 0 and 1");
+        }
+        if (getRatio > 0 && getFiles.isEmpty()) {
+            throw new IllegalArgumentException("Files for GET requests must be specified");
+        }
+    }
+
+    private void run() throws InterruptedException {
+        val start = System.nanoTime();
+        val rampUpNanos = TimeUnit.SECONDS.toNanos(rampUp);
+        val measureFrom = start + rampUpNanos;
+        val settings = VirtualClient.Settings.builder()
+                .thinkTimeNanos(TimeUnit.MILLISECONDS.toNanos(thinkTime))
+                .getRatio(getRatio)
+                .listDir(listDir)
+                .getFiles(getFiles)
+                .measureFromNanos(measureFrom)
+                .endNanos(measureFrom + TimeUnit.SECONDS.toNanos(duration))
+                .build();
+
+        System.out.printf("Running %d clients for %d s after %d s of ramp up...%n", clients, duration, rampUp);
+        final List<VirtualClient> users = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            val user = new VirtualClient(host, port, settings, start + rampUpNanos * i / clients, i);
+            users.add(user);
+            executor.execute(user);
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(rampUp + duration + GRACE_PERIOD_SECONDS, TimeUnit.SECONDS)) {
+            log.warn("Some requests did not complete in time, closing connections");
+            users.forEach(VirtualClient::stop);
+            // histograms are not thread safe, they are read only after every user has finished
+            while (!executor.awaitTermination(GRACE_PERIOD_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Waiting for users to finish");
+            }
+        }
+        report(users);
+    }
+
+    private void report(List<VirtualClient> users) {
+        val get = new Histogram(SIGNIFICANT_DIGITS);
+        val list = new Histogram(SIGNIFICANT_DIGITS);
+        long getErrors = 0;
+        long listErrors = 0;
+        long measuredFrom = Long.MAX_VALUE;
+        long measuredTo = Long.MIN_VALUE;
+        for (val user : users) {
+            measuredFrom = Math.min(measuredFrom, user.getMeasuredFromNanos());
+            measuredTo = Math.max(measuredTo, user.getMeasuredToNanos());
+            get.add(user.getGetLatency());
+            list.add(user.getListLatency());
+            getErrors += user.getGetErrors();
+            listErrors += user.getListErrors();
+        }
+        val total = new Histogram(SIGNIFICANT_DIGITS);
+        total.add(get);
+        total.add(list);
+        // the configured duration is not used: the last responses may arrive after it ends
+        val seconds = measuredFrom < measuredTo ? (measuredTo - measuredFrom) / (double) TimeUnit.SECONDS.toNanos(1) : 0;
+
+        System.out.printf("Measured %.1f s%n", seconds);
+        System.out.printf("%-6s %10s %8s %10s %10s %10s %10s %10s%n",
+                "type", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        printRow("GET", get, getErrors, seconds);
+        printRow("LIST", list, listErrors, seconds);
+        printRow("total", total, getErrors + listErrors, seconds);
+    }
+}
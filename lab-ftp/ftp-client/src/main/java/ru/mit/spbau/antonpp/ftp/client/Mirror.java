@@ -0,0 +1,200 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a directory tree from the server. Directories are walked with streamed listings, which carry sizes and
+ * modification times, and files are downloaded concurrently over a bounded pool of connections. A file is skipped
+ * if the local copy has the same size and modification time, downloaded files get the modification time of
+ * the remote ones, so repeated mirroring downloads only changed files.
+ *
+ * @author antonpp
+ * @since 09/02/2017
+ */
+@Slf4j
+public class Mirror {
+
+    private static final String SEPARATOR = "/";
+
+    private final String host;
+    private final int port;
+    private final int connections;
+
+    /**
+     * @param host        server host
+     * @param port        server port
+     * @param connections maximum number of concurrent connections
+     */
+    public Mirror(String host, int port, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+    }
+
+    private static String resolve(String dir, String name) {
+        return dir.endsWith(SEPARATOR) ? dir + name : dir + SEPARATOR + name;
+    }
+
+    private static boolean isUpToDate(Path local, FileRecord remote) throws IOException {
+        return Files.isRegularFile(local, LinkOption.NOFOLLOW_LINKS)
+                && Files.size(local) == remote.getSize()
+                && Files.getLastModifiedTime(local).toMillis() == remote.getLastModified();
+    }
+
+    /**
+     * Downloads all files of the remote directory and its subdirectories that differ from their local copies.
+     * Local files that do not exist on the server are left untouched.
+     *
+     * @param remoteDir directory on the server
+     * @param localDir  where the tree is copied, it is created if needed
+     * @param callback  receives progress updates, it is called from several threads
+     * @return what was done
+     * @throws FtpClientException if any listing or download failed or local files could not be written
+     */
+    public Summary mirror(String remoteDir, Path localDir, ProgressCallback callback) throws FtpClientException {
+        val start = System.nanoTime();
+        val progress = new Progress(callback);
+        int skipped = 0;
+        // listings share connections with downloads: a server with a thread per connection may serve no more
+        // connections than it has threads, extra ones would wait until others are closed
+        try (FtpClientPool pool = new FtpClientPool(connections)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(connections);
+            try {
+                final List<Future<?>> downloads = new ArrayList<>();
+                final Deque<String> remoteDirs = new ArrayDeque<>();
+                final Deque<Path> localDirs = new ArrayDeque<>();
+                remoteDirs.add(remoteDir);
+                localDirs.add(localDir);
+                while (!remoteDirs.isEmpty()) {
+                    val remote = remoteDirs.poll();
+                    val local = localDirs.poll();
+                    Files.createDirectories(local);
+                    for (val entry : list(pool, remote)) {
+                        val name = entry.getName();
+                        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains(SEPARATOR)) {
+                            log.warn("Skipping entry {} of {}", name, remote);
+                            continue;
+                        }
+                        val remoteChild = resolve(remote, name);
+                        val localChild = local.resolve(name);
+                        if (entry.isDirectory()) {
+                            remoteDirs.add(remoteChild);
+                            localDirs.add(localChild);
+                        } else if (isUpToDate(localChild, entry)) {
+                            skipped++;
+                        } else {
+                            progress.queued();
+                            downloads.add(executor.submit(() -> {
+                                download(pool, remoteChild, localChild, entry, progress);
+                                return null;
+                            }));
+                        }
+                    }
+                }
+                for (val download : downloads) {
+                    download.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save files at " + localDir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FtpClientException("Mirroring was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FtpClientException) {
+                throw (FtpClientException) e.getCause();
+            }
+            throw new FtpClientException("Failed to download file", e.getCause());
+        }
+        return new Summary(progress.files.get(), skipped, progress.bytes.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private List<FileRecord> list(FtpClientPool pool, String dir) throws FtpClientException {
+        try {
+            return pool.withClient(host, port, client -> {
+                final List<FileRecord> entries = new ArrayList<>();
+                client.listFilesStreamed(dir).forEachRemaining(entries::add);
+                return entries;
+            });
+        } catch (UncheckedIOException e) {
+            throw new FtpClientException("Failed to list " + dir, e.getCause());
+        }
+    }
+
+    private void download(FtpClientPool pool, String remote, Path local, FileRecord entry, Progress progress)
+            throws FtpClientException, IOException {
+        val size = pool.withClient(host, port, client -> client.getFile(remote, local));
+        // the time is set last, so an interrupted download is not taken for an up to date file
+        Files.setLastModifiedTime(local, FileTime.fromMillis(entry.getLastModified()));
+        log.debug("Downloaded {} ({} bytes)", remote, size);
+        progress.downloaded(size);
+    }
+
+    public interface ProgressCallback {
+        /**
+         * @param downloadedFiles number of files downloaded so far
+         * @param queuedFiles     number of files found to be downloaded so far
+         * @param downloadedBytes size of the downloaded files
+         */
+        void progress(int downloadedFiles, int queuedFiles, long downloadedBytes);
+    }
+
+    /**
+     * Result of mirroring.
+     */
+    @Data
+    public static final class Summary {
+        private final int downloadedFiles;
+        private final int skippedFiles;
+        private final long downloadedBytes;
+        private final long elapsedMillis;
+    }
+
+    private static final class Progress {
+        private final ProgressCallback callback;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Progress(ProgressCallback callback) {
+            this.callback = callback;
+        }
+
+        private void queued() {
+            queued.incrementAndGet();
+        }
+
+        private void downloaded(long size) {
+            val totalBytes = bytes.addAndGet(size);
+            callback.progress(files.incrementAndGet(), queued.get(), totalBytes);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of multiplexed protocol v2 (see {@link RequestCode#RQ_UPGRADE_V2}). Every request gets an id and the server
+ * interleaves responses of all requests in flight, so small requests are not blocked by a large download made
+ * before them. Responses are read by a dedicated thread, which also completes the futures. The number of requests in
+ * flight is bounded, a request waits until a response is finished if there are too many.
+ *
+ * @author antonpp
+ * @since 29/01/2017
+ */
+@Slf4j
+public class MultiplexedFtpClient implements Closeable {
+
+    /**
+     * Responses to requests in flight are collected in memory, so their number is bounded.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final int PROTOCOL_VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CLOSE_TIMEOUT_SECONDS = 10;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int REJECTED = -1;
+
+    private final Socket clientSocket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final Map<Integer, Stream<?>> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Semaphore inFlight;
+    private final ExecutorService readService = Executors.newSingleThreadExecutor();
+    private volatile IOException failure;
+    private volatile boolean isClosed;
+
+    /**
+     * Connects to the server and negotiates protocol v2.
+     *
+     * @throws FtpClientException if connection failed or the server does not support protocol v2
+     */
+    public MultiplexedFtpClient(String host, int port) throws FtpClientException {
+        this(host, port, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Connects to the server and negotiates protocol v2.
+     *
+     * @param maxInFlight maximum number of requests whose responses are not received yet
+     * @throws FtpClientException if connection failed or the server does not support protocol v2
+     */
+    public MultiplexedFtpClient(String host, int port, int maxInFlight) throws FtpClientException {
+        inFlight = new Semaphore(maxInFlight);
+        try {
+            clientSocket = new Socket(host, port);
+            inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE));
+            outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        } catch (IOException e) {
+            throw new FtpClientException("Could not connect to specified host", e);
+        }
+        try {
+            outputStream.writeInt(RequestCode.RQ_UPGRADE_V2);
+            outputStream.flush();
+            val version = inputStream.readInt();
+            if (version != PROTOCOL_VERSION) {
+                throw new IOException("Unexpected protocol version " + version);
+            }
+        } catch (IOException e) {
+            try {
+                clientSocket.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw new FtpClientException("Server does not support protocol v2", e);
+        }
+        readService.execute(this::readFrames);
+        log.debug("connected");
+    }
+
+    public CompletableFuture<Map<String, Boolean>> listFiles(String dir) {
+        return send(RequestCode.RQ_LIST, dir, new BufferingConsumer<>(dis -> {
+            val result = new HashMap<String, Boolean>();
+            val len = dis.readInt();
+            for (int i = 0; i < len; i++) {
+                result.put(dis.readUTF(), dis.readBoolean());
+            }
+            return result;
+        }));
+    }
+
+    public CompletableFuture<byte[]> getFile(String path) {
+        return send(RequestCode.RQ_GET, path, new BufferingConsumer<>(dis -> {
+            val len = dis.readLong();
+            final byte[] data = new byte[(int) len];
+            dis.readFully(data);
+            return data;
+        }));
+    }
+
+    /**
+     * Streams the file to the sink as its frames arrive. The sink is written from the reading thread.
+     *
+     * @return future with number of received bytes
+     */
+    public CompletableFuture<Long> getFile(String path, WritableByteChannel sink) {
+        return send(RequestCode.RQ_GET, path, new SinkConsumer(sink));
+    }
+
+    /**
+     * Ends the session after all responses to the requests made before are received.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (outputStream) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (failure == null) {
+                outputStream.writeInt(nextId.getAndIncrement());
+                outputStream.writeInt(RequestCode.RQ_DISCONNECT);
+                outputStream.flush();
+            }
+        }
+        readService.shutdown();
+        try {
+            if (!readService.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Responses were not received in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clientSocket.close();
+            readService.shutdownNow();
+        }
+        log.debug("disconnected");
+    }
+
+    private <T> CompletableFuture<T> send(int requestCode, String argument, ResponseConsumer<T> consumer) {
+        val stream = new Stream<T>(consumer);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stream.future.completeExceptionally(e);
+            return stream.future;
+        }
+        synchronized (outputStream) {
+            val id = nextId.getAndIncrement();
+            boolean isQueued = false;
+            try {
+                if (isClosed) {
+                    throw new IOException("Client is closed");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                streams.put(id, stream);
+                isQueued = true;
+                if (failure != null) {
+                    // the reader failed after the check above and might have failed streams before this one
+                    throw failure;
+                }
+                outputStream.writeInt(id);
+                outputStream.writeInt(requestCode);
+                outputStream.writeUTF(argument);
+                outputStream.flush();
+            } catch (IOException e) {
+                // the permit of a queued stream is returned by the one who removes it, it may be the reader
+                if (!isQueued || streams.remove(id, stream)) {
+                    inFlight.release();
+                }
+                stream.future.completeExceptionally(new FtpClientException("Failed to send request", e));
+            }
+        }
+        return stream.future;
+    }
+
+    private void readFrames() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                val id = inputStream.readInt();
+                val length = inputStream.readInt();
+                val stream = streams.get(id);
+                if (stream == null) {
+                    throw new IOException("Frame of unknown request " + id);
+                }
+                if (length == 0) {
+                    remove(id);
+                    stream.finish();
+                    continue;
+                }
+                if (length == REJECTED) {
+                    // the server ends the session after it
+                    remove(id);
+                    stream.future.completeExceptionally(
+                            new FtpClientException("Request is not accepted in protocol v2"));
+                    continue;
+                }
+                if (length < 0) {
+                    throw new IOException("Malformed frame of request " + id);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[length];
+                }
+                inputStream.readFully(buffer, 0, length);
+                stream.accept(buffer, length);
+            }
+        } catch (IOException e) {
+            if (!streams.isEmpty() || !isClosed) {
+                log.error("Connection failed", e);
+            }
+            // set before the streams are failed, so a stream added after that sees it
+            failure = e;
+            for (val id : streams.keySet()) {
+                val stream = remove(id);
+                if (stream != null) {
+                    stream.future.completeExceptionally(new FtpClientException("Connection failed", e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the stream of the finished request and returns its permit.
+     */
+    private Stream<?> remove(int id) {
+        val stream = streams.remove(id);
+        if (stream != null) {
+            inFlight.release();
+        }
+        return stream;
+    }
+
+    private interface ResponseReader<T> {
+        T read(DataInputStream dis) throws IOException;
+    }
+
+    /**
+     * Receives payload of one response frame by frame.
+     */
+    private interface ResponseConsumer<T> {
+        void accept(byte[] data, int length) throws IOException;
+
+        T finish() throws IOException;
+    }
+
+    private static final class Stream<T> {
+        private final ResponseConsumer<T> consumer;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Stream(ResponseConsumer<T> consumer) {
+            this.consumer = consumer;
+        }
+
+        /**
+         * Failure of a consumer does not break the connection: the rest of the response is skipped.
+         */
+        private void accept(byte[] data, int length) {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                consumer.accept(data, length);
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(new FtpClientException("Failed to handle response", e));
+            }
+        }
+
+        private void finish() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(consumer.finish());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(new FtpClientException("Failed to handle response", e));
+            }
+        }
+    }
+
+    /**
+     * Collects the whole response and then parses it.
+     */
+    private static final class BufferingConsumer<T> implements ResponseConsumer<T> {
+        private final ResponseReader<T> reader;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private BufferingConsumer(ResponseReader<T> reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void accept(byte[] data, int length) throws IOException {
+            if (bytes.size() + (long) length > MAX_ARRAY_SIZE) {
+                throw new IOException("Response is too large to be loaded in memory");
+            }
+            bytes.write(data, 0, length);
+        }
+
+        @Override
+        public T finish() throws IOException {
+            return reader.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        }
+    }
+
+    /**
+     * Reads size of the file from the first bytes of GET response and writes the rest to the sink.
+     */
+    private static final class SinkConsumer implements ResponseConsumer<Long> {
+        private final WritableByteChannel sink;
+        private final ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        private long received;
+
+        private SinkConsumer(WritableByteChannel sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(byte[] data, int length) throws IOException {
+            val chunk = ByteBuffer.wrap(data, 0, length);
+            while (header.hasRemaining() && chunk.hasRemaining()) {
+                header.put(chunk.get());
+            }
+            received += chunk.remaining();
+            while (chunk.hasRemaining()) {
+                sink.write(chunk);
+            }
+        }
+
+        @Override
+        public Long finish() throws IOException {
+            if (header.hasRemaining() || header.getLong(0) != received) {
+                throw new IOException("Response was truncated");
+            }
+            return received;
+        }
+    }
+}
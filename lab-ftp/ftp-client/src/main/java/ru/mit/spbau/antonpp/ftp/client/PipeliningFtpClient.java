@@ -0,0 +1,218 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client that keeps many requests in flight on a single connection. Requests are written as soon as they are made,
+ * without waiting for responses to the previous ones; the server answers them in order, so a dedicated thread reads
+ * responses and completes futures in the order requests were sent.
+ * <p>
+ * Futures are completed on the reading thread, heavy callbacks should use the async variants of
+ * {@link CompletableFuture} methods.
+ *
+ * @author antonpp
+ * @since 27/01/2017
+ */
+@Slf4j
+public class PipeliningFtpClient implements Closeable {
+
+    /**
+     * Responses to requests in flight are not read yet and may occupy memory, so their number is bounded.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CLOSE_TIMEOUT_SECONDS = 10;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Socket clientSocket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final BlockingQueue<PendingRequest<?>> pending = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final ExecutorService readService = Executors.newSingleThreadExecutor();
+    private volatile IOException failure;
+    private boolean isClosed;
+
+    public PipeliningFtpClient(String host, int port) throws FtpClientException {
+        this(host, port, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public PipeliningFtpClient(String host, int port, int maxInFlight) throws FtpClientException {
+        try {
+            clientSocket = new Socket(host, port);
+            inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE));
+            outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        } catch (IOException e) {
+            throw new FtpClientException("Could not connect to specified host", e);
+        }
+        inFlight = new Semaphore(maxInFlight);
+        readService.execute(this::readResponses);
+        log.debug("connected");
+    }
+
+    public CompletableFuture<Map<String, Boolean>> listFiles(String dir) {
+        return send(RequestCode.RQ_LIST, dir, dis -> {
+            val result = new HashMap<String, Boolean>();
+            val len = dis.readInt();
+            for (int i = 0; i < len; i++) {
+                result.put(dis.readUTF(), dis.readBoolean());
+            }
+            return result;
+        });
+    }
+
+    public CompletableFuture<byte[]> getFile(String path) {
+        return send(RequestCode.RQ_GET, path, dis -> {
+            val len = dis.readLong();
+            if (len > MAX_ARRAY_SIZE) {
+                // this response could not be skipped without reading it, so the connection is lost anyway
+                throw new IOException("File is too large to be loaded in memory: " + len + " bytes");
+            }
+            final byte[] data = new byte[(int) len];
+            dis.readFully(data);
+            return data;
+        });
+    }
+
+    /**
+     * Sends DISCONNECT after all requests made before and waits until their responses are received.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (outputStream) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (failure == null) {
+                outputStream.writeInt(RequestCode.RQ_DISCONNECT);
+                outputStream.flush();
+            }
+            pending.add(PendingRequest.DISCONNECT);
+        }
+        readService.shutdown();
+        try {
+            if (!readService.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Responses were not received in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clientSocket.close();
+            readService.shutdownNow();
+        }
+        log.debug("disconnected");
+    }
+
+    private <T> CompletableFuture<T> send(int requestCode, String argument, ResponseReader<T> reader) {
+        val request = new PendingRequest<T>(reader);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(e);
+            return request.future;
+        }
+        synchronized (outputStream) {
+            try {
+                if (isClosed) {
+                    throw new IOException("Client is closed");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                outputStream.writeInt(requestCode);
+                outputStream.writeUTF(argument);
+                outputStream.flush();
+                // request is queued under the same lock, so the queue order is the order on the wire
+                pending.add(request);
+                if (failure != null) {
+                    // the reader failed after the check above and might have failed queued requests before this one
+                    failAll(failure);
+                }
+            } catch (IOException e) {
+                inFlight.release();
+                request.future.completeExceptionally(new FtpClientException("Failed to send request", e));
+            }
+        }
+        return request.future;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                val request = pending.take();
+                if (request == PendingRequest.DISCONNECT) {
+                    return;
+                }
+                try {
+                    request.complete(inputStream);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Connection failed", e);
+            // set before the queue is drained, so a request queued after that sees it
+            failure = e;
+            failAll(e);
+        } catch (InterruptedException e) {
+            failAll(new IOException("Client was closed", e));
+        }
+    }
+
+    private void failAll(IOException cause) {
+        PendingRequest<?> request;
+        while ((request = pending.poll()) != null) {
+            if (request == PendingRequest.DISCONNECT) {
+                continue;
+            }
+            request.future.completeExceptionally(new FtpClientException("Connection failed", cause));
+            inFlight.release();
+        }
+    }
+
+    private interface ResponseReader<T> {
+        T read(DataInputStream dis) throws IOException;
+    }
+
+    private static final class PendingRequest<T> {
+        private static final PendingRequest<Void> DISCONNECT = new PendingRequest<>(dis -> null);
+
+        private final ResponseReader<T> reader;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private PendingRequest(ResponseReader<T> reader) {
+            this.reader = reader;
+        }
+
+        private void complete(DataInputStream dis) throws IOException {
+            try {
+                future.complete(reader.read(dis));
+            } catch (IOException e) {
+                future.completeExceptionally(new FtpClientException("Failed to read response", e));
+                throw e;
+            }
+        }
+    }
+}
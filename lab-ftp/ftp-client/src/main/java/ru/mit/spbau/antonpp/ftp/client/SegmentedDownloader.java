@@ -0,0 +1,233 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a single file over several connections at once. The file is split into byte ranges, one per connection,
+ * and every range is written directly to its place in a preallocated local file. A connection that has finished its
+ * range takes over the second half of the largest range left, so slow connections do not delay the whole download.
+ *
+ * @author antonpp
+ * @since 22/01/2017
+ */
+@Slf4j
+public class SegmentedDownloader {
+
+    /**
+     * Ranges are requested in chunks of this size, so a range could be split while it is being downloaded.
+     */
+    private static final long CHUNK_SIZE = 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+
+    /**
+     * @param host        server host
+     * @param port        server port
+     * @param connections number of concurrent connections used for a download
+     */
+    public SegmentedDownloader(String host, int port, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+    }
+
+    /**
+     * Downloads the file and saves it at the specified location, replacing the existing file.
+     *
+     * @param path        path to the file on the server
+     * @param destination where to save the file
+     * @param callback    receives progress updates, it is called from several threads
+     * @return size of the file
+     * @throws FtpClientException if the file does not exist or any of the connections failed
+     */
+    public long download(String path, Path destination, ProgressCallback callback) throws FtpClientException {
+        final long size;
+        try (FtpClient client = new FtpClient(host, port)) {
+            size = client.getSize(path);
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to close connection", e);
+        }
+        if (size < 0) {
+            throw new FtpClientException(path + " is not a file");
+        }
+        log.debug("Downloading {} ({} bytes) over {} connections", new Object[]{path, size, connections});
+
+        try (RandomAccessFile raf = new RandomAccessFile(destination.toFile(), "rw")) {
+            raf.setLength(size);
+            val download = new Download(path, raf.getChannel(), size, callback);
+            val executor = Executors.newFixedThreadPool(connections);
+            try {
+                download.run(executor);
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (IOException e) {
+            throw new FtpClientException("Failed to save file at " + destination, e);
+        }
+        return size;
+    }
+
+    public interface ProgressCallback {
+        void progress(long downloadedSize, long fullSize);
+    }
+
+    /**
+     * Part of the file that is downloaded by one connection. Bytes in [next, end) are not requested yet.
+     */
+    private static final class Segment {
+        private long next;
+        private long end;
+
+        private Segment(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        private long remaining() {
+            return end - next;
+        }
+    }
+
+    /**
+     * Writes received bytes to the file starting from the given position. Several instances could share
+     * one file channel, because positional writes do not change the channel position.
+     */
+    private static final class PositionalChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private long position;
+
+        private PositionalChannel(FileChannel file, long position) {
+            this.file = file;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            val written = file.write(src, position);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class Download {
+        private final String path;
+        private final FileChannel file;
+        private final long size;
+        private final ProgressCallback callback;
+        private final List<Segment> segments = new ArrayList<>();
+        private final AtomicLong downloaded = new AtomicLong();
+
+        private Download(String path, FileChannel file, long size, ProgressCallback callback) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+            this.callback = callback;
+            for (int i = 0; i < connections; i++) {
+                segments.add(new Segment(size * i / connections, size * (i + 1) / connections));
+            }
+        }
+
+        private void run(ExecutorService executor) throws FtpClientException {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (val segment : segments.toArray(new Segment[connections])) {
+                futures.add(executor.submit(() -> {
+                    fetch(segment);
+                    return null;
+                }));
+            }
+            try {
+                for (val future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FtpClientException("Download was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new FtpClientException("Failed to download " + path, e.getCause());
+            }
+        }
+
+        private void fetch(Segment segment) throws FtpClientException, IOException {
+            try (FtpClient client = new FtpClient(host, port)) {
+                Segment current = segment;
+                while (current != null) {
+                    final long start;
+                    final long len;
+                    synchronized (segments) {
+                        if (current.remaining() <= 0) {
+                            current = steal();
+                            continue;
+                        }
+                        start = current.next;
+                        len = Math.min(CHUNK_SIZE, current.remaining());
+                        current.next += len;
+                    }
+                    val received = client.getRange(path, start, len, new PositionalChannel(file, start));
+                    if (received != len) {
+                        throw new FtpClientException("File was changed during download");
+                    }
+                    callback.progress(downloaded.addAndGet(len), size);
+                }
+            }
+        }
+
+        /**
+         * Splits the largest not requested range in two halves and returns the second one.
+         * Must be called under the lock on segments.
+         */
+        private Segment steal() {
+            Segment victim = null;
+            for (val segment : segments) {
+                if (victim == null || segment.remaining() > victim.remaining()) {
+                    victim = segment;
+                }
+            }
+            if (victim == null || victim.remaining() <= 0) {
+                return null;
+            }
+            if (victim.remaining() < 2 * CHUNK_SIZE) {
+                // not worth splitting, just take it over
+                val stolen = new Segment(victim.next, victim.end);
+                victim.next = victim.end;
+                segments.add(stolen);
+                return stolen;
+            }
+            val middle = victim.next + victim.remaining() / 2;
+            val stolen = new Segment(middle, victim.end);
+            victim.end = middle;
+            segments.add(stolen);
+            log.debug("Split range, took [{}, {})", stolen.next, stolen.end);
+            return stolen;
+        }
+    }
+}
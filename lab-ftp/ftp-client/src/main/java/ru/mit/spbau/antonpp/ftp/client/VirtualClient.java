@@ -0,0 +1,178 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.google.common.io.ByteStreams;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated user of {@link LoadGenerator}. It keeps a single connection and sends requests one by one on a fixed
+ * schedule: the next request is due one think time after the previous one was due, not after its response arrived.
+ * Latency is measured from the moment the request was due, so a stalled server makes later requests late and the
+ * delay is counted in their latency instead of being silently omitted.
+ *
+ * @author antonpp
+ * @since 04/02/2017
+ */
+@Slf4j
+class VirtualClient implements Runnable {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final String host;
+    private final int port;
+    private final Settings settings;
+    private final long firstRequestNanos;
+    private final Random random;
+    private final WritableByteChannel sink = Channels.newChannel(ByteStreams.nullOutputStream());
+
+    @Getter
+    private final Histogram getLatency = new Histogram(SIGNIFICANT_DIGITS);
+    @Getter
+    private final Histogram listLatency = new Histogram(SIGNIFICANT_DIGITS);
+    @Getter
+    private long getErrors;
+    @Getter
+    private long listErrors;
+    /**
+     * Due time of the first recorded request, {@link Long#MAX_VALUE} if none was recorded.
+     */
+    @Getter
+    private long measuredFromNanos = Long.MAX_VALUE;
+    /**
+     * Completion time of the last recorded request, {@link Long#MIN_VALUE} if none was recorded.
+     */
+    @Getter
+    private long measuredToNanos = Long.MIN_VALUE;
+
+    private volatile FtpClient client;
+    private volatile boolean stopped;
+
+    /**
+     * @param firstRequestNanos when the first request is due, this client is idle till then
+     */
+    VirtualClient(String host, int port, Settings settings, long firstRequestNanos, long seed) {
+        this.host = host;
+        this.port = port;
+        this.settings = settings;
+        this.firstRequestNanos = firstRequestNanos;
+        random = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+        long due = firstRequestNanos;
+        while (!stopped && due < settings.endNanos) {
+            sleepUntil(due);
+            final boolean isGet = random.nextDouble() < settings.getRatio;
+            final boolean succeeded = execute(isGet);
+            final long completed = System.nanoTime();
+            final long latency = completed - due;
+            if (due >= settings.measureFromNanos) {
+                measuredFromNanos = Math.min(measuredFromNanos, due);
+                measuredToNanos = completed;
+                if (succeeded) {
+                    (isGet ? getLatency : listLatency).recordValue(latency);
+                } else if (isGet) {
+                    getErrors++;
+                } else {
+                    listErrors++;
+                }
+            }
+            due += settings.thinkTimeNanos;
+        }
+        disconnect();
+    }
+
+    /**
+     * Interrupts the current request by closing the connection.
+     */
+    void stop() {
+        stopped = true;
+        disconnect();
+    }
+
+    private boolean execute(boolean isGet) {
+        try {
+            if (client == null) {
+                client = new FtpClient(host, port);
+                if (stopped) {
+                    // stop() could run while connecting and miss this connection
+                    disconnect();
+                    return false;
+                }
+            }
+            if (isGet) {
+                final List<String> files = settings.getFiles;
+                client.getFile(files.get(random.nextInt(files.size())), sink);
+            } else {
+                client.listFiles(settings.listDir);
+            }
+            return true;
+        } catch (FtpClientException e) {
+            log.debug("Request failed, reconnecting", e);
+            disconnect();
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        final FtpClient current = client;
+        client = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.debug("Failed to close connection", e);
+            }
+        }
+    }
+
+    private void sleepUntil(long nanos) {
+        long left;
+        while (!stopped && (left = nanos - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Parameters of the load shared by all clients.
+     */
+    @Builder
+    static final class Settings {
+
+        /**
+         * Time between due moments of consecutive requests, must be positive: without a schedule there is nothing to
+         * count the delay from.
+         */
+        private final long thinkTimeNanos;
+        /**
+         * Probability of a GET, other requests are LISTs.
+         */
+        private final double getRatio;
+        private final String listDir;
+        private final List<String> getFiles;
+        /**
+         * Requests due earlier are not recorded.
+         */
+        private final long measureFromNanos;
+        /**
+         * No requests are sent after this moment.
+         */
+        private final long endNanos;
+    }
+}
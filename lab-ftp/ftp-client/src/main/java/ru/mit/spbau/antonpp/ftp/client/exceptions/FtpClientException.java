@@ -5,6 +5,10 @@ package ru.mit.spbau.antonpp.ftp.client.exceptions;
  * @since 30/10/2016
  */
 public class FtpClientException extends Exception {
+    public FtpClientException(String message) {
+        super(message);
+    }
+
     public FtpClientException(String message, Throwable cause) {
         super(message, cause);
     }
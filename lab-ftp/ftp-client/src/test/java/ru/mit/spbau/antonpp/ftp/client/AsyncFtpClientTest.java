@@ -0,0 +1,93 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author antonpp
+ * @since 08/02/2017
+ */
+public class AsyncFtpClientTest {
+
+    private static final int TEST_PORT = 31204;
+    private static final String HOST = "localhost";
+    private static final int FILES = 16;
+    private static final int TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testPipelinedDownloads() throws Exception {
+        final Random random = new Random(42);
+        final List<byte[]> contents = new ArrayList<>();
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            // some of the files do not fit in one read from the channel
+            final byte[] data = new byte[random.nextInt(256 * 1024)];
+            random.nextBytes(data);
+            final Path file = folder.newFile().toPath();
+            Files.write(file, data);
+            contents.add(data);
+            files.add(file);
+        }
+
+        final AsyncFtpClient client = AsyncFtpClient.connect(HOST, TEST_PORT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            final List<ByteArrayOutputStream> sinks = new ArrayList<>();
+            final List<CompletableFuture<Long>> sizes = new ArrayList<>();
+            for (Path file : files) {
+                final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                sinks.add(sink);
+                sizes.add(client.getFile(file.toString(), Channels.newChannel(sink)));
+            }
+            final CompletableFuture<Map<String, Boolean>> listing = client.listFiles(folder.getRoot().getPath());
+            final CompletableFuture<Long> missing = client.getFile(folder.getRoot().getPath() + "/missing",
+                    Channels.newChannel(new ByteArrayOutputStream()));
+
+            for (int i = 0; i < FILES; i++) {
+                assertEquals(contents.get(i).length, (long) sizes.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                assertArrayEquals(contents.get(i), sinks.get(i).toByteArray());
+            }
+            final Map<String, Boolean> entries = listing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(FILES, entries.size());
+            assertFalse(entries.containsValue(true));
+            assertEquals(0, (long) missing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            client.disconnect().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            client.close();
+        }
+    }
+}
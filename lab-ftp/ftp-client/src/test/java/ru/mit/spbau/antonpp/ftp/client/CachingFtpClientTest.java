@@ -0,0 +1,106 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 11/02/2017
+ */
+public class CachingFtpClientTest {
+
+    private static final int TEST_PORT = 31206;
+    private static final String HOST = "localhost";
+    private static final int MD5_SIZE = 16;
+    private static final int FILE_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+    private FtpClient client;
+    private Path remote;
+    private Path cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+        client = new FtpClient(HOST, TEST_PORT);
+        remote = folder.newFolder("remote").toPath();
+        cacheDir = folder.getRoot().toPath().resolve("cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    private String createFile(String name, byte fill) throws Exception {
+        final byte[] data = new byte[FILE_SIZE];
+        Arrays.fill(data, fill);
+        final Path file = remote.resolve(name);
+        Files.write(file, data);
+        return file.toString();
+    }
+
+    @Test
+    public void testHitAfterNotModified() throws Exception {
+        final CachingFtpClient cache = new CachingFtpClient(client, cacheDir, 1024);
+        final String path = createFile("file", (byte) 1);
+
+        assertEquals(1, cache.getFile(path)[0]);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // the server answers NOT_MODIFIED and the copy is used
+        assertArrayEquals(Files.readAllBytes(remote.resolve("file")), cache.getFile(path));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        createFile("file", (byte) 2);
+        Files.setLastModifiedTime(remote.resolve("file"), FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertEquals(2, cache.getFile(path)[0]);
+        assertEquals(2, cache.getMisses());
+
+        // the index of copies is loaded by the next client
+        final CachingFtpClient restarted = new CachingFtpClient(client, cacheDir, 1024);
+        assertEquals(2, restarted.getFile(path)[0]);
+        assertEquals(1, restarted.getHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        final long copySize = FILE_SIZE + MD5_SIZE;
+        final CachingFtpClient cache = new CachingFtpClient(client, cacheDir, 2 * copySize);
+        final String first = createFile("first", (byte) 1);
+        final String second = createFile("second", (byte) 2);
+        final String third = createFile("third", (byte) 3);
+
+        cache.getFile(first);
+        cache.getFile(second);
+        // the first file becomes the most recently used one
+        cache.getFile(first);
+        cache.getFile(third);
+        assertTrue(cache.getCachedBytes() <= 2 * copySize);
+        assertEquals(3, cache.getMisses());
+
+        cache.getFile(first);
+        assertEquals(2, cache.getHits());
+        cache.getFile(second);
+        assertEquals(4, cache.getMisses());
+    }
+}
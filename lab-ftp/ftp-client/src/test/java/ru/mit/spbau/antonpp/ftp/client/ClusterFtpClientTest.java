@@ -0,0 +1,110 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author antonpp
+ * @since 11/02/2017
+ */
+public class ClusterFtpClientTest {
+
+    private static final int[] TEST_PORTS = {31207, 31208};
+    private static final String HOST = "localhost";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, FtpServer> servers = new HashMap<>();
+    private ClusterFtpClient cluster;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int port : TEST_PORTS) {
+            final FtpServer server = new FtpServer(port);
+            server.start();
+            servers.put(HOST + ":" + port, server);
+        }
+        cluster = new ClusterFtpClient(servers.keySet(), 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cluster.close();
+        for (FtpServer server : servers.values()) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testReadFailsOverWhenNodeIsClosed() throws Exception {
+        // all nodes serve the same tree
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3});
+        final String path = file.toString();
+        final List<String> nodes = cluster.nodesFor(path);
+        assertEquals(2, nodes.size());
+
+        servers.remove(nodes.get(0)).close();
+        assertArrayEquals(new byte[]{1, 2, 3}, cluster.getFile(path));
+        // the closed node is skipped until the retry period ends
+        assertEquals(Arrays.asList(nodes.get(1)), cluster.nodesFor(path));
+        assertArrayEquals(new byte[]{1, 2, 3}, cluster.getFile(path));
+    }
+
+    @Test
+    public void testNoFailoverOutsideReplicas() throws Exception {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3});
+        final String path = file.toString();
+        try (ClusterFtpClient single = new ClusterFtpClient(servers.keySet(), 1)) {
+            final List<String> nodes = single.nodesFor(path);
+            assertEquals(1, nodes.size());
+
+            servers.remove(nodes.get(0)).close();
+            try {
+                single.getFile(path);
+                fail("The only replica is closed");
+            } catch (FtpClientException ignored) {
+            }
+            // the other node does not hold the path, the replica is tried anyway
+            assertEquals(nodes, single.nodesFor(path));
+        }
+    }
+
+    @Test
+    public void testLocalWriteErrorIsNotNodeFailure() throws Exception {
+        // every write to it fails with "no space left on device"
+        final Path full = Paths.get("/dev/full");
+        assumeTrue(Files.isWritable(full));
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3});
+        final String path = file.toString();
+        try {
+            cluster.getFile(path, full);
+            fail("Writes to /dev/full must fail");
+        } catch (FtpClientException e) {
+            // reported at once, the request is not repeated on the other replica
+            assertEquals("Failed to save file at " + full, e.getMessage());
+        }
+        assertEquals(2, cluster.nodesFor(path).size());
+    }
+}
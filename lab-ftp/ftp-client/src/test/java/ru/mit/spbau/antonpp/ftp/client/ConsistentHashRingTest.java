@@ -0,0 +1,86 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 11/02/2017
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 10000;
+
+    private ConsistentHashRing ring;
+
+    @Before
+    public void setUp() throws Exception {
+        ring = new ConsistentHashRing(128);
+        for (int i = 0; i < 4; i++) {
+            ring.add("localhost:" + (12345 + i));
+        }
+    }
+
+    @Test
+    public void testKeysSpreadEvenly() throws Exception {
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(owner("/file" + i), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > KEYS / 4 / 2 && count < KEYS / 4 * 2);
+        }
+    }
+
+    @Test
+    public void testOnlyKeysOfChangedNodeMove() throws Exception {
+        final Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owners.put("/file" + i, owner("/file" + i));
+        }
+        final String joined = "localhost:12349";
+        ring.add(joined);
+        int moved = 0;
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            final String owner = owner(entry.getKey());
+            if (!owner.equals(entry.getValue())) {
+                assertEquals(joined, owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 5 / 2 && moved < KEYS / 5 * 2);
+
+        ring.remove(joined);
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            assertEquals(entry.getValue(), owner(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testReplicasAreDistinct() throws Exception {
+        final List<String> all = ring.nodesFor("/file", 10, node -> true);
+        assertEquals(4, all.size());
+        assertEquals(4, new HashSet<>(all).size());
+        assertEquals(all.subList(0, 2), ring.nodesFor("/file", 2, node -> true));
+        // a skipped node is replaced by the next one on the ring
+        assertEquals(Arrays.asList(all.get(1), all.get(2)),
+                ring.nodesFor("/file", 2, node -> !node.equals(all.get(0))));
+        assertFalse(ring.add(all.get(0)));
+        assertTrue(ring.nodesFor("/file", 2, node -> false).isEmpty());
+    }
+
+    private String owner(String key) {
+        return ring.nodesFor(key, 1, node -> true).get(0);
+    }
+}
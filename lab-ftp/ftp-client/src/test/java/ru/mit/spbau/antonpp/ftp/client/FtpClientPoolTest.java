@@ -0,0 +1,87 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author antonpp
+ * @since 03/02/2017
+ */
+public class FtpClientPoolTest {
+
+    private static final int TEST_PORT = 31203;
+    private static final String HOST = "localhost";
+    private static final long IDLE_TIMEOUT_MILLIS = 100;
+    private static final long BORROW_TIMEOUT_MILLIS = 500;
+
+    private FtpServer server;
+    private FtpClientPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+        pool = new FtpClientPool(2, IDLE_TIMEOUT_MILLIS, 0, BORROW_TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void testBorrowLimit() throws Exception {
+        final FtpClient first = pool.borrow(HOST, TEST_PORT);
+        final FtpClient second = pool.borrow(HOST, TEST_PORT);
+        assertNotSame(first, second);
+        try {
+            pool.borrow(HOST, TEST_PORT);
+            fail("Only two connections may be borrowed");
+        } catch (FtpClientException e) {
+            // expected
+        }
+
+        pool.release(first);
+        final FtpClient reused = pool.borrow(HOST, TEST_PORT);
+        assertSame(first, reused);
+        // connections are checked before they are lent, the reused one is alive
+        reused.noop();
+        pool.release(reused);
+        pool.invalidate(second);
+    }
+
+    @Test
+    public void testWaitingBorrowGetsReleasedConnection() throws Exception {
+        final FtpClient first = pool.borrow(HOST, TEST_PORT);
+        final FtpClient second = pool.borrow(HOST, TEST_PORT);
+        final Thread releaser = new Thread(() -> pool.release(second));
+        releaser.start();
+        // the pool is full, so the borrow waits until the connection is given back
+        assertSame(second, pool.borrow(HOST, TEST_PORT));
+        releaser.join();
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws Exception {
+        final FtpClient client = pool.borrow(HOST, TEST_PORT);
+        pool.release(client);
+        TimeUnit.MILLISECONDS.sleep(IDLE_TIMEOUT_MILLIS * 5);
+
+        final FtpClient fresh = pool.borrow(HOST, TEST_PORT);
+        assertNotSame(client, fresh);
+        fresh.noop();
+        pool.release(fresh);
+    }
+}
@@ -0,0 +1,155 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import com.google.common.hash.Hashing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.data.BlockSums;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+import ru.mit.spbau.antonpp.ftp.sync.RollingChecksum;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Synchronization of local copies with {@link FtpClient#syncTo}. Files are larger than one read of
+ * {@link BlockMatcher}, so its buffer is compacted while it looks for blocks.
+ *
+ * @author antonpp
+ * @since 07/02/2017
+ */
+public class FtpClientTest {
+
+    private static final int TEST_PORT = 31210;
+    private static final String HOST = "localhost";
+    /**
+     * Block size the server chooses for the test files.
+     */
+    private static final int BLOCK_SIZE = 1024;
+    private static final int FILE_SIZE = 1536 * BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private FtpServer server;
+    private FtpClient client;
+    private Path remote;
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+        client = new FtpClient(HOST, TEST_PORT);
+        remote = folder.newFile("remote").toPath();
+        local = folder.newFile("local").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    private byte[] randomBytes(int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final int length = Arrays.stream(parts).mapToInt(part -> part.length).sum();
+        final byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * @return number of received bytes
+     */
+    private long sync(byte[] remoteData, byte[] localData) throws Exception {
+        Files.write(remote, remoteData);
+        Files.write(local, localData);
+        final long received = client.syncTo(remote.toString(), local);
+        assertArrayEquals(remoteData, Files.readAllBytes(local));
+        return received;
+    }
+
+    @Test
+    public void testBlockSums() throws Exception {
+        final byte[] data = randomBytes(3 * BLOCK_SIZE + 10);
+        Files.write(remote, data);
+        final BlockSums sums = client.getBlockSums(remote.toString(), BLOCK_SIZE);
+        assertEquals(data.length, sums.getFileSize());
+        assertEquals(BLOCK_SIZE, sums.getBlockSize());
+        assertEquals(4, sums.getBlockCount());
+        for (int i = 0; i < 4; i++) {
+            final int length = Math.min(BLOCK_SIZE, data.length - i * BLOCK_SIZE);
+            assertEquals(RollingChecksum.of(data, i * BLOCK_SIZE, length), sums.getRolling()[i]);
+            assertArrayEquals(Hashing.md5().hashBytes(data, i * BLOCK_SIZE, length).asBytes(), sums.getStrong()[i]);
+        }
+        assertArrayEquals(Hashing.md5().hashBytes(data).asBytes(), sums.getFileHash());
+
+        assertEquals(-1, client.getBlockSums(folder.getRoot().getPath(), 0).getFileSize());
+    }
+
+    @Test
+    public void testDataInsertedLocally() throws Exception {
+        final byte[] data = randomBytes(FILE_SIZE);
+        // inserted between two blocks near the end of the first read of the matcher
+        final int at = 976 * BLOCK_SIZE;
+        final byte[] localData = concat(Arrays.copyOf(data, at), randomBytes(333),
+                Arrays.copyOfRange(data, at, data.length));
+        assertEquals(0, sync(data, localData));
+    }
+
+    @Test
+    public void testDataDeletedLocally() throws Exception {
+        final byte[] data = randomBytes(FILE_SIZE);
+        // the deleted range is inside a single block
+        final int from = 488 * BLOCK_SIZE + 100;
+        final byte[] localData = concat(Arrays.copyOf(data, from), Arrays.copyOfRange(data, from + 200, data.length));
+        assertEquals(BLOCK_SIZE, sync(data, localData));
+    }
+
+    @Test
+    public void testShortLastBlock() throws Exception {
+        final byte[] data = randomBytes(FILE_SIZE + 100);
+        // the last block is shorter than the block size and is never matched
+        assertEquals(100, sync(data, data.clone()));
+    }
+
+    @Test
+    public void testEmptyRemoteFile() throws Exception {
+        assertEquals(0, sync(new byte[0], randomBytes(FILE_SIZE)));
+    }
+
+    @Test
+    public void testNoOverlap() throws Exception {
+        assertEquals(FILE_SIZE, sync(randomBytes(FILE_SIZE), randomBytes(FILE_SIZE)));
+    }
+
+    @Test(expected = FtpClientException.class)
+    public void testMissingRemoteFile() throws Exception {
+        final Path destination = folder.getRoot().toPath().resolve("copy");
+        try {
+            client.syncTo(folder.getRoot().getPath() + "/missing", destination);
+        } finally {
+            assertFalse(Files.exists(destination));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author antonpp
+ * @since 09/02/2017
+ */
+public class MirrorTest {
+
+    private static final int TEST_PORT = 31205;
+    private static final String HOST = "localhost";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+    private Path remote;
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+        remote = folder.newFolder("remote").toPath();
+        local = folder.getRoot().toPath().resolve("local");
+        Files.createDirectories(remote.resolve("a/b"));
+        Files.write(remote.resolve("top"), new byte[]{1, 2, 3});
+        Files.write(remote.resolve("a/middle"), new byte[]{4, 5});
+        Files.write(remote.resolve("a/b/bottom"), new byte[]{6});
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private Mirror.Summary mirror() throws Exception {
+        return new Mirror(HOST, TEST_PORT, 2).mirror(remote.toString(), local, (files, queued, bytes) -> {
+        });
+    }
+
+    @Test
+    public void testUnchangedFilesAreSkipped() throws Exception {
+        final Mirror.Summary first = mirror();
+        assertEquals(3, first.getDownloadedFiles());
+        assertEquals(0, first.getSkippedFiles());
+        assertEquals(6, first.getDownloadedBytes());
+        assertArrayEquals(new byte[]{6}, Files.readAllBytes(local.resolve("a/b/bottom")));
+
+        final Mirror.Summary second = mirror();
+        assertEquals(0, second.getDownloadedFiles());
+        assertEquals(3, second.getSkippedFiles());
+        assertEquals(0, second.getDownloadedBytes());
+
+        Files.write(remote.resolve("a/middle"), new byte[]{7, 8});
+        Files.setLastModifiedTime(remote.resolve("a/middle"),
+                FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        final Mirror.Summary third = mirror();
+        assertEquals(1, third.getDownloadedFiles());
+        assertEquals(2, third.getSkippedFiles());
+        assertArrayEquals(new byte[]{7, 8}, Files.readAllBytes(local.resolve("a/middle")));
+    }
+}
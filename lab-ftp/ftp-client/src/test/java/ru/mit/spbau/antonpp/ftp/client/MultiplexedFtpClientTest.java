@@ -0,0 +1,70 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * @author antonpp
+ * @since 29/01/2017
+ */
+public class MultiplexedFtpClientTest {
+
+    private static final int TEST_PORT = 31209;
+    private static final String HOST = "localhost";
+    private static final int FILES = 32;
+    private static final int TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testMoreRequestsThanInFlight() throws Exception {
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            final Path file = folder.newFile().toPath();
+            final byte[] data = new byte[i * 10000];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            Files.write(file, data);
+            files.add(file);
+        }
+        try (MultiplexedFtpClient client = new MultiplexedFtpClient(HOST, TEST_PORT, 4)) {
+            final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            // requests above the limit wait until earlier responses are received
+            for (Path file : files) {
+                futures.add(client.getFile(file.toString()));
+            }
+            for (int i = 0; i < FILES; i++) {
+                assertArrayEquals(Files.readAllBytes(files.get(i)),
+                        futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author antonpp
+ * @since 27/01/2017
+ */
+public class PipeliningFtpClientTest {
+
+    private static final int TEST_PORT = 31201;
+    private static final String HOST = "localhost";
+    private static final int FILES = 64;
+    private static final int TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static void assertFailed(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("Request must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FtpClientException);
+        }
+    }
+
+    @Test
+    public void testResponsesMatchRequests() throws Exception {
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            final Path file = folder.newFile().toPath();
+            // files of different sizes, so a response read for a wrong request does not match
+            final byte[] data = new byte[i * 1000];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            Files.write(file, data);
+            files.add(file);
+        }
+        try (PipeliningFtpClient client = new PipeliningFtpClient(HOST, TEST_PORT, 8)) {
+            final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(client.getFile(file.toString()));
+            }
+            final CompletableFuture<Map<String, Boolean>> listing = client.listFiles(folder.getRoot().getPath());
+            for (int i = 0; i < FILES; i++) {
+                assertArrayEquals(Files.readAllBytes(files.get(i)),
+                        futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            assertEquals(FILES, listing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size());
+        }
+    }
+
+    @Test
+    public void testConnectionLostWithRequestsInFlight() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // the server reads the first request and drops the connection without answering
+            final Thread brokenServer = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    final DataInputStream dis = new DataInputStream(socket.getInputStream());
+                    assertEquals(RequestCode.RQ_GET, dis.readInt());
+                    dis.readUTF();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            brokenServer.start();
+            try (PipeliningFtpClient client = new PipeliningFtpClient(HOST, serverSocket.getLocalPort())) {
+                final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+                for (int i = 0; i < FILES; i++) {
+                    futures.add(client.getFile("/file" + i));
+                }
+                for (CompletableFuture<byte[]> future : futures) {
+                    assertFailed(future);
+                }
+                // requests made after the failure are not left waiting for a response
+                assertFailed(client.getFile("/file"));
+            }
+            brokenServer.join();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.client.exceptions.FtpClientException;
+import ru.mit.spbau.antonpp.ftp.server.FtpServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author antonpp
+ * @since 26/01/2017
+ */
+public class SegmentedDownloaderTest {
+
+    private static final int TEST_PORT = 31202;
+    private static final String HOST = "localhost";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testDownloadBySegments() throws Exception {
+        // several chunks and a partial one, so connections split the file unevenly
+        final byte[] data = new byte[3 * 1024 * 1024 + 12345];
+        new Random(42).nextBytes(data);
+        final Path file = folder.newFile().toPath();
+        Files.write(file, data);
+        final Path destination = folder.getRoot().toPath().resolve("copy");
+
+        final AtomicLong downloaded = new AtomicLong();
+        final SegmentedDownloader downloader = new SegmentedDownloader(HOST, TEST_PORT, 3);
+        final long size = downloader.download(file.toString(), destination,
+                (downloadedSize, fullSize) -> downloaded.accumulateAndGet(downloadedSize, Math::max));
+
+        assertEquals(data.length, size);
+        assertEquals(data.length, downloaded.get());
+        assertArrayEquals(data, Files.readAllBytes(destination));
+    }
+
+    @Test
+    public void testSmallerFileIsReplaced() throws Exception {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3});
+        final Path destination = folder.newFile().toPath();
+        Files.write(destination, new byte[100]);
+
+        new SegmentedDownloader(HOST, TEST_PORT, 4).download(file.toString(), destination, (d, f) -> {
+        });
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(destination));
+    }
+
+    @Test(expected = FtpClientException.class)
+    public void testMissingFile() throws Exception {
+        new SegmentedDownloader(HOST, TEST_PORT, 2).download(folder.getRoot().getPath() + "/missing",
+                folder.getRoot().toPath().resolve("copy"), (d, f) -> {
+                });
+    }
+}
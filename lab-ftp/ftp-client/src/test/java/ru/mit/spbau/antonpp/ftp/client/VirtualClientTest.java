@@ -0,0 +1,83 @@
+package ru.mit.spbau.antonpp.ftp.client;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 12/02/2017
+ */
+public class VirtualClientTest {
+
+    private static final String HOST = "localhost";
+    private static final long THINK_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long STALL_MILLIS = 500;
+    private static final int REQUESTS = 20;
+
+    /**
+     * Answers LIST requests with empty listings, the first response is sent only after a stall.
+     */
+    private static void serveLists(ServerSocket serverSocket) {
+        try (Socket socket = serverSocket.accept()) {
+            final DataInputStream dis = new DataInputStream(socket.getInputStream());
+            final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            boolean isFirst = true;
+            while (dis.readInt() == RequestCode.RQ_LIST) {
+                dis.readUTF();
+                if (isFirst) {
+                    Thread.sleep(STALL_MILLIS);
+                    isFirst = false;
+                }
+                dos.writeInt(0);
+                dos.flush();
+            }
+        } catch (EOFException ignored) {
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRequestsDelayedByStallAreCounted() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            final Thread server = new Thread(() -> serveLists(serverSocket));
+            server.start();
+            final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            final VirtualClient.Settings settings = VirtualClient.Settings.builder()
+                    .thinkTimeNanos(THINK_TIME_NANOS)
+                    .getRatio(0)
+                    .listDir("/")
+                    .getFiles(Collections.emptyList())
+                    .measureFromNanos(start + THINK_TIME_NANOS)
+                    .endNanos(start + REQUESTS * THINK_TIME_NANOS)
+                    .build();
+            final VirtualClient client = new VirtualClient(HOST, serverSocket.getLocalPort(), settings, start, 0);
+            client.run();
+            server.join();
+
+            final Histogram latency = client.getListLatency();
+            // requests are due on a fixed schedule, the stall does not make the client skip any of them,
+            // the first one is sent before measurement starts
+            assertEquals(REQUESTS - 1, latency.getTotalCount());
+            assertEquals(0, client.getListErrors());
+            assertEquals(start + THINK_TIME_NANOS, client.getMeasuredFromNanos());
+            assertTrue(client.getMeasuredToNanos() >= start + (REQUESTS - 1) * THINK_TIME_NANOS);
+            // requests due during the stall were sent late, their latency is counted from the moment they were due
+            final long stallNanos = TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS);
+            assertTrue(latency.getMaxValue() >= stallNanos - THINK_TIME_NANOS);
+            assertTrue(latency.getCountBetweenValues(stallNanos - 4 * THINK_TIME_NANOS, latency.getMaxValue()) >= 3);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ru.mit.spbau.antonpp.ftp.compression;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm of compressed transfers, see
+ * {@link ru.mit.spbau.antonpp.ftp.protocol.RequestCode#RQ_GET_COMPRESSED}. Data is compressed in independent
+ * chunks. An instance may keep native state between calls, so it must not be shared between threads and must be
+ * closed after use.
+ *
+ * @author antonpp
+ * @since 31/01/2017
+ */
+public interface Codec extends AutoCloseable {
+
+    /**
+     * @return identifier of the codec on the wire, see {@link Codecs}
+     */
+    int getId();
+
+    /**
+     * Compresses a chunk of data.
+     *
+     * @param src       data to be compressed
+     * @param length    number of bytes of src to be compressed
+     * @param dst       buffer for compressed data
+     * @param maxLength maximum size of compressed data, not greater than the size of dst
+     * @return size of compressed data or -1 if it would be longer than maxLength
+     */
+    int compress(byte[] src, int length, byte[] dst, int maxLength);
+
+    /**
+     * Restores a chunk compressed with {@link #compress}.
+     *
+     * @param src       compressed data
+     * @param length    number of bytes of src
+     * @param dst       buffer for original data
+     * @param dstLength exact size of original data
+     * @throws IOException if data is corrupted
+     */
+    void decompress(byte[] src, int length, byte[] dst, int dstLength) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,50 @@
+package ru.mit.spbau.antonpp.ftp.compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of codecs known by their identifiers on the wire. Client and server must register the same codecs
+ * under the same identifiers; deflate is always available.
+ *
+ * @author antonpp
+ * @since 31/01/2017
+ */
+public final class Codecs {
+
+    /**
+     * Data is sent as is.
+     */
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    private static final Map<Integer, Supplier<Codec>> FACTORIES = new ConcurrentHashMap<>();
+
+    static {
+        register(DEFLATE, DeflateCodec::new);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * @param id      identifier of the codec, must be positive
+     * @param factory creates new instances of the codec
+     */
+    public static void register(int id, Supplier<Codec> factory) {
+        if (id <= NONE) {
+            throw new IllegalArgumentException("Codec id must be positive");
+        }
+        FACTORIES.put(id, factory);
+    }
+
+    /**
+     * @param id identifier of the codec
+     * @return new instance of the codec or null if it is not registered
+     */
+    public static Codec create(int id) {
+        final Supplier<Codec> factory = FACTORIES.get(id);
+        return factory == null ? null : factory.get();
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mit.spbau.antonpp.ftp.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec based on {@link Deflater} and {@link Inflater}. Both are created on first use, so a codec used only for one
+ * direction holds native memory of only one of them.
+ *
+ * @author antonpp
+ * @since 31/01/2017
+ */
+public class DeflateCodec implements Codec {
+
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return Codecs.DEFLATE;
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst, int maxLength) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        final int compressed = deflater.deflate(dst, 0, maxLength);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int length, byte[] dst, int dstLength) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(src, 0, length);
+        try {
+            final int restored = inflater.inflate(dst, 0, dstLength);
+            if (restored != dstLength || !inflater.finished()) {
+                throw new IOException("Compressed chunk has unexpected size");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed chunk is corrupted", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
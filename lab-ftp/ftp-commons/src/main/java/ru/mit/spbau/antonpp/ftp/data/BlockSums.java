@@ -0,0 +1,36 @@
+package ru.mit.spbau.antonpp.ftp.data;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Checksums of consecutive blocks of a file. Only the last block may be shorter than the block size.
+ *
+ * @author antonpp
+ * @since 07/02/2017
+ */
+@Data
+@Builder
+public final class BlockSums {
+    /**
+     * Size of the file, -1 if it is not a regular file.
+     */
+    private final long fileSize;
+    private final int blockSize;
+    /**
+     * Weak checksum of every block, see {@link ru.mit.spbau.antonpp.ftp.sync.RollingChecksum}.
+     */
+    private final int[] rolling;
+    /**
+     * MD5 of every block.
+     */
+    private final byte[][] strong;
+    /**
+     * MD5 of the whole file.
+     */
+    private final byte[] fileHash;
+
+    public int getBlockCount() {
+        return rolling.length;
+    }
+}
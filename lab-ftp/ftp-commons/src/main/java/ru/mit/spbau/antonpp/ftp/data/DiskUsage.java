@@ -0,0 +1,21 @@
+package ru.mit.spbau.antonpp.ftp.data;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Totals of a subtree, see {@link ru.mit.spbau.antonpp.ftp.protocol.RequestCode#RQ_DU}.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Data
+@Builder
+public final class DiskUsage {
+    /**
+     * Total size of regular files, -1 if the path does not exist.
+     */
+    private final long size;
+    private final long files;
+    private final long directories;
+}
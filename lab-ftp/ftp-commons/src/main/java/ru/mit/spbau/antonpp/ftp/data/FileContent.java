@@ -0,0 +1,24 @@
+package ru.mit.spbau.antonpp.ftp.data;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * File received as a part of a batch download.
+ *
+ * @author antonpp
+ * @since 01/02/2017
+ */
+@Data
+@Builder
+public final class FileContent {
+    /**
+     * Path to the file on the server, as it was requested.
+     */
+    private final String path;
+    /**
+     * False if the path is not a regular file on the server, then the content is empty.
+     */
+    private final boolean found;
+    private final byte[] content;
+}
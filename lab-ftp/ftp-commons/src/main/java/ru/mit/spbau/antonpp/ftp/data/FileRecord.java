@@ -0,0 +1,22 @@
+package ru.mit.spbau.antonpp.ftp.data;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Entry of a directory listing together with its attributes.
+ *
+ * @author antonpp
+ * @since 25/01/2017
+ */
+@Data
+@Builder
+public final class FileRecord {
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    /**
+     * Milliseconds since the epoch.
+     */
+    private final long lastModified;
+}
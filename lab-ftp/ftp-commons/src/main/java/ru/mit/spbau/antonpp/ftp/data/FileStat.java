@@ -0,0 +1,27 @@
+package ru.mit.spbau.antonpp.ftp.data;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Attributes of a file that identify its version, see {@link ru.mit.spbau.antonpp.ftp.protocol.RequestCode#RQ_STAT}.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Data
+@Builder
+public final class FileStat {
+    /**
+     * Size of the file, -1 if it is not a regular file.
+     */
+    private final long size;
+    /**
+     * Milliseconds since the epoch.
+     */
+    private final long lastModified;
+    /**
+     * MD5 of the contents, null if it is not a regular file.
+     */
+    private final byte[] digest;
+}
@@ -0,0 +1,22 @@
+package ru.mit.spbau.antonpp.ftp.protocol;
+
+/**
+ * Status of a single file in the response to {@link RequestCode#RQ_MGET} and {@link RequestCode#RQ_GET_IF_CHANGED}.
+ *
+ * @author antonpp
+ * @since 01/02/2017
+ */
+public class FileStatus {
+    public static final byte OK = 0;
+    /**
+     * The path is not a regular file, no content follows.
+     */
+    public static final byte NOT_FOUND = 1;
+    /**
+     * The client's copy of the file is up to date, no content follows.
+     */
+    public static final byte NOT_MODIFIED = 2;
+
+    private FileStatus() {
+    }
+}
@@ -10,6 +10,95 @@ public class RequestCode {
     public static final int RQ_LIST = 1;
     public static final int RQ_GET = 2;
     public static final int RQ_DISCONNECT = 4;
+    /**
+     * Arguments: path, offset and length (both long). Response is the full size of the file (long, -1 if it is not
+     * a regular file), the number of bytes that follow (long) and data.
+     */
+    public static final int RQ_GET_RANGE = 5;
+    /**
+     * Argument: path. Response is a sequence of frames in directory order: number of entries in the frame (int) and
+     * then name (UTF), directory flag (boolean), size and modification time (both long) of each entry.
+     * A frame with zero entries ends the response.
+     */
+    public static final int RQ_LIST_STREAM = 6;
+    /**
+     * Switches the connection to multiplexed protocol v2. Response is the protocol version (int, 2).
+     * <p>
+     * After that every request is sent as request id (int), request code (int) and the same arguments as in the
+     * original protocol. Responses of several requests are interleaved: the server sends frames of request id (int),
+     * payload length (int) and payload. Payloads of a request concatenated give exactly the original response,
+     * and a frame with empty payload marks its end. Disconnect request ends the session after all responses are sent.
+     * <p>
+     * Only GET, GET_RANGE, GET_IF_CHANGED, LIST, STAT, DU, STATS and NOOP are accepted in the session: files are
+     * streamed from disk and other responses are small. Any other request is answered with a single frame whose
+     * payload length is -1, and since its arguments are not read, the session ends after responses to the requests
+     * sent before it.
+     */
+    public static final int RQ_UPGRADE_V2 = 7;
+    /**
+     * Arguments: path and identifier of the preferred codec (int, see
+     * {@link ru.mit.spbau.antonpp.ftp.compression.Codecs}). Response is the size of the file (long, 0 if it is not
+     * a regular file) and the codec chosen by the server (int). If it is {@code Codecs.NONE}, the file follows as
+     * in GET. Otherwise the file is sent in chunks: original size (int), compressed size (int) and data. A chunk
+     * whose compressed size equals the original one is not compressed. Chunks follow until the whole file is sent.
+     */
+    public static final int RQ_GET_COMPRESSED = 8;
+    /**
+     * Arguments: number of paths (int) and the paths. Response is a header and content of every file in the order
+     * they were requested: status (byte, see {@link FileStatus}), size (long) and data.
+     */
+    public static final int RQ_MGET = 9;
+    /**
+     * No arguments. Response is the number of metrics (int) and name (UTF) and value (long) of every metric of
+     * the server: connection and handler pool counters, bytes sent and number and latency percentiles of requests
+     * of every code.
+     */
+    public static final int RQ_STATS = 10;
+    /**
+     * No arguments. Response is a single boolean (true). It is used to check that an idle connection is still alive.
+     */
+    public static final int RQ_NOOP = 11;
+    /**
+     * Arguments: path and preferred block size (int, 0 to let the server choose it). Response is the size of
+     * the file (long, -1 if it is not a regular file, then the response ends after the block size) and the block
+     * size (int). Then for every block in the order of the file come its rolling checksum (int, see
+     * {@link ru.mit.spbau.antonpp.ftp.sync.RollingChecksum}) and MD5 (16 bytes), the last block may be shorter.
+     * MD5 of the whole file (16 bytes) ends the response.
+     */
+    public static final int RQ_BLOCKSUMS = 12;
+    /**
+     * Arguments: path, size of the file (long) and its data. The file is stored under a temporary name and then
+     * replaces the target atomically, so readers never see a partial upload. Response is a boolean: true if the file
+     * is stored, false if it could not be, e.g. because the parent directory does not exist. The data is received
+     * in full anyway.
+     */
+    public static final int RQ_PUT = 13;
+    /**
+     * Argument: path. Response is the size of the file (long, -1 if it is not a regular file, then the response
+     * ends), its modification time (long, milliseconds since the epoch) and MD5 of its contents (16 bytes).
+     */
+    public static final int RQ_STAT = 14;
+    /**
+     * Arguments: path and MD5 of the copy the client already has (16 bytes, zeros if it has none). Response is
+     * a status (byte, see {@link FileStatus}): if it is not {@link FileStatus#NOT_FOUND}, the size, modification time
+     * and MD5 of the file follow as in STAT, and if it is {@link FileStatus#OK}, the file follows as well.
+     * {@link FileStatus#NOT_MODIFIED} means the MD5 matched, so the client's copy is up to date.
+     */
+    public static final int RQ_GET_IF_CHANGED = 15;
+    /**
+     * Arguments: path to a directory and a pattern. The pattern is a {@link java.nio.file.PathMatcher} pattern, glob
+     * unless it starts with {@code glob:} or {@code regex:}. A pattern without {@code /} is matched against names of
+     * entries, otherwise against their paths relative to the directory. Response is the matching entries of the
+     * whole subtree in no particular order, framed as in LIST_STREAM with names replaced by relative paths.
+     * Symbolic links are not followed.
+     */
+    public static final int RQ_FIND = 16;
+    /**
+     * Argument: path. Response is the total size of regular files in the subtree (long, -1 if the path does not
+     * exist, then the response ends), the number of the files (long) and the number of directories in the subtree
+     * including the path itself (long). Symbolic links are not followed.
+     */
+    public static final int RQ_DU = 17;
 
     private RequestCode() {
     }
@@ -0,0 +1,57 @@
+package ru.mit.spbau.antonpp.ftp.sync;
+
+/**
+ * Weak checksum of a window of bytes as in rsync. When the window slides by one byte, the checksum is updated in
+ * constant time, so a block could be looked up at every offset of a file.
+ *
+ * @author antonpp
+ * @since 07/02/2017
+ */
+public final class RollingChecksum {
+
+    private static final int MASK = 0xffff;
+
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * @return checksum of the specified bytes
+     */
+    public static int of(byte[] data, int offset, int length) {
+        final RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+
+    /**
+     * Sets the window to the specified bytes.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            final int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        this.length = length;
+    }
+
+    /**
+     * Slides the window by one byte.
+     *
+     * @param out the first byte of the window, it leaves the window
+     * @param in  the byte that follows the window, it becomes the last one
+     */
+    public void roll(byte out, byte in) {
+        final int x = out & 0xff;
+        a += (in & 0xff) - x;
+        b += a - length * x;
+    }
+
+    public int value() {
+        // sums overflow modulo 2^32, which keeps their lower halves exact
+        return (a & MASK) | (b << 16);
+    }
+}
@@ -0,0 +1,27 @@
+package ru.mit.spbau.antonpp.ftp.sync;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author antonpp
+ * @since 07/02/2017
+ */
+public class RollingChecksumTest {
+
+    @Test
+    public void testRollMatchesReset() {
+        final byte[] data = new byte[10000];
+        new Random(17).nextBytes(data);
+        final int window = 700;
+        final RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, window);
+        for (int start = 1; start + window <= data.length; start++) {
+            checksum.roll(data[start - 1], data[start + window - 1]);
+            assertEquals(RollingChecksum.of(data, start, window), checksum.value());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.beust.jcommander.Parameter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import ru.mit.spbau.antonpp.ftp.server.exceptions.FtpServerException;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 
 import java.io.IOException;
 import java.nio.file.Paths;
@@ -25,6 +26,35 @@ public class Application {
     @Parameter(names = {"-p", "--port"})
     private int port = 12345;
 
+    @Parameter(names = {"--nio"}, description = "Serve clients with a selector instead of a thread per connection")
+    private boolean nonBlocking;
+
+    @Parameter(names = {"--content-cache"}, description = "Size of in-memory cache of file contents in megabytes")
+    private long contentCacheMegabytes;
+
+    @Parameter(names = {"--rate-limit"}, description = "Maximum rate of sending files by the server in KB/s")
+    private long rateLimitKilobytes;
+
+    @Parameter(names = {"--connection-rate-limit"},
+            description = "Maximum rate of sending files through a single connection in KB/s")
+    private long connectionRateLimitKilobytes;
+
+    @Parameter(names = {"--nagle"}, description = "Do not set TCP_NODELAY on client sockets")
+    private boolean nagle;
+
+    @Parameter(names = {"--send-buffer"}, description = "Size of socket send buffers in KB, system default if 0")
+    private int sendBufferKilobytes;
+
+    @Parameter(names = {"--receive-buffer"}, description = "Size of socket receive buffers in KB, system default if 0")
+    private int receiveBufferKilobytes;
+
+    @Parameter(names = {"--access-log"}, description = "File to which handled requests are logged")
+    private String accessLog;
+
+    @Parameter(names = {"--upload-root"},
+            description = "Directory clients may upload files to, uploads are refused if it is not set")
+    private String uploadRoot;
+
     @Parameter(names = {"-h", "--help"}, description = "Print this help message and exit", help = true)
     private boolean help;
 
@@ -64,7 +94,21 @@ public class Application {
         val user = System.getProperty("user.name");
         val path = Paths.get(System.getProperty("user.home")).relativize(Paths.get(System.getProperty("user.dir")));
 
-        val server = new FtpServer(port);
+        val socketSettings = SocketSettings.builder()
+                .nagle(nagle)
+                .sendBufferSize(sendBufferKilobytes * 1024)
+                .receiveBufferSize(receiveBufferKilobytes * 1024)
+                .build();
+        val server = FtpServer.builder()
+                .port(port)
+                .nonBlocking(nonBlocking)
+                .contentCacheBytes(contentCacheMegabytes * 1024 * 1024)
+                .rateLimit(rateLimitKilobytes * 1024)
+                .connectionRateLimit(connectionRateLimitKilobytes * 1024)
+                .socketSettings(socketSettings)
+                .accessLogFile(accessLog == null ? null : Paths.get(accessLog))
+                .uploadRoot(uploadRoot == null ? null : Paths.get(uploadRoot))
+                .build();
 
         boolean isServerStarted = false;
 
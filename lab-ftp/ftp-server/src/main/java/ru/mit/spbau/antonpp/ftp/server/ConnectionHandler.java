@@ -1,19 +1,52 @@
 package ru.mit.spbau.antonpp.ftp.server;
 
+import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.ftp.compression.Codec;
+import ru.mit.spbau.antonpp.ftp.compression.Codecs;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+import ru.mit.spbau.antonpp.ftp.data.FileStat;
+import ru.mit.spbau.antonpp.ftp.protocol.FileStatus;
 import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
 import ru.mit.spbau.antonpp.ftp.server.exceptions.ConnectionException;
+import ru.mit.spbau.antonpp.ftp.sync.RollingChecksum;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.BufferPool;
+import ru.mit.spbau.antonpp.net.ResponseWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author antonpp
@@ -22,19 +55,116 @@ import java.util.stream.Collectors;
 @Slf4j
 public class ConnectionHandler implements Runnable {
 
+    /**
+     * Maximum number of bytes passed to a single {@link FileChannel#transferTo} call.
+     */
+    static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    /**
+     * Maximum number of entries in one frame of streamed listing.
+     */
+    static final int LIST_FRAME_SIZE = 512;
+    /**
+     * Files are compressed in independent chunks of this size.
+     */
+    static final int COMPRESSION_CHUNK_SIZE = 256 * 1024;
+    /**
+     * A file is compressed only if its first chunk shrinks at least to this fraction of the original size.
+     */
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+    /**
+     * Files of a batch that are not larger than this are read to memory and written to the response stream, so
+     * headers and contents of many small files are sent together.
+     */
+    static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Bounds of the block size of BLOCKSUMS.
+     */
+    static final int MIN_BLOCK_SIZE = 1024;
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    static final int MD5_SIZE = 16;
+    /**
+     * Default SO_TIMEOUT of client sockets. Reads of the socket channel ignore it, so requests are read through
+     * streams of the socket.
+     */
+    static final int READ_TIMEOUT_MILLIS = 10000;
+    /**
+     * Buffers of handlers created without a pool of the server, enough for one response of
+     * {@link ResponseWriter#MAX_BUFFERED} bytes, so responses do not allocate new direct buffers.
+     */
+    private static final BufferPool SHARED_BUFFER_POOL =
+            new BufferPool(ResponseWriter.BUFFER_SIZE, ResponseWriter.MAX_BUFFERED / ResponseWriter.BUFFER_SIZE);
+
     private final Socket clientSocket;
+    @Nullable
+    private final ListingCache listingCache;
+    @Nullable
+    private final ContentCache contentCache;
+    @Nullable
+    private final DigestCache digestCache;
+    private final TreeWalker treeWalker;
+    @Nullable
+    private final ServerMetrics metrics;
+    @Nullable
+    private final TrafficShaper.ConnectionShaper shaper;
+    private final BufferPool bufferPool;
+    @Nullable
+    private final AccessLog accessLog;
+    @Nullable
+    private final Path uploadRoot;
     private boolean isRunning = true;
+    /**
+     * Main argument of the current request for the access log, e.g. the requested path.
+     */
+    @Nullable
+    private Object requestArgument;
+    /**
+     * Bytes of the current response written straight to the socket channel.
+     */
+    private long directlySent;
+    /**
+     * Stream of responses of the connection. Responses written to other streams, e.g. ones prepared in memory by
+     * {@link MultiplexedSession}, must not bypass them through the socket channel.
+     */
+    private DataOutputStream connectionStream;
 
     public ConnectionHandler(Socket clientSocket) {
+        this(clientSocket, HandlerContext.EMPTY);
+    }
+
+    /**
+     * @param clientSocket connected client
+     * @param context      state shared between handlers of the server
+     */
+    ConnectionHandler(Socket clientSocket, HandlerContext context) {
         this.clientSocket = clientSocket;
+        listingCache = context.getListingCache();
+        contentCache = context.getContentCache();
+        digestCache = context.getDigestCache();
+        treeWalker = context.getTreeWalker() == null ? TreeWalker.COMMON : context.getTreeWalker();
+        metrics = context.getMetrics();
+        val trafficShaper = context.getTrafficShaper();
+        shaper = trafficShaper == null ? null : trafficShaper.newConnection();
+        val pool = context.getBufferPool();
+        bufferPool = pool == null ? SHARED_BUFFER_POOL : pool;
+        accessLog = context.getAccessLog();
+        uploadRoot = context.getUploadRoot();
+        val socketSettings = context.getSocketSettings();
+        try {
+            clientSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            if (socketSettings != null) {
+                socketSettings.apply(clientSocket);
+            }
+        } catch (SocketException e) {
+            log.warn("Failed to set socket options", e);
+        }
     }
 
     @Override
     public void run() {
         log.debug("Connected");
-        try (DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+        try (DataOutputStream dos = new DataOutputStream(newResponseWriter(clientSocket.getChannel() != null
+                ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream())));
              DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
-            clientSocket.setSoTimeout(10000);
             while (isRunning && !Thread.currentThread().isInterrupted()) {
                 handle(dis, dos);
             }
@@ -46,24 +176,36 @@ public class ConnectionHandler implements Runnable {
         }
     }
 
-    private void handle(DataInputStream dis, DataOutputStream dos) {
+    /**
+     * @return stream that assembles responses in buffers of this handler's pool and sends them to the target
+     */
+    ResponseWriter newResponseWriter(WritableByteChannel target) {
+        return new ResponseWriter(target, bufferPool);
+    }
+
+    /**
+     * Reads a single request from the input stream and writes the response to the output stream. The response is
+     * flushed when it is complete.
+     *
+     * @param dis request stream
+     * @param dos response stream
+     */
+    void handle(DataInputStream dis, DataOutputStream dos) {
         try {
             val requestCode = dis.readInt();
-            log.debug("Received request with code {}", requestCode);
-            switch (requestCode) {
-                case RequestCode.RQ_GET:
-                    handleGet(dis, dos);
-                    break;
-                case RequestCode.RQ_LIST:
-                    handleList(dis, dos);
-                    break;
-                case RequestCode.RQ_DISCONNECT:
-                    isRunning = false;
-                    break;
-                default:
-                    throw new ConnectionException("Unknown command");
+            val start = System.nanoTime();
+            val written = dos.size();
+            directlySent = 0;
+            connectionStream = dos;
+            dispatch(requestCode, dis, dos);
+            dos.flush();
+            val nanos = System.nanoTime() - start;
+            // DataOutputStream counts bytes up to Integer.MAX_VALUE, large files are sent directly anyway
+            val bytes = Math.max(0, dos.size() - written) + directlySent;
+            if (metrics != null) {
+                metrics.requestHandled(requestCode, nanos, bytes);
             }
-            log.debug("Request handled");
+            logAccess(requestCode, nanos, bytes);
         } catch (SocketTimeoutException e) {
             log.debug("Socket read time limit exceeded", e);
         } catch (IOException e) {
@@ -71,34 +213,669 @@ public class ConnectionHandler implements Runnable {
         }
     }
 
+    /**
+     * Reads arguments of the request and writes the response.
+     *
+     * @param requestCode code of the request, it is already read
+     * @param dis         request stream
+     * @param dos         response stream
+     * @throws IOException if request could not be read or response could not be written
+     */
+    void dispatch(int requestCode, DataInputStream dis, DataOutputStream dos) throws IOException {
+        switch (requestCode) {
+            case RequestCode.RQ_GET:
+                handleGet(dis, dos);
+                break;
+            case RequestCode.RQ_LIST:
+                handleList(dis, dos);
+                break;
+            case RequestCode.RQ_GET_RANGE:
+                handleGetRange(dis, dos);
+                break;
+            case RequestCode.RQ_LIST_STREAM:
+                handleListStream(dis, dos);
+                break;
+            case RequestCode.RQ_GET_COMPRESSED:
+                handleGetCompressed(dis, dos);
+                break;
+            case RequestCode.RQ_MGET:
+                handleMget(dis, dos);
+                break;
+            case RequestCode.RQ_STATS:
+                handleStats(dos);
+                break;
+            case RequestCode.RQ_BLOCKSUMS:
+                handleBlockSums(dis, dos);
+                break;
+            case RequestCode.RQ_PUT:
+                handlePut(dis, dos);
+                break;
+            case RequestCode.RQ_STAT:
+                handleStat(dis, dos);
+                break;
+            case RequestCode.RQ_GET_IF_CHANGED:
+                handleGetIfChanged(dis, dos);
+                break;
+            case RequestCode.RQ_FIND:
+                handleFind(dis, dos);
+                break;
+            case RequestCode.RQ_DU:
+                handleDu(dis, dos);
+                break;
+            case RequestCode.RQ_NOOP:
+                dos.writeBoolean(true);
+                break;
+            case RequestCode.RQ_UPGRADE_V2:
+                dos.writeInt(MultiplexedSession.VERSION);
+                // the client waits for the version before it sends requests of the session
+                dos.flush();
+                new MultiplexedSession(this).run(dis, dos);
+                isRunning = false;
+                break;
+            case RequestCode.RQ_DISCONNECT:
+                isRunning = false;
+                break;
+            default:
+                throw new ConnectionException("Unknown command");
+        }
+    }
+
+    boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Sets the main argument of the current request, it is logged when the request is handled.
+     */
+    void setRequestArgument(@Nullable Object argument) {
+        requestArgument = argument;
+    }
+
+    /**
+     * Logs the current request to the access log, if there is one. It is the only record of a request: records are
+     * written by its own thread, so the handler does not wait for the logging framework.
+     *
+     * @param requestCode code of the request
+     * @param nanos       time spent on the request
+     * @param bytes       size of the response
+     */
+    void logAccess(int requestCode, long nanos, long bytes) {
+        if (accessLog != null) {
+            accessLog.append(clientSocket.getRemoteSocketAddress(), requestCode, requestArgument, nanos, bytes);
+        }
+        requestArgument = null;
+    }
+
+    /**
+     * Waits until the connection is allowed to send the specified number of bytes of a file.
+     */
+    void shape(int bytes) {
+        if (shaper != null) {
+            shaper.acquire(bytes);
+        }
+    }
+
     private void handleGet(DataInputStream dis, DataOutputStream dos) throws IOException {
         val path = Paths.get(dis.readUTF());
-        log.info("GET {}", path);
+        requestArgument = path;
+        if (!Files.exists(path) || Files.isDirectory(path)) {
+            dos.writeLong(0);
+            return;
+        }
+        val content = contentCache == null ? null : contentCache.get(path);
+        if (content != null) {
+            dos.writeLong(content.remaining());
+            send(content, dos);
+        } else {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                val fileSz = file.size();
+                dos.writeLong(fileSz);
+                transfer(file, 0, fileSz, dos);
+            }
+        }
+    }
+
+    private void handleGetRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        val offset = dis.readLong();
+        val length = dis.readLong();
+        requestArgument = path;
         if (!Files.exists(path) || Files.isDirectory(path)) {
-            log.debug("{} is not a file. Result size 0", path);
+            dos.writeLong(-1);
             dos.writeLong(0);
         } else {
-            val fileSz = Files.size(path);
-            log.debug("{} exists. Result size {}", path, fileSz);
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                val fileSz = file.size();
+                val count = offset < 0 || length < 0 ? 0 : Math.max(0, Math.min(length, fileSz - offset));
+                dos.writeLong(fileSz);
+                dos.writeLong(count);
+                transfer(file, offset, count, dos);
+            }
+        }
+    }
+
+    private void handleStats(DataOutputStream dos) throws IOException {
+        final Map<String, Long> stats = metrics == null ? new LinkedHashMap<>() : metrics.snapshot();
+        if (accessLog != null) {
+            stats.put("accesslog.dropped", accessLog.getDropped());
+        }
+        val bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(stats.size());
+            for (Map.Entry<String, Long> entry : stats.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        bytes.writeTo(dos);
+    }
+
+    private void handleMget(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val count = dis.readInt();
+        if (count < 0) {
+            throw new ConnectionException("Negative number of files in MGET");
+        }
+        final List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            paths.add(Paths.get(dis.readUTF()));
+        }
+        requestArgument = count;
+        final byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+        for (Path path : paths) {
+            if (!Files.isRegularFile(path)) {
+                dos.writeByte(FileStatus.NOT_FOUND);
+                dos.writeLong(0);
+                continue;
+            }
+            val content = contentCache == null ? null : contentCache.get(path);
+            if (content != null) {
+                val size = content.remaining();
+                dos.writeByte(FileStatus.OK);
+                dos.writeLong(size);
+                if (size <= buffer.length) {
+                    content.get(buffer, 0, size);
+                    shape(size);
+                    dos.write(buffer, 0, size);
+                } else {
+                    send(content, dos);
+                }
+                continue;
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                val size = file.size();
+                dos.writeByte(FileStatus.OK);
+                dos.writeLong(size);
+                if (size <= buffer.length) {
+                    readFully(file, 0, buffer, (int) size);
+                    shape((int) size);
+                    dos.write(buffer, 0, (int) size);
+                } else {
+                    transfer(file, 0, size, dos);
+                }
+            }
+        }
+    }
+
+    private void handleGetCompressed(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        val codecId = dis.readInt();
+        requestArgument = path;
+        if (!Files.exists(path) || Files.isDirectory(path)) {
+            dos.writeLong(0);
+            dos.writeInt(Codecs.NONE);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+             Codec codec = Codecs.create(codecId)) {
+            val fileSz = file.size();
+            dos.writeLong(fileSz);
+            final byte[] raw = new byte[(int) Math.min(COMPRESSION_CHUNK_SIZE, fileSz)];
+            final byte[] compressed = new byte[raw.length];
+            // the first chunk is a sample: if it does not shrink enough, the rest of the file is not worth it either
+            int rawLength = raw.length;
+            readFully(file, 0, raw, rawLength);
+            int compressedLength = codec == null || rawLength == 0
+                    ? -1 : codec.compress(raw, rawLength, compressed, (int) (rawLength * MAX_COMPRESSION_RATIO));
+            if (compressedLength < 0) {
+                dos.writeInt(Codecs.NONE);
+                transfer(file, 0, fileSz, dos);
+                return;
+            }
+            dos.writeInt(codec.getId());
+            long position = 0;
+            long sent = 0;
+            while (true) {
+                dos.writeInt(rawLength);
+                if (compressedLength < 0) {
+                    dos.writeInt(rawLength);
+                    shape(rawLength);
+                    dos.write(raw, 0, rawLength);
+                    sent += rawLength;
+                } else {
+                    dos.writeInt(compressedLength);
+                    shape(compressedLength);
+                    dos.write(compressed, 0, compressedLength);
+                    sent += compressedLength;
+                }
+                position += rawLength;
+                if (position >= fileSz) {
+                    break;
+                }
+                rawLength = (int) Math.min(raw.length, fileSz - position);
+                readFully(file, position, raw, rawLength);
+                // a chunk is sent compressed only if it becomes strictly smaller
+                compressedLength = codec.compress(raw, rawLength, compressed, rawLength - 1);
+            }
+        }
+    }
+
+    private void handleBlockSums(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        val requestedBlockSize = dis.readInt();
+        requestArgument = path;
+        if (!Files.isRegularFile(path)) {
+            dos.writeLong(-1);
+            dos.writeInt(0);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            val fileSz = file.size();
+            val blockSize = blockSize(fileSz, requestedBlockSize);
             dos.writeLong(fileSz);
-            dos.write(Files.readAllBytes(path));
+            dos.writeInt(blockSize);
+            final byte[] block = new byte[(int) Math.min(blockSize, fileSz)];
+            val fileHasher = Hashing.md5().newHasher();
+            for (long position = 0; position < fileSz; position += blockSize) {
+                val length = (int) Math.min(blockSize, fileSz - position);
+                readFully(file, position, block, length);
+                dos.writeInt(RollingChecksum.of(block, 0, length));
+                dos.write(Hashing.md5().hashBytes(block, 0, length).asBytes());
+                fileHasher.putBytes(block, 0, length);
+            }
+            dos.write(fileHasher.hash().asBytes());
+        }
+    }
+
+    /**
+     * Unless the client asks for a particular size, blocks are about the square root of the file size. It balances
+     * the size of the checksums against the data downloaded again because of a single changed byte.
+     */
+    static int blockSize(long fileSize, int requested) {
+        final long size = requested > 0 ? requested : Long.highestOneBit((long) Math.sqrt(fileSize));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    private void handlePut(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val name = dis.readUTF();
+        val size = dis.readLong();
+        val path = uploadPath(name);
+        requestArgument = path == null ? name : path;
+        if (size < 0) {
+            throw new ConnectionException("Negative file size in PUT");
+        }
+        val temp = path == null ? null : createUploadFile(path);
+        if (temp == null) {
+            // the data must be consumed anyway to keep the connection usable
+            receive(dis, null, size);
+            dos.writeBoolean(false);
+            return;
+        }
+        boolean stored = false;
+        try {
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                receive(dis, file, size);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                stored = true;
+            } catch (IOException e) {
+                log.warn("Failed to replace " + path, e);
+            }
+        } finally {
+            if (!stored) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        if (stored) {
+            // the new file may have the same size and modification time as the cached one
+            if (contentCache != null) {
+                contentCache.invalidate(path);
+            }
+            if (digestCache != null) {
+                digestCache.invalidate(path);
+            }
         }
+        dos.writeBoolean(stored);
+    }
+
+    private void handleStat(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        requestArgument = path;
+        val stat = stat(path);
+        if (stat == null) {
+            dos.writeLong(-1);
+            return;
+        }
+        writeStat(stat, dos);
+    }
+
+    /**
+     * The file is sent only if its MD5 differs from the one of the client's copy, so a client that polls an unchanged
+     * file receives just its attributes.
+     */
+    private void handleGetIfChanged(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        final byte[] clientDigest = new byte[MD5_SIZE];
+        dis.readFully(clientDigest);
+        requestArgument = path;
+        val stat = stat(path);
+        if (stat == null) {
+            dos.writeByte(FileStatus.NOT_FOUND);
+            return;
+        }
+        if (Arrays.equals(clientDigest, stat.getDigest())) {
+            dos.writeByte(FileStatus.NOT_MODIFIED);
+            writeStat(stat, dos);
+            return;
+        }
+        dos.writeByte(FileStatus.OK);
+        writeStat(stat, dos);
+        val content = contentCache == null ? null : contentCache.get(path);
+        if (content != null && content.remaining() == stat.getSize()) {
+            send(content, dos);
+        } else {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                transfer(file, 0, stat.getSize(), dos);
+            }
+        }
+    }
+
+    /**
+     * @return attributes and MD5 of the file or null if it is not a regular file
+     */
+    @Nullable
+    FileStat stat(Path path) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return FileStat.builder()
+                .size(attributes.size())
+                .lastModified(attributes.lastModifiedTime().toMillis())
+                .digest(digestCache == null ? DigestCache.compute(path) : digestCache.get(path, attributes))
+                .build();
+    }
+
+    static void writeStat(FileStat stat, DataOutputStream dos) throws IOException {
+        dos.writeLong(stat.getSize());
+        dos.writeLong(stat.getLastModified());
+        dos.write(stat.getDigest());
+    }
+
+    /**
+     * Resolves the target of an upload against the upload root: a relative path is relative to the root, an absolute
+     * one must be inside of it.
+     *
+     * @return null if uploads are not allowed or the target is outside of the root, e.g. because of ".." or
+     * a symbolic link
+     */
+    @Nullable
+    private Path uploadPath(String name) {
+        if (uploadRoot == null) {
+            return null;
+        }
+        try {
+            val path = uploadRoot.resolve(name).normalize();
+            val parent = path.getParent();
+            if (parent != null && path.startsWith(uploadRoot)) {
+                // the root is a real path, so the real path of the parent is inside of it unless a link leads out;
+                // a missing parent is refused when the upload file is created
+                if (!Files.isDirectory(parent) || parent.toRealPath().startsWith(uploadRoot)) {
+                    return path;
+                }
+            }
+        } catch (InvalidPathException | IOException e) {
+            log.debug("Could not resolve {}: {}", name, e.toString());
+        }
+        log.warn("PUT of {} is refused, it is outside of {}", name, uploadRoot);
+        return null;
+    }
+
+    /**
+     * The upload is written next to the target, so that it could be renamed into place atomically.
+     *
+     * @return empty temporary file or null if the target could not be stored
+     */
+    @Nullable
+    private static Path createUploadFile(Path target) {
+        val parent = target.getParent();
+        if (parent == null || target.getFileName() == null || !Files.isDirectory(parent)
+                || Files.isDirectory(target)) {
+            log.debug("{} could not be stored", target);
+            return null;
+        }
+        try {
+            return Files.createTempFile(parent, "." + target.getFileName(), ".part");
+        } catch (IOException e) {
+            log.warn("Failed to create a file in " + parent, e);
+            return null;
+        }
+    }
+
+    /**
+     * Receives data of an upload through the request stream, so bytes that were received together with the request
+     * are taken first. The socket channel is not read directly: its reads ignore SO_TIMEOUT, and a client that stalls
+     * in the middle of an upload would hold the handler thread forever.
+     *
+     * @param file where the data is written, null if it is discarded
+     */
+    private void receive(DataInputStream dis, @Nullable FileChannel file, long size) throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(dis);
+        val discard = file == null ? ByteBuffer.allocate((int) Math.min(BATCH_BUFFER_SIZE, size)) : null;
+        long position = 0;
+        try {
+            while (position < size) {
+                val chunk = Math.min(TRANSFER_CHUNK_SIZE, size - position);
+                final long received;
+                if (file != null) {
+                    received = file.transferFrom(source, position, chunk);
+                } else {
+                    discard.clear().limit((int) Math.min(discard.capacity(), chunk));
+                    received = source.read(discard);
+                }
+                if (received <= 0) {
+                    throw new EOFException("Connection closed with " + (size - position) + " bytes of upload left");
+                }
+                position += received;
+            }
+        } catch (SocketTimeoutException e) {
+            // unlike an idle connection, a stalled upload leaves the request stream in the middle of the data
+            throw new IOException("Upload stalled", e);
+        }
+    }
+
+    private static void readFully(FileChannel file, long position, byte[] dst, int length) throws IOException {
+        val buffer = ByteBuffer.wrap(dst, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File was truncated during transfer");
+            }
+        }
+    }
+
+    /**
+     * Sends a region of the file without copying it to the heap. If the socket has a channel, the kernel copies
+     * data directly from the file to the socket. Rate limited transfers are sent in smaller chunks.
+     */
+    private void transfer(FileChannel file, long position, long count, DataOutputStream dos) throws IOException {
+        val target = target(dos);
+        val end = position + count;
+        val chunkSize = shaper == null ? TRANSFER_CHUNK_SIZE : TrafficShaper.CHUNK_SIZE;
+        while (position < end) {
+            val chunk = Math.min(chunkSize, end - position);
+            shape((int) chunk);
+            val transferred = file.transferTo(position, chunk, target);
+            if (transferred <= 0) {
+                throw new IOException("File was truncated during transfer");
+            }
+            position += transferred;
+            if (isDirect(dos)) {
+                directlySent += transferred;
+            }
+        }
+    }
+
+    private void send(ByteBuffer content, DataOutputStream dos) throws IOException {
+        val target = target(dos);
+        val end = content.limit();
+        while (content.hasRemaining()) {
+            if (shaper != null) {
+                content.limit(Math.min(end, content.position() + TrafficShaper.CHUNK_SIZE));
+                shaper.acquire(content.remaining());
+            }
+            while (content.hasRemaining()) {
+                val written = target.write(content);
+                if (isDirect(dos)) {
+                    directlySent += written;
+                }
+            }
+            content.limit(end);
+        }
+    }
+
+    private WritableByteChannel target(DataOutputStream dos) throws IOException {
+        if (!isDirect(dos)) {
+            return Channels.newChannel(dos);
+        }
+        // the buffered beginning of the response must be sent before the data
+        dos.flush();
+        return clientSocket.getChannel();
+    }
+
+    private boolean isDirect(DataOutputStream dos) {
+        return dos == connectionStream && clientSocket.getChannel() != null;
     }
 
     private void handleList(DataInputStream dis, DataOutputStream dos) throws IOException {
         val data = dis.readUTF();
-        log.info("LIST {}", data);
+        requestArgument = data;
         Path path = Paths.get(data);
         if (!Files.exists(path) || !Files.isDirectory(path)) {
             dos.writeInt(0);
+        } else if (listingCache != null) {
+            dos.write(listingCache.get(path, ConnectionHandler::encodeList));
         } else {
-            val files = Files.list(path).sorted().collect(Collectors.toList());
+            dos.write(encodeList(path));
+        }
+    }
+
+    /**
+     * Sends entries as soon as they are read from the directory, so the listing is never held in memory.
+     */
+    private void handleListStream(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val data = dis.readUTF();
+        requestArgument = data;
+        Path path = Paths.get(data);
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                final List<FileRecord> frame = new ArrayList<>(LIST_FRAME_SIZE);
+                for (Path p : entries) {
+                    final BasicFileAttributes attributes;
+                    try {
+                        // one stat call per entry for all of the attributes
+                        attributes = Files.readAttributes(p, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        log.debug("{} was deleted while listing", p);
+                        continue;
+                    }
+                    frame.add(FileRecord.builder()
+                            .name(p.getFileName().toString())
+                            .directory(attributes.isDirectory())
+                            .size(attributes.size())
+                            .lastModified(attributes.lastModifiedTime().toMillis())
+                            .build());
+                    if (frame.size() == LIST_FRAME_SIZE) {
+                        writeListFrame(frame, dos);
+                        frame.clear();
+                    }
+                }
+                if (!frame.isEmpty()) {
+                    writeListFrame(frame, dos);
+                }
+            }
+        }
+        dos.writeInt(0);
+    }
+
+    /**
+     * The subtree is searched on the server, so the client makes a single request instead of listing every
+     * directory, and only matching entries are sent.
+     */
+    private void handleFind(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val data = dis.readUTF();
+        val pattern = dis.readUTF();
+        requestArgument = data + " " + pattern;
+        val path = Paths.get(data);
+        val matcher = pathMatcher(pattern);
+        if (matcher != null && Files.isDirectory(path)) {
+            treeWalker.find(path, matcher, pattern.indexOf('/') < 0, frame -> writeListFrame(frame, dos));
+        }
+        dos.writeInt(0);
+    }
+
+    /**
+     * @return matcher of the pattern of FIND or null if the pattern is invalid
+     */
+    @Nullable
+    private static PathMatcher pathMatcher(String pattern) {
+        val syntaxAndPattern = pattern.startsWith("glob:") || pattern.startsWith("regex:")
+                ? pattern : "glob:" + pattern;
+        try {
+            return FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        } catch (IllegalArgumentException e) {
+            log.debug("Invalid pattern {}", pattern);
+            return null;
+        }
+    }
+
+    private void handleDu(DataInputStream dis, DataOutputStream dos) throws IOException {
+        val path = Paths.get(dis.readUTF());
+        requestArgument = path;
+        val usage = treeWalker.diskUsage(path);
+        dos.writeLong(usage.getSize());
+        if (usage.getSize() >= 0) {
+            dos.writeLong(usage.getFiles());
+            dos.writeLong(usage.getDirectories());
+        }
+    }
+
+    private static void writeListFrame(List<FileRecord> frame, DataOutputStream dos) throws IOException {
+        dos.writeInt(frame.size());
+        for (FileRecord record : frame) {
+            dos.writeUTF(record.getName());
+            dos.writeBoolean(record.isDirectory());
+            dos.writeLong(record.getSize());
+            dos.writeLong(record.getLastModified());
+        }
+    }
+
+    private static byte[] encodeList(Path dir) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Stream<Path> list = Files.list(dir);
+             DataOutputStream dos = new DataOutputStream(bytes)) {
+            val files = list.sorted().collect(Collectors.toList());
             dos.writeInt(files.size());
             for (Path p : files) {
                 dos.writeUTF(p.getFileName().toString());
                 dos.writeBoolean(Files.isDirectory(p));
             }
         }
+        return bytes.toByteArray();
     }
 
 }
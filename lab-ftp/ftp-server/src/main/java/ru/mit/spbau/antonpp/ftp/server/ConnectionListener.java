@@ -0,0 +1,19 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections on the server port and dispatches them to connection handlers.
+ *
+ * @author antonpp
+ * @since 20/01/2017
+ */
+public interface ConnectionListener extends Runnable {
+
+    /**
+     * Stops accepting new connections and terminates the active ones.
+     *
+     * @throws IOException if server socket could not be closed correctly
+     */
+    void stop() throws IOException;
+}
@@ -0,0 +1,290 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * LRU cache of contents of files served by GET, shared by all connection handlers. Contents are kept in direct
+ * buffers, so they do not load the garbage collector and are written to sockets without an extra copy. An entry is
+ * valid while size and modification time of the file are the same as when it was loaded. If several handlers miss
+ * the same file at once, only one of them reads it and the others wait for the result.
+ * <p>
+ * A file is loaded only when it misses for the second time while it is remembered among recent misses, so a scan
+ * of files that are requested once is sent from disk and does not evict files that are requested again and again.
+ * <p>
+ * Memory of a direct buffer is freed only when the buffer is collected, which happens after it is evicted and
+ * responses that send it are done. Buffers allocated by the cache are tracked until then, and while they take more
+ * than twice the size of the cache, missed files are sent from disk. So the cache never holds more than
+ * {@code 2 * maxBytes} of direct memory; {@code -XX:MaxDirectMemorySize} should leave room for that.
+ *
+ * @author antonpp
+ * @since 30/01/2017
+ */
+@Slf4j
+class ContentCache {
+
+    /**
+     * Number of recent misses that are remembered.
+     */
+    private static final int MAX_MISSED = 16 * 1024;
+
+    private final long maxBytes;
+    /**
+     * Larger files are always sent from disk, so a single download does not flush the whole cache.
+     */
+    private final long maxFileBytes;
+    /**
+     * Access-ordered, so the first entry is the least recently used one.
+     */
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Loads in progress. A load completes with null if the file could not be cached.
+     */
+    private final Map<Path, CompletableFuture<Entry>> loading = new HashMap<>();
+    /**
+     * Files that recently missed once, access-ordered.
+     */
+    private final Map<Path, Boolean> missed = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Buffers allocated by the cache that are not collected yet.
+     */
+    private final Set<Allocation> allocations = new HashSet<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private long totalBytes;
+    /**
+     * Total size of the allocated buffers, including ones that are reserved for loads in progress.
+     */
+    private long allocatedBytes;
+
+    /**
+     * @param maxBytes maximum total size of cached files
+     */
+    ContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        maxFileBytes = Math.min(maxBytes / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return total size of direct buffers allocated by the cache that are not collected yet
+     */
+    synchronized long getAllocatedBytes() {
+        expungeCollected();
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns contents of the file from the cache or loads and caches them.
+     *
+     * @param file requested file
+     * @return read-only buffer with contents of the file or null if the file should be read from disk, because it is
+     * not a regular file, it is too large, it has not missed before, too much memory waits to be freed or the file was
+     * modified while loading
+     * @throws IOException if attributes of the file could not be read
+     */
+    @Nullable
+    ByteBuffer get(Path file) throws IOException {
+        val key = file.toAbsolutePath().normalize();
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidate(key);
+            return null;
+        }
+        if (!attributes.isRegularFile() || attributes.size() > maxFileBytes) {
+            return null;
+        }
+        final CompletableFuture<Entry> load;
+        final boolean isLoader;
+        synchronized (this) {
+            val entry = entries.get(key);
+            if (entry != null && entry.isValid(attributes)) {
+                return entry.data.duplicate();
+            }
+            val pending = loading.get(key);
+            isLoader = pending == null;
+            // a file that was cached before is hot already, it is reloaded at once when it changes
+            if (isLoader && !admit(key, attributes.size(), entry != null)) {
+                return null;
+            }
+            load = isLoader ? new CompletableFuture<>() : pending;
+            if (isLoader) {
+                loading.put(key, load);
+            }
+        }
+        if (isLoader) {
+            Entry entry = null;
+            try {
+                entry = load(key, attributes);
+            } finally {
+                // waiting handlers must be released even if the load failed
+                synchronized (this) {
+                    loading.remove(key);
+                    if (entry != null) {
+                        put(key, entry);
+                    }
+                }
+                load.complete(entry);
+            }
+            return entry == null ? null : entry.data.duplicate();
+        }
+        try {
+            val entry = load.get();
+            return entry == null ? null : entry.data.duplicate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decides whether a missed file is loaded, and if it is, reserves memory for it.
+     */
+    private boolean admit(Path key, long size, boolean wasCached) {
+        if (missed.remove(key) == null && !wasCached) {
+            missed.put(key, Boolean.TRUE);
+            val iterator = missed.keySet().iterator();
+            while (missed.size() > MAX_MISSED && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+            return false;
+        }
+        expungeCollected();
+        if (allocatedBytes + size > 2 * maxBytes) {
+            log.debug("Too much memory waits to be freed, {} is sent from disk", key);
+            // it is still hot, so it is loaded when memory is freed
+            missed.put(key, Boolean.TRUE);
+            return false;
+        }
+        allocatedBytes += size;
+        return true;
+    }
+
+    private void expungeCollected() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            if (allocations.remove(reference)) {
+                allocatedBytes -= ((Allocation) reference).size;
+            }
+        }
+    }
+
+    @Nullable
+    private Entry load(Path key, BasicFileAttributes attributes) {
+        log.debug("Content cache miss {}", key);
+        final ByteBuffer data;
+        try {
+            data = ByteBuffer.allocateDirect((int) attributes.size());
+        } catch (OutOfMemoryError e) {
+            // direct memory is limited separately from the heap, the file is sent from disk then
+            log.warn("Could not allocate {} bytes for {}: {}", new Object[]{attributes.size(), key, e.getMessage()});
+            synchronized (this) {
+                allocatedBytes -= attributes.size();
+            }
+            return null;
+        }
+        synchronized (this) {
+            allocations.add(new Allocation(data, attributes.size(), collected));
+        }
+        try {
+            try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+                while (data.hasRemaining()) {
+                    if (channel.read(data) < 0) {
+                        break;
+                    }
+                }
+            }
+            data.flip();
+            val entry = new Entry(data.asReadOnlyBuffer(), attributes.size(), attributes.lastModifiedTime());
+            // the file could be written while it was read, then the contents are not consistent
+            if (!entry.isValid(Files.readAttributes(key, BasicFileAttributes.class))
+                    || data.limit() != attributes.size()) {
+                log.debug("{} was modified while loading", key);
+                return null;
+            }
+            return entry;
+        } catch (IOException e) {
+            log.warn("Failed to load " + key + " to the cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops cached contents of the file, e.g. because it was replaced by a file with the same size and time.
+     */
+    synchronized void invalidate(Path file) {
+        val entry = entries.remove(file.toAbsolutePath().normalize());
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    private void put(Path key, Entry entry) {
+        val old = entries.put(key, entry);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        totalBytes += entry.size;
+        val iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.size;
+        }
+    }
+
+    /**
+     * Tracks a buffer until it is collected and its memory is freed.
+     */
+    private static final class Allocation extends PhantomReference<ByteBuffer> {
+        private final long size;
+
+        private Allocation(ByteBuffer buffer, long size, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.size = size;
+        }
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final ByteBuffer data;
+        private final long size;
+        @NotNull
+        private final FileTime modified;
+
+        private Entry(@NotNull ByteBuffer data, long size, @NotNull FileTime modified) {
+            this.data = data;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        private boolean isValid(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().equals(modified);
+        }
+    }
+}
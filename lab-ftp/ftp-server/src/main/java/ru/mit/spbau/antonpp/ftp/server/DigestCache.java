@@ -0,0 +1,98 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of MD5 of files served by STAT and conditional GET, shared by all connection handlers. Like entries of
+ * {@link ContentCache}, a digest is valid while size and modification time of the file are the same as when it was
+ * computed, so a file that is polled often but rarely changes is read only once.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Slf4j
+class DigestCache {
+
+    private final int maxEntries;
+    /**
+     * Access-ordered, so the first entry is the least recently used one.
+     */
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxEntries maximum number of cached digests
+     */
+    DigestCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param file       regular file
+     * @param attributes attributes of the file read by the caller
+     * @return MD5 of contents of the file
+     * @throws IOException if the file could not be read
+     */
+    byte[] get(Path file, BasicFileAttributes attributes) throws IOException {
+        val key = file.toAbsolutePath().normalize();
+        synchronized (this) {
+            val entry = entries.get(key);
+            if (entry != null && entry.isValid(attributes)) {
+                return entry.digest;
+            }
+        }
+        log.debug("Digest cache miss {}", key);
+        val digest = compute(key);
+        // the file could be written while it was read, then the digest is returned but not cached
+        if (new Entry(digest, attributes).isValid(Files.readAttributes(key, BasicFileAttributes.class))) {
+            synchronized (this) {
+                entries.put(key, new Entry(digest, attributes));
+                val iterator = entries.values().iterator();
+                while (entries.size() > maxEntries && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Drops the digest of the file, e.g. because it was replaced by a file with the same size and time.
+     */
+    synchronized void invalidate(Path file) {
+        entries.remove(file.toAbsolutePath().normalize());
+    }
+
+    static byte[] compute(Path file) throws IOException {
+        return com.google.common.io.Files.hash(file.toFile(), Hashing.md5()).asBytes();
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final byte[] digest;
+        private final long size;
+        @NotNull
+        private final FileTime modified;
+
+        private Entry(@NotNull byte[] digest, BasicFileAttributes attributes) {
+            this.digest = digest;
+            size = attributes.size();
+            modified = attributes.lastModifiedTime();
+        }
+
+        private boolean isValid(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().equals(modified);
+        }
+    }
+}
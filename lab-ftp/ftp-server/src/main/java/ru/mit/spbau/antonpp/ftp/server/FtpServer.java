@@ -1,13 +1,23 @@
 package ru.mit.spbau.antonpp.ftp.server;
 
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
 import ru.mit.spbau.antonpp.ftp.server.exceptions.FtpServerException;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.BufferPool;
+import ru.mit.spbau.antonpp.net.ResponseWriter;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class organises the work process of the server.
@@ -19,9 +29,34 @@ import java.util.concurrent.Executors;
 public class FtpServer implements Closeable {
 
     static final int MAX_THREADS = 4;
+    private static final int STOP_TIMEOUT_SECONDS = 5;
+    private static final long LIST_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int DIGEST_CACHE_ENTRIES = 64 * 1024;
+    private static final int DU_CACHE_DIRECTORIES = 64 * 1024;
+    /**
+     * Threads that walk trees for FIND and DU. They mostly wait for stat calls, so there are more of them than
+     * handler threads.
+     */
+    private static final int WALKER_THREADS = 2 * MAX_THREADS;
+    /**
+     * Enough for responses of all handler threads, they hold up to {@link ResponseWriter#MAX_BUFFERED} each.
+     */
+    private static final int POOLED_BUFFERS = MAX_THREADS * ResponseWriter.MAX_BUFFERED / ResponseWriter.BUFFER_SIZE;
     private final int port;
+    private final boolean nonBlocking;
+    private final long contentCacheBytes;
+    private final long rateLimit;
+    private final long connectionRateLimit;
+    private final SocketSettings socketSettings;
+    @Nullable
+    private final Path accessLogFile;
+    @Nullable
+    private final Path uploadRoot;
     private ExecutorService listenService;
-    private PortListener portListener;
+    private ConnectionListener portListener;
+    private ListingCache listingCache;
+    private ForkJoinPool walkerPool;
+    private AccessLog accessLog;
     private boolean isStarted = true;
 
     /**
@@ -30,7 +65,50 @@ public class FtpServer implements Closeable {
      * @param port port to be listened when the server is started.
      */
     public FtpServer(int port) {
+        this(port, false);
+    }
+
+    /**
+     * Creates server socket on the specified port.
+     *
+     * @param port        port to be listened when the server is started.
+     * @param nonBlocking if true, connections are served by {@link SelectorPortListener} so that idle clients do not
+     *                    occupy handler threads, otherwise every connection holds a thread until it is closed.
+     */
+    public FtpServer(int port, boolean nonBlocking) {
+        this(port, nonBlocking, 0, 0, 0, null, null, null);
+    }
+
+    /**
+     * Creates a server with the options that are set in the builder, e.g.
+     * {@code FtpServer.builder().port(port).contentCacheBytes(bytes).build()}. Options that are not set are disabled.
+     *
+     * @param port                port to be listened when the server is started.
+     * @param nonBlocking         if true, connections are served by {@link SelectorPortListener}.
+     * @param contentCacheBytes   maximum size of file contents cached in memory, 0 if every GET must read the file
+     *                            from disk.
+     * @param rateLimit           maximum rate in bytes per second at which all connections together send files,
+     *                            0 if it is not limited. Limited transfers hold a handler thread while they wait,
+     *                            see {@link TrafficShaper}.
+     * @param connectionRateLimit maximum rate in bytes per second at which a single connection sends files,
+     *                            0 if it is not limited.
+     * @param socketSettings      options of client sockets, null for {@link SocketSettings#DEFAULT}.
+     * @param accessLogFile       file to which handled requests are logged, null if they are not logged.
+     * @param uploadRoot          existing directory clients may upload files to with PUT, null if uploads are
+     *                            refused. Uploads to paths outside of it are refused too.
+     */
+    @Builder
+    private FtpServer(int port, boolean nonBlocking, long contentCacheBytes, long rateLimit,
+                      long connectionRateLimit, @Nullable SocketSettings socketSettings,
+                      @Nullable Path accessLogFile, @Nullable Path uploadRoot) {
         this.port = port;
+        this.nonBlocking = nonBlocking;
+        this.contentCacheBytes = contentCacheBytes;
+        this.rateLimit = rateLimit;
+        this.connectionRateLimit = connectionRateLimit;
+        this.socketSettings = socketSettings == null ? SocketSettings.DEFAULT : socketSettings;
+        this.accessLogFile = accessLogFile;
+        this.uploadRoot = uploadRoot;
     }
 
     /**
@@ -39,13 +117,45 @@ public class FtpServer implements Closeable {
      * @throws FtpServerException if ServerSocket could not be created with specified port.
      */
     public void start() throws FtpServerException {
-        final ServerSocket serverSocket;
+        ServerSocketChannel serverChannel = null;
         try {
-            serverSocket = new ServerSocket(port);
+            accessLog = accessLogFile == null ? null : new AccessLog(accessLogFile, ServerMetrics::requestName);
+            serverChannel = ServerSocketChannel.open();
+            socketSettings.apply(serverChannel.socket());
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            listingCache = new ListingCache(LIST_CACHE_BYTES);
+            walkerPool = new ForkJoinPool(WALKER_THREADS);
+            final HandlerContext context = HandlerContext.builder()
+                    .listingCache(listingCache)
+                    .contentCache(contentCacheBytes > 0 ? new ContentCache(contentCacheBytes) : null)
+                    .digestCache(new DigestCache(DIGEST_CACHE_ENTRIES))
+                    .treeWalker(new TreeWalker(walkerPool, DU_CACHE_DIRECTORIES))
+                    .metrics(new ServerMetrics(MAX_THREADS))
+                    .trafficShaper(rateLimit > 0 || connectionRateLimit > 0
+                            ? new TrafficShaper(rateLimit, connectionRateLimit) : null)
+                    .bufferPool(new BufferPool(ResponseWriter.BUFFER_SIZE, POOLED_BUFFERS))
+                    .socketSettings(socketSettings)
+                    .accessLog(accessLog)
+                    .uploadRoot(uploadRoot == null ? null : uploadRoot.toRealPath())
+                    .build();
+            if (nonBlocking) {
+                portListener = new SelectorPortListener(serverChannel, context);
+            } else {
+                // sockets accepted through the channel have channels too, so files are sent with zero-copy
+                portListener = new PortListener(serverChannel.socket(), context);
+            }
         } catch (IOException e) {
+            // everything opened so far is released, so that the port and the log file are not held by a server
+            // that never ran
+            closeAll(e, serverChannel, listingCache, accessLog);
+            if (walkerPool != null) {
+                walkerPool.shutdownNow();
+            }
+            listingCache = null;
+            walkerPool = null;
+            accessLog = null;
             throw new FtpServerException("Could not start server", e);
         }
-        portListener = new PortListener(serverSocket);
         listenService = Executors.newSingleThreadExecutor();
         listenService.execute(portListener);
         isStarted = true;
@@ -60,14 +170,42 @@ public class FtpServer implements Closeable {
         if (isStarted) {
             portListener.stop();
             listenService.shutdown();
+            // the port is released only when the listener thread leaves accept/select
+            try {
+                if (!listenService.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Port listener did not stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            listingCache.close();
+            walkerPool.shutdownNow();
+            if (accessLog != null) {
+                accessLog.close();
+            }
             portListener = null;
             listenService = null;
+            listingCache = null;
+            walkerPool = null;
+            accessLog = null;
         } else {
             throw new IllegalStateException("Cannot stop not started server");
         }
 
     }
 
+    private static void closeAll(IOException failure, Closeable... resources) {
+        for (Closeable resource : resources) {
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (isStarted) {
@@ -0,0 +1,75 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.Builder;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.BufferPool;
+import ru.mit.spbau.antonpp.net.SocketSettings;
+
+import java.nio.file.Path;
+
+/**
+ * State of the server shared by all of its connection handlers. Every part is optional, a handler created with an
+ * empty context serves all requests straight from disk and refuses uploads.
+ *
+ * @author antonpp
+ * @since 30/01/2017
+ */
+@Getter
+@Builder
+class HandlerContext {
+
+    static final HandlerContext EMPTY = HandlerContext.builder().build();
+
+    /**
+     * Cache of LIST responses.
+     */
+    @Nullable
+    private final ListingCache listingCache;
+    /**
+     * Cache of contents of frequently requested files.
+     */
+    @Nullable
+    private final ContentCache contentCache;
+    /**
+     * Digests of files served by STAT and conditional GET, they are computed on every request if it is not set.
+     */
+    @Nullable
+    private final DigestCache digestCache;
+    /**
+     * Walks trees for FIND and DU, {@link TreeWalker#COMMON} is used if it is not set.
+     */
+    @Nullable
+    private final TreeWalker treeWalker;
+    /**
+     * Counters of requests and connections.
+     */
+    @Nullable
+    private final ServerMetrics metrics;
+    /**
+     * Limits of the rate at which files are sent.
+     */
+    @Nullable
+    private final TrafficShaper trafficShaper;
+    /**
+     * Buffers in which responses are assembled. Handlers share a small static pool if it is not set.
+     */
+    @Nullable
+    private final BufferPool bufferPool;
+    /**
+     * Options applied to client sockets, sockets are left as they are if it is not set.
+     */
+    @Nullable
+    private final SocketSettings socketSettings;
+    /**
+     * Log of handled requests, requests are not logged if it is not set.
+     */
+    @Nullable
+    private final AccessLog accessLog;
+    /**
+     * Real path of the directory PUT may store files in, PUT is refused if it is not set.
+     */
+    @Nullable
+    private final Path uploadRoot;
+}
@@ -0,0 +1,69 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with bounded relative error. Values are counted in log-linear buckets:
+ * every power of two is split into {@link #SUB_BUCKETS} equal buckets, so a percentile is reported with an error
+ * of at most 1/8 of its value.
+ *
+ * @author antonpp
+ * @since 02/02/2017
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value that falls into the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    void record(long value) {
+        counts.incrementAndGet(bucket(value));
+    }
+
+    /**
+     * Concurrent updates may be partially visible, which is fine for monitoring.
+     *
+     * @param fraction requested percentile from 0 to 1
+     * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long percentile(double fraction) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,190 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded LIST responses shared by all connection handlers. An entry is dropped as soon as
+ * {@link WatchService} reports that an entry of the directory was created or deleted. If the directory could not be
+ * watched, the entry is validated by modification time of the directory instead.
+ *
+ * @author antonpp
+ * @since 24/01/2017
+ */
+@Slf4j
+class ListingCache implements Closeable {
+
+    private final long maxBytes;
+    /**
+     * Access-ordered, so the first entry is the least recently used one.
+     */
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    @Nullable
+    private final WatchService watchService;
+    private long totalBytes;
+    /**
+     * Incremented on every invalidation, so a listing loaded concurrently with a change is not cached.
+     */
+    private long generation;
+
+    /**
+     * @param maxBytes maximum total size of cached responses
+     */
+    ListingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("WatchService is not available, listings are validated by modification time", e);
+        }
+        watchService = service;
+        if (watchService != null) {
+            final Thread watcher = new Thread(this::watch, "listing-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * Returns cached response for the directory or loads and caches it.
+     *
+     * @param dir    existing directory
+     * @param loader encodes LIST response for the directory
+     * @return encoded response
+     * @throws IOException if loader failed
+     */
+    byte[] get(Path dir, Loader loader) throws IOException {
+        val key = dir.toAbsolutePath().normalize();
+        final long loadGeneration;
+        synchronized (this) {
+            val entry = entries.get(key);
+            if (entry != null && entry.isValid(key)) {
+                log.debug("LIST cache hit {}", key);
+                return entry.data;
+            }
+            loadGeneration = generation;
+        }
+        // start watching before listing, so changes made while listing are not missed
+        val watchKey = register(key);
+        val modified = Files.getLastModifiedTime(key).toMillis();
+        val data = loader.load(key);
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                put(key, new Entry(data, watchKey, modified));
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        synchronized (this) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void put(Path key, Entry entry) {
+        val old = entries.put(key, entry);
+        if (old != null) {
+            totalBytes -= old.data.length;
+            if (old.watchKey != null && old.watchKey != entry.watchKey) {
+                old.watchKey.cancel();
+            }
+        }
+        totalBytes += entry.data.length;
+        val iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= eldest.data.length;
+            if (eldest.watchKey != null) {
+                eldest.watchKey.cancel();
+            }
+        }
+    }
+
+    @Nullable
+    private WatchKey register(Path dir) {
+        if (watchService == null) {
+            return null;
+        }
+        try {
+            return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+            log.debug("Could not watch {}", dir);
+            return null;
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                val watchKey = watchService.take();
+                val events = watchKey.pollEvents();
+                val dir = (Path) watchKey.watchable();
+                log.debug("{} changes in {}, dropping cached listing", events.size(), dir);
+                synchronized (this) {
+                    ++generation;
+                    val entry = entries.get(dir);
+                    if (entry != null && entry.watchKey == watchKey) {
+                        entries.remove(dir);
+                        totalBytes -= entry.data.length;
+                    }
+                    // the directory is registered again on the next miss
+                    watchKey.cancel();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Listing cache watcher stopped");
+        }
+    }
+
+    interface Loader {
+        byte[] load(Path dir) throws IOException;
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final byte[] data;
+        @Nullable
+        private final WatchKey watchKey;
+        private final long modified;
+
+        private Entry(@NotNull byte[] data, @Nullable WatchKey watchKey, long modified) {
+            this.data = data;
+            this.watchKey = watchKey;
+            this.modified = modified;
+        }
+
+        private boolean isValid(Path dir) {
+            if (watchKey != null) {
+                return watchKey.isValid();
+            }
+            try {
+                return Files.getLastModifiedTime(dir).toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.ftp.protocol.FileStatus;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+import ru.mit.spbau.antonpp.ftp.server.exceptions.ConnectionException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of protocol v2 (see {@link RequestCode#RQ_UPGRADE_V2}). The connection thread keeps reading requests
+ * while a separate writer sends responses of all requests in flight round-robin, at most {@link #WINDOW_SIZE} bytes
+ * of one response at a time. So a large file does not delay small responses requested after it.
+ * <p>
+ * Files are sent straight from disk and other responses are prepared in memory, so only requests whose responses
+ * are files or are small are accepted. A request that is not accepted is answered with a {@link #REJECTED} frame and
+ * ends the session, since its arguments are not read. At most {@link #MAX_IN_FLIGHT} responses are queued, the socket
+ * is not read while there are that many, and a file is opened only when its first frame is sent.
+ *
+ * @author antonpp
+ * @since 29/01/2017
+ */
+@Slf4j
+class MultiplexedSession {
+
+    static final int VERSION = 2;
+    /**
+     * Maximum number of bytes of one response sent before switching to the next one.
+     */
+    static final int WINDOW_SIZE = 64 * 1024;
+    /**
+     * Payload length of the frame that rejects a request.
+     */
+    static final int REJECTED = -1;
+    /**
+     * Maximum number of requests whose responses are not sent yet.
+     */
+    static final int MAX_IN_FLIGHT = 64;
+    private static final long WRITER_CHECK_MILLIS = 100;
+
+    private final ConnectionHandler handler;
+    /**
+     * Responses that have something left to send. The writer takes a response from the head and, if it is not
+     * finished, returns it to the tail.
+     */
+    private final BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+    /**
+     * Permits of requests that may be read, a permit is returned when the response is finished.
+     */
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    MultiplexedSession(ConnectionHandler handler) {
+        this.handler = handler;
+    }
+
+    void run(DataInputStream dis, DataOutputStream dos) throws IOException {
+        log.debug("Switched to protocol v2");
+        final ExecutorService writeService = Executors.newSingleThreadExecutor();
+        final Future<?> writer = writeService.submit(() -> {
+            writeResponses(dos);
+            return null;
+        });
+        try {
+            while (true) {
+                awaitSlot(writer);
+                val id = readId(dis);
+                val requestCode = dis.readInt();
+                if (requestCode == RequestCode.RQ_DISCONNECT) {
+                    break;
+                }
+                if (requestCode == RequestCode.RQ_UPGRADE_V2) {
+                    throw new ConnectionException("Protocol v2 is already in use");
+                }
+                if (!isAccepted(requestCode)) {
+                    log.warn("Request with code {} is not accepted in protocol v2, the session is ended",
+                            requestCode);
+                    handler.logAccess(requestCode, 0, 0);
+                    responses.add(Response.rejected(id));
+                    break;
+                }
+                val start = System.nanoTime();
+                val response = createResponse(id, requestCode, dis);
+                // responses are sent by the writer thread, so only the time of preparing one is logged
+                handler.logAccess(requestCode, System.nanoTime() - start, response.size());
+                responses.add(response);
+            }
+            responses.add(Response.END);
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write responses", e.getCause());
+        } finally {
+            writeService.shutdownNow();
+            for (val response : responses) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Waits until a response may be queued, so requests are not read while the client does not read responses.
+     */
+    private void awaitSlot(Future<?> writer) throws InterruptedException, ExecutionException, IOException {
+        while (!inFlight.tryAcquire(WRITER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (writer.isDone()) {
+                // the writer returns only after the end of the session, so it has failed
+                writer.get();
+                throw new IOException("Responses are not written anymore");
+            }
+        }
+    }
+
+    private static int readId(DataInputStream dis) throws IOException {
+        while (true) {
+            try {
+                return dis.readInt();
+            } catch (SocketTimeoutException e) {
+                // the client just has nothing to request while waiting for responses
+            }
+        }
+    }
+
+    /**
+     * @return true if the response is streamed from a file or its size does not depend on sizes of files
+     */
+    private static boolean isAccepted(int requestCode) {
+        switch (requestCode) {
+            case RequestCode.RQ_GET:
+            case RequestCode.RQ_GET_RANGE:
+            case RequestCode.RQ_GET_IF_CHANGED:
+            case RequestCode.RQ_LIST:
+            case RequestCode.RQ_STAT:
+            case RequestCode.RQ_DU:
+            case RequestCode.RQ_STATS:
+            case RequestCode.RQ_NOOP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Files are sent straight from disk, responses of other accepted requests are prepared in memory.
+     */
+    private Response createResponse(int id, int requestCode, DataInputStream dis) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream headerOS = new DataOutputStream(header);
+        switch (requestCode) {
+            case RequestCode.RQ_GET: {
+                val path = Paths.get(dis.readUTF());
+                handler.setRequestArgument(path);
+                val fileSz = Math.max(0, fileSize(path));
+                headerOS.writeLong(fileSz);
+                return new Response(id, header.toByteArray(), path, 0, fileSz);
+            }
+            case RequestCode.RQ_GET_RANGE: {
+                val path = Paths.get(dis.readUTF());
+                val offset = dis.readLong();
+                val length = dis.readLong();
+                handler.setRequestArgument(path);
+                val fileSz = fileSize(path);
+                if (fileSz < 0) {
+                    headerOS.writeLong(-1);
+                    headerOS.writeLong(0);
+                    return new Response(id, header.toByteArray(), null, 0, 0);
+                }
+                val count = offset < 0 || length < 0 ? 0 : Math.max(0, Math.min(length, fileSz - offset));
+                headerOS.writeLong(fileSz);
+                headerOS.writeLong(count);
+                return new Response(id, header.toByteArray(), path, Math.max(0, offset), count);
+            }
+            case RequestCode.RQ_GET_IF_CHANGED: {
+                val path = Paths.get(dis.readUTF());
+                final byte[] clientDigest = new byte[ConnectionHandler.MD5_SIZE];
+                dis.readFully(clientDigest);
+                handler.setRequestArgument(path);
+                val stat = handler.stat(path);
+                if (stat != null && Arrays.equals(clientDigest, stat.getDigest())) {
+                    headerOS.writeByte(FileStatus.NOT_MODIFIED);
+                    ConnectionHandler.writeStat(stat, headerOS);
+                    return new Response(id, header.toByteArray(), null, 0, 0);
+                }
+                if (stat == null) {
+                    headerOS.writeByte(FileStatus.NOT_FOUND);
+                    return new Response(id, header.toByteArray(), null, 0, 0);
+                }
+                headerOS.writeByte(FileStatus.OK);
+                ConnectionHandler.writeStat(stat, headerOS);
+                return new Response(id, header.toByteArray(), path, 0, stat.getSize());
+            }
+            default:
+                handler.dispatch(requestCode, dis, headerOS);
+                return new Response(id, header.toByteArray(), null, 0, 0);
+        }
+    }
+
+    /**
+     * @return size of the file or -1 if it is not a regular file
+     */
+    private static long fileSize(Path path) throws IOException {
+        if (!Files.exists(path) || Files.isDirectory(path)) {
+            return -1;
+        }
+        return Files.size(path);
+    }
+
+    private void writeResponses(DataOutputStream dos) throws IOException, InterruptedException {
+        // the connection thread keeps reading the socket with a timeout, which switches its channel to non-blocking
+        // mode, so files are copied through a buffer instead of FileChannel.transferTo
+        val buffer = ByteBuffer.allocate(WINDOW_SIZE);
+        while (true) {
+            val response = responses.take();
+            if (response == Response.END) {
+                if (responses.isEmpty()) {
+                    return;
+                }
+                // some responses are not finished yet
+                responses.add(response);
+                continue;
+            }
+            if (response.writeFrame(dos, buffer, handler)) {
+                responses.add(response);
+            } else {
+                response.close();
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Response payload is a header prepared in memory, followed by a region of a file. The file is opened when its
+     * first byte is sent, so queued responses do not hold descriptors.
+     */
+    private static final class Response {
+        /**
+         * Marks that no more requests will be received.
+         */
+        private static final Response END = new Response(-1, new byte[0], null, 0, 0);
+
+        private final int id;
+        private final byte[] header;
+        @Nullable
+        private final Path path;
+        @Nullable
+        private FileChannel file;
+        private final long fileEnd;
+        private boolean isRejected;
+        private int headerPosition;
+        private long filePosition;
+
+        private Response(int id, byte[] header, @Nullable Path path, long filePosition, long count) {
+            this.id = id;
+            this.header = header;
+            this.path = path;
+            this.filePosition = filePosition;
+            fileEnd = filePosition + count;
+        }
+
+        private static Response rejected(int id) {
+            val response = new Response(id, new byte[0], null, 0, 0);
+            response.isRejected = true;
+            return response;
+        }
+
+        private long size() {
+            return header.length + fileEnd - filePosition;
+        }
+
+        /**
+         * @return false if the response is finished
+         */
+        private boolean writeFrame(DataOutputStream dos, ByteBuffer buffer, ConnectionHandler handler)
+                throws IOException {
+            if (isRejected) {
+                dos.writeInt(id);
+                dos.writeInt(REJECTED);
+                dos.flush();
+                return false;
+            }
+            val headerLeft = header.length - headerPosition;
+            val frameSize = (int) Math.min(WINDOW_SIZE, headerLeft + fileEnd - filePosition);
+            val fromHeader = Math.min(frameSize, headerLeft);
+            // the frame is not started until its part of the file may be sent
+            handler.shape(frameSize - fromHeader);
+            dos.writeInt(id);
+            dos.writeInt(frameSize);
+            if (frameSize == 0) {
+                dos.flush();
+                return false;
+            }
+            dos.write(header, headerPosition, fromHeader);
+            headerPosition += fromHeader;
+            buffer.clear().limit(frameSize - fromHeader);
+            if (buffer.hasRemaining() && file == null) {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, filePosition + buffer.position()) < 0) {
+                    throw new IOException("File was truncated during transfer");
+                }
+            }
+            dos.write(buffer.array(), 0, buffer.limit());
+            // the frame header, the part of the header and the part of the file are sent with one write
+            dos.flush();
+            filePosition += buffer.limit();
+            return true;
+        }
+
+        private void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close file", e);
+                }
+            }
+        }
+    }
+}
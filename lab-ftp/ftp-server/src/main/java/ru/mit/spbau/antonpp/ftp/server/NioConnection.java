@@ -0,0 +1,159 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+import ru.mit.spbau.antonpp.ftp.server.exceptions.ConnectionException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of a single client connection served by {@link SelectorPortListener}. While the client is idle the
+ * connection is owned by the selector thread and costs no threads. As soon as a complete request is received the
+ * connection is passed to a worker, which handles exactly one request with a blocking channel and then returns
+ * the connection back to the selector.
+ * <p>
+ * A switch to protocol v2 is the exception: the session keeps reading requests until it ends, so it is run by its own
+ * thread rather than by a worker.
+ *
+ * @author antonpp
+ * @since 20/01/2017
+ */
+@Slf4j
+class NioConnection implements Runnable {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    /**
+     * Requests are buffered by the selector thread until they are complete, so a client that sends a request that
+     * never ends is disconnected when it reaches this size.
+     */
+    static final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    @NotNull
+    private final SocketChannel channel;
+    @NotNull
+    private final ConnectionHandler handler;
+    @Nullable
+    private final ServerMetrics metrics;
+    /**
+     * Bytes received from the client but not handled yet. The buffer is always kept in read mode.
+     */
+    @NotNull
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    @NotNull
+    private final RequestDecoder decoder = new RequestDecoder();
+
+    NioConnection(@NotNull SocketChannel channel, @NotNull HandlerContext context) {
+        this.channel = channel;
+        handler = new ConnectionHandler(channel.socket(), context);
+        metrics = context.getMetrics();
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        input.flip();
+    }
+
+    @NotNull
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads bytes that are available in non-blocking channel. The buffer grows if a request does not fit in it,
+     * up to {@link #MAX_REQUEST_SIZE}.
+     *
+     * @return false if the client has closed the connection
+     * @throws IOException if channel could not be read or the request is too large
+     */
+    boolean readAvailable() throws IOException {
+        input.compact();
+        if (!input.hasRemaining()) {
+            if (input.capacity() >= MAX_REQUEST_SIZE) {
+                throw new IOException("Request is larger than " + MAX_REQUEST_SIZE + " bytes");
+            }
+            final ByteBuffer grown = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            grown.put(input);
+            input = grown;
+        }
+        final int read = channel.read(input);
+        input.flip();
+        return read >= 0;
+    }
+
+    boolean hasCompleteRequest() {
+        return decoder.isComplete(input);
+    }
+
+    /**
+     * @return true if the next request switches the connection to protocol v2
+     */
+    boolean isUpgradeNext() {
+        return input.remaining() >= Integer.BYTES && input.getInt(input.position()) == RequestCode.RQ_UPGRADE_V2;
+    }
+
+    boolean isConnected() {
+        return handler.isRunning() && channel.isOpen();
+    }
+
+    /**
+     * Marks that the connection waits for a handler thread.
+     */
+    void queued() {
+        if (metrics != null) {
+            metrics.taskQueued();
+        }
+    }
+
+    void close() {
+        if (metrics != null && channel.isOpen()) {
+            metrics.connectionClosed();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close client channel", e);
+        }
+        log.debug("Disconnected");
+    }
+
+    /**
+     * Handles all requests that were completely received, so pipelined requests are served without returning
+     * to the selector. A switch to protocol v2 is handled only if it is the first request, otherwise the connection
+     * is returned before it. Must be called only when the channel is in blocking mode.
+     */
+    @Override
+    public void run() {
+        final InputStream socketStream;
+        try {
+            // unlike reads of the channel, reads of the socket stream are limited by SO_TIMEOUT
+            socketStream = channel.socket().getInputStream();
+        } catch (IOException e) {
+            throw new ConnectionException("Could not open I/O streams", e);
+        }
+        final DataInputStream dis = new DataInputStream(new PrefetchedInputStream(input, socketStream));
+        final DataOutputStream dos = new DataOutputStream(handler.newResponseWriter(channel));
+        // sessions do not run in the handler pool, so they are not counted as its tasks
+        val isTask = metrics != null && !isUpgradeNext();
+        if (isTask) {
+            metrics.taskStarted();
+        }
+        try {
+            do {
+                handler.handle(dis, dos);
+                decoder.reset();
+            } while (handler.isRunning() && hasCompleteRequest() && !isUpgradeNext());
+        } finally {
+            if (isTask) {
+                metrics.taskFinished();
+            }
+        }
+    }
+}
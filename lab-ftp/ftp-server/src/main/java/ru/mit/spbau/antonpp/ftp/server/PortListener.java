@@ -2,6 +2,7 @@ package ru.mit.spbau.antonpp.ftp.server;
 
 import com.google.common.util.concurrent.*;
 import lombok.extern.slf4j.Slf4j;
+import lombok.val;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -16,17 +17,24 @@ import static ru.mit.spbau.antonpp.ftp.server.FtpServer.MAX_THREADS;
  * @since 30/10/2016
  */
 @Slf4j
-public class PortListener implements Runnable {
+public class PortListener implements ConnectionListener {
 
     @NotNull
     private final ListeningExecutorService handleService;
     @NotNull
     private final ServerSocket serverSocket;
+    @NotNull
+    private final HandlerContext context;
 
     private boolean isRunning = true;
 
     public PortListener(@NotNull ServerSocket serverSocket) {
+        this(serverSocket, HandlerContext.EMPTY);
+    }
+
+    PortListener(@NotNull ServerSocket serverSocket, @NotNull HandlerContext context) {
         this.serverSocket = serverSocket;
+        this.context = context;
         handleService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(MAX_THREADS));
     }
 
@@ -38,7 +46,8 @@ public class PortListener implements Runnable {
                 final Socket clientSocket;
                 clientSocket = serverSocket.accept();
                 log.debug("Accepted a connection");
-                final ListenableFuture<?> listenableFuture = handleService.submit(new ConnectionHandler(clientSocket));
+                final ListenableFuture<?> listenableFuture = handleService.submit(
+                        instrument(new ConnectionHandler(clientSocket, context)));
                 Futures.addCallback(listenableFuture, new ConnectionCallback());
             } catch (IOException e) {
                 log.error("Could not accept connection", e);
@@ -46,6 +55,28 @@ public class PortListener implements Runnable {
         }
     }
 
+    /**
+     * Counts the connection as queued until a handler thread takes it.
+     */
+    private Runnable instrument(ConnectionHandler handler) {
+        val metrics = context.getMetrics();
+        if (metrics == null) {
+            return handler;
+        }
+        metrics.connectionOpened();
+        metrics.taskQueued();
+        return () -> {
+            metrics.taskStarted();
+            try {
+                handler.run();
+            } finally {
+                metrics.taskFinished();
+                metrics.connectionClosed();
+            }
+        };
+    }
+
+    @Override
     public void stop() throws IOException {
         isRunning = false;
         serverSocket.close();
@@ -0,0 +1,53 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that first returns bytes which were already read from the socket into a buffer and then continues
+ * reading from the socket itself. Consumed bytes are removed from the buffer.
+ *
+ * @author antonpp
+ * @since 20/01/2017
+ */
+class PrefetchedInputStream extends InputStream {
+
+    @NotNull
+    private final ByteBuffer prefetched;
+    @NotNull
+    private final InputStream rest;
+
+    PrefetchedInputStream(@NotNull ByteBuffer prefetched, @NotNull InputStream rest) {
+        this.prefetched = prefetched;
+        this.rest = rest;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (prefetched.hasRemaining()) {
+            return prefetched.get() & 0xFF;
+        }
+        return rest.read();
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (prefetched.hasRemaining()) {
+            final int n = Math.min(len, prefetched.remaining());
+            prefetched.get(b, off, n);
+            return n;
+        }
+        return rest.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return prefetched.remaining();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class checks whether a buffer received from non-blocking channel already holds a complete request, so
+ * the request could be handled without waiting for the client. Strings of a list that were found in the buffer are
+ * not parsed again after the next read, so a large MGET is parsed once. One decoder serves one connection and must be
+ * {@link #reset} when a request is consumed.
+ *
+ * @author antonpp
+ * @since 20/01/2017
+ */
+final class RequestDecoder {
+
+    /**
+     * Offset of the first string of a list that is not found yet, relative to the start of the request. Zero if
+     * the list is not reached yet.
+     */
+    private int listOffset;
+    /**
+     * Number of strings of the list that are not found yet.
+     */
+    private int listLeft;
+
+    /**
+     * Forgets the progress of the current request, must be called when the request is consumed.
+     */
+    void reset() {
+        listOffset = 0;
+        listLeft = 0;
+    }
+
+    /**
+     * @param buffer buffer in read mode, request starts at its position. The buffer itself is not modified and
+     *               must not lose bytes of the request between calls.
+     * @return true if all bytes of the request are present in the buffer
+     */
+    boolean isComplete(ByteBuffer buffer) {
+        final Cursor cursor = new Cursor(buffer);
+        if (!cursor.skip(Integer.BYTES)) {
+            return false;
+        }
+        switch (buffer.getInt(buffer.position())) {
+            case RequestCode.RQ_LIST:
+            case RequestCode.RQ_GET:
+            case RequestCode.RQ_LIST_STREAM:
+            case RequestCode.RQ_STAT:
+            case RequestCode.RQ_DU:
+                return cursor.skipUtf();
+            case RequestCode.RQ_FIND:
+                return cursor.skipUtf() && cursor.skipUtf();
+            case RequestCode.RQ_GET_IF_CHANGED:
+                return cursor.skipUtf() && cursor.skip(16);
+            case RequestCode.RQ_GET_RANGE:
+                return cursor.skipUtf() && cursor.skip(2 * Long.BYTES);
+            case RequestCode.RQ_GET_COMPRESSED:
+            case RequestCode.RQ_BLOCKSUMS:
+                return cursor.skipUtf() && cursor.skip(Integer.BYTES);
+            case RequestCode.RQ_MGET:
+                return cursor.skipUtfList();
+            case RequestCode.RQ_PUT:
+                // the file itself is streamed by the handler, it is not buffered by the selector
+                return cursor.skipUtf() && cursor.skip(Long.BYTES);
+            default:
+                // disconnect has no arguments; unknown requests are rejected by handler anyway
+                return true;
+        }
+    }
+
+    private final class Cursor {
+        private final ByteBuffer buffer;
+        private int position;
+
+        private Cursor(ByteBuffer buffer) {
+            this.buffer = buffer;
+            position = buffer.position();
+        }
+
+        private boolean skip(int length) {
+            if (buffer.limit() - position < length) {
+                return false;
+            }
+            position += length;
+            return true;
+        }
+
+        /**
+         * String is encoded with {@link java.io.DataOutput#writeUTF(String)}: unsigned short length and then data.
+         */
+        private boolean skipUtf() {
+            if (buffer.limit() - position < Short.BYTES) {
+                return false;
+            }
+            final int length = buffer.getShort(position) & 0xFFFF;
+            return skip(Short.BYTES + length);
+        }
+
+        /**
+         * Number of strings (int) followed by the strings. Parsing continues from the last string found before.
+         */
+        private boolean skipUtfList() {
+            final int start = buffer.position();
+            if (listOffset == 0) {
+                if (buffer.limit() - position < Integer.BYTES) {
+                    return false;
+                }
+                listLeft = buffer.getInt(position);
+                position += Integer.BYTES;
+                listOffset = position - start;
+            }
+            position = start + listOffset;
+            while (listLeft > 0) {
+                if (!skipUtf()) {
+                    return false;
+                }
+                listLeft--;
+                listOffset = position - start;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static ru.mit.spbau.antonpp.ftp.server.FtpServer.MAX_THREADS;
+
+/**
+ * Non-blocking alternative to {@link PortListener}. All idle connections are watched by a single selector thread
+ * and only connections with a complete request occupy threads of the handler pool, so the number of clients is not
+ * limited by the number of threads. Sessions of protocol v2 hold a thread until they end, like connections of
+ * {@link PortListener}, so they are run by threads of their own and do not take threads of the handler pool.
+ *
+ * @author antonpp
+ * @since 20/01/2017
+ */
+@Slf4j
+public class SelectorPortListener implements ConnectionListener {
+
+    @NotNull
+    private final ListeningExecutorService handleService;
+    @NotNull
+    private final ListeningExecutorService sessionService;
+    @NotNull
+    private final ServerSocketChannel serverChannel;
+    @NotNull
+    private final Selector selector;
+    @NotNull
+    private final HandlerContext context;
+    /**
+     * Connections whose request was handled by a worker and which must be registered in the selector again.
+     */
+    private final Queue<NioConnection> handled = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean isRunning = true;
+
+    public SelectorPortListener(@NotNull ServerSocketChannel serverChannel) throws IOException {
+        this(serverChannel, HandlerContext.EMPTY);
+    }
+
+    SelectorPortListener(@NotNull ServerSocketChannel serverChannel, @NotNull HandlerContext context)
+            throws IOException {
+        this.serverChannel = serverChannel;
+        this.context = context;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        handleService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(MAX_THREADS));
+        sessionService = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning) {
+                try {
+                    selector.select();
+                    final List<NioConnection> ready = new ArrayList<>();
+                    registerHandled(ready);
+                    processSelectedKeys(ready);
+                    if (!ready.isEmpty()) {
+                        // cancelled keys are deregistered only by the next selection operation,
+                        // a channel cannot be switched to blocking mode before that
+                        selector.selectNow();
+                        ready.forEach(this::dispatch);
+                    }
+                } catch (IOException e) {
+                    log.error("Selection failed", e);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            log.debug("Selector was closed");
+        } finally {
+            closeAll();
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        isRunning = false;
+        selector.wakeup();
+        serverChannel.close();
+        handleService.shutdownNow();
+        sessionService.shutdownNow();
+    }
+
+    private void processSelectedKeys(List<NioConnection> ready) throws IOException {
+        val iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            val key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                val connection = (NioConnection) key.attachment();
+                try {
+                    if (!connection.readAvailable()) {
+                        key.cancel();
+                        connection.close();
+                        continue;
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to read from client", e);
+                    key.cancel();
+                    connection.close();
+                    continue;
+                }
+                if (connection.hasCompleteRequest()) {
+                    key.cancel();
+                    ready.add(connection);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
+        log.debug("Accepted a connection");
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, SelectionKey.OP_READ, new NioConnection(clientChannel, context));
+    }
+
+    private void registerHandled(List<NioConnection> ready) {
+        NioConnection connection;
+        while ((connection = handled.poll()) != null) {
+            if (!connection.isConnected()) {
+                connection.close();
+            } else if (connection.hasCompleteRequest()) {
+                // the client has already sent the next request
+                ready.add(connection);
+            } else {
+                try {
+                    connection.getChannel().configureBlocking(false);
+                    connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    log.warn("Could not return connection to selector", e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void dispatch(NioConnection connection) {
+        try {
+            connection.getChannel().configureBlocking(true);
+        } catch (IOException e) {
+            log.warn("Could not switch channel to blocking mode", e);
+            connection.close();
+            return;
+        }
+        try {
+            final ListenableFuture<?> listenableFuture;
+            if (connection.isUpgradeNext()) {
+                listenableFuture = sessionService.submit(connection);
+            } else {
+                connection.queued();
+                listenableFuture = handleService.submit(connection);
+            }
+            Futures.addCallback(listenableFuture, new HandledCallback(connection));
+        } catch (RejectedExecutionException e) {
+            log.debug("Listener is stopped, connection is dropped");
+            connection.close();
+        }
+    }
+
+    private void closeAll() {
+        for (val key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Failed to close selector", e);
+        }
+    }
+
+    private final class HandledCallback implements FutureCallback<Object> {
+
+        private final NioConnection connection;
+
+        private HandledCallback(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void onSuccess(Object result) {
+            handled.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            log.warn("Connection handling led to an error", t);
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.val;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the server shared by all listeners and handlers. Every update is a single lock-free operation, so
+ * handlers are not slowed down by the monitoring. Values are served to clients by {@link RequestCode#RQ_STATS}.
+ * <p>
+ * A connection is queued while it waits for a handler thread and busy while a handler thread serves it.
+ *
+ * @author antonpp
+ * @since 02/02/2017
+ */
+class ServerMetrics {
+
+    /**
+     * Requests with other codes are counted together under {@link #OTHER}.
+     */
+    private static final int MAX_CODE = 31;
+    private static final int OTHER = 0;
+    private static final String[] NAMES = requestNames();
+
+    private final int maxHandlers;
+    private final LongAdder accepted = new LongAdder();
+    private final AtomicLong open = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder[] requests = new LongAdder[MAX_CODE + 1];
+    /**
+     * Latency of requests in microseconds, one histogram per request code.
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[MAX_CODE + 1];
+
+    /**
+     * @param maxHandlers size of the handler pool
+     */
+    ServerMetrics(int maxHandlers) {
+        this.maxHandlers = maxHandlers;
+        for (int i = 0; i <= MAX_CODE; i++) {
+            requests[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    private static String[] requestNames() {
+        final String[] names = new String[MAX_CODE + 1];
+        names[OTHER] = "OTHER";
+        for (Field field : RequestCode.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == int.class
+                    && field.getName().startsWith("RQ_")) {
+                try {
+                    final int code = field.getInt(null);
+                    if (code > 0 && code <= MAX_CODE) {
+                        names[code] = field.getName().substring(3);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static int index(int requestCode) {
+        return requestCode > 0 && requestCode <= MAX_CODE && NAMES[requestCode] != null ? requestCode : OTHER;
+    }
+
+    /**
+     * @return name of the request code, codes that are not counted separately are named {@code OTHER}
+     */
+    static String requestName(int requestCode) {
+        return NAMES[index(requestCode)];
+    }
+
+    void connectionOpened() {
+        accepted.increment();
+        open.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        open.decrementAndGet();
+    }
+
+    void taskQueued() {
+        queued.incrementAndGet();
+    }
+
+    void taskStarted() {
+        queued.decrementAndGet();
+        busy.incrementAndGet();
+    }
+
+    void taskFinished() {
+        busy.decrementAndGet();
+    }
+
+    /**
+     * @param requestCode code of the request
+     * @param nanos       time spent on the request
+     * @param bytes       size of the response
+     */
+    void requestHandled(int requestCode, long nanos, long bytes) {
+        val index = index(requestCode);
+        requests[index].increment();
+        latencies[index].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * @return names and current values of all metrics, requests that were never made are omitted
+     */
+    Map<String, Long> snapshot() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        result.put("connections.accepted", accepted.sum());
+        result.put("connections.open", open.get());
+        result.put("connections.queued", queued.get());
+        result.put("handlers.busy", busy.get());
+        result.put("handlers.max", (long) maxHandlers);
+        result.put("bytes.sent", bytesSent.sum());
+        for (int i = 0; i <= MAX_CODE; i++) {
+            val count = requests[i].sum();
+            if (count == 0) {
+                continue;
+            }
+            val name = NAMES[i];
+            val latency = latencies[i];
+            result.put("requests." + name, count);
+            result.put("latency." + name + ".p50_us", latency.percentile(0.5));
+            result.put("latency." + name + ".p90_us", latency.percentile(0.9));
+            result.put("latency." + name + ".p99_us", latency.percentile(0.99));
+            result.put("latency." + name + ".max_us", latency.percentile(1));
+        }
+        return result;
+    }
+}
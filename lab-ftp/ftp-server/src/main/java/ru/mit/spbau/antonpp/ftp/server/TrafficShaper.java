@@ -0,0 +1,76 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the rate at which file contents are sent, both by the whole server and by every connection. Limits are
+ * token buckets that hold up to a second worth of bytes, so short bursts are sent at full speed.
+ * <p>
+ * Transfers take tokens for one chunk at a time and a chunk is sent only after its tokens were reserved, so concurrent
+ * transfers are interleaved chunk by chunk. {@link RateLimiter} does not grant reservations in any particular order,
+ * so a transfer may get more than its share of the global limit. Listings and other small responses are not limited,
+ * so they are not delayed by large downloads.
+ * <p>
+ * A limited transfer waits for tokens on the thread that handles the connection. Both port listeners have only
+ * {@link FtpServer#MAX_THREADS} such threads, so while that many limited transfers are in progress other requests
+ * wait in the queue.
+ *
+ * @author antonpp
+ * @since 06/02/2017
+ */
+class TrafficShaper {
+
+    /**
+     * Limited transfers are sent in chunks of this size, so that chunks of concurrent transfers interleave finely.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    @Nullable
+    private final RateLimiter global;
+    private final long connectionBytesPerSecond;
+
+    /**
+     * @param globalBytesPerSecond     limit of the whole server, 0 if it is not limited
+     * @param connectionBytesPerSecond limit of every connection, 0 if it is not limited
+     */
+    TrafficShaper(long globalBytesPerSecond, long connectionBytesPerSecond) {
+        if (globalBytesPerSecond < 0 || connectionBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative");
+        }
+        global = globalBytesPerSecond > 0 ? RateLimiter.create(globalBytesPerSecond) : null;
+        this.connectionBytesPerSecond = connectionBytesPerSecond;
+    }
+
+    /**
+     * @return limits of a new connection, they are combined with the global limit
+     */
+    ConnectionShaper newConnection() {
+        return new ConnectionShaper(connectionBytesPerSecond > 0 ? RateLimiter.create(connectionBytesPerSecond) : null);
+    }
+
+    final class ConnectionShaper {
+
+        @Nullable
+        private final RateLimiter own;
+
+        private ConnectionShaper(@Nullable RateLimiter own) {
+            this.own = own;
+        }
+
+        /**
+         * Blocks until the connection is allowed to send the specified number of bytes.
+         */
+        void acquire(int bytes) {
+            if (bytes <= 0) {
+                return;
+            }
+            if (own != null) {
+                own.acquire(bytes);
+            }
+            if (global != null) {
+                global.acquire(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import ru.mit.spbau.antonpp.ftp.data.DiskUsage;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks directory trees for FIND and DU. Every directory is listed by its own fork/join task, so a wide tree is read
+ * by all threads of the pool at once instead of one stat call after another. Symbolic links are not followed.
+ * <p>
+ * FIND results are handed to the calling handler through a bounded queue in frames, so they are sent while the walk
+ * goes on, and a slow client holds back the walk instead of letting the results pile up in memory.
+ * <p>
+ * For DU, a summary of every directory is cached: total size and number of its own files and names of its
+ * subdirectories. A summary is valid while modification time of the directory is the same, so a repeated DU of
+ * a large tree costs one stat call per directory rather than one per file. Creating, deleting or renaming a file,
+ * including an upload, changes the time; a file rewritten in place by another process does not, so its new size is
+ * reported when its directory changes or its summary is evicted.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Slf4j
+class TreeWalker {
+
+    /**
+     * Walker for handlers of a server without shared state. It uses the common pool and does not cache summaries.
+     */
+    static final TreeWalker COMMON = new TreeWalker(ForkJoinPool.commonPool(), 0);
+    /**
+     * Frames of FIND results that may wait to be sent.
+     */
+    private static final int MAX_PENDING_FRAMES = 16;
+    private static final long POLL_MILLIS = 100;
+    private static final List<FileRecord> END = Collections.emptyList();
+
+    @NotNull
+    private final ForkJoinPool pool;
+    private final int maxSummaries;
+    /**
+     * Summaries of directories, access-ordered, so the first entry is the least recently used one.
+     */
+    private final Map<Path, Summary> summaries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param pool         pool the walks are run in
+     * @param maxSummaries maximum number of directories whose summaries are cached for DU
+     */
+    TreeWalker(@NotNull ForkJoinPool pool, int maxSummaries) {
+        this.pool = pool;
+        this.maxSummaries = maxSummaries;
+    }
+
+    /**
+     * @param root file or directory, a symbolic link is followed
+     * @return totals of the subtree, the size is -1 if it does not exist
+     * @throws IOException if the root could not be read
+     */
+    DiskUsage diskUsage(Path root) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(root, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return DiskUsage.builder().size(-1).build();
+        }
+        if (!attributes.isDirectory()) {
+            val isFile = attributes.isRegularFile();
+            return DiskUsage.builder().size(isFile ? attributes.size() : 0).files(isFile ? 1 : 0).build();
+        }
+        val usage = pool.invoke(new UsageTask(root.toRealPath()));
+        return DiskUsage.builder().size(usage.size).files(usage.files).directories(usage.directories).build();
+    }
+
+    /**
+     * Finds entries of the subtree that match the pattern and passes them to the writer in the calling thread.
+     *
+     * @param root       existing directory
+     * @param matcher    pattern entries are matched against
+     * @param matchNames if true, names of entries are matched, otherwise their paths relative to the root
+     * @param writer     receives non-empty frames of at most {@link ConnectionHandler#LIST_FRAME_SIZE} entries whose
+     *                   names are paths relative to the root
+     * @throws IOException if the writer failed, then the walk is cancelled
+     */
+    void find(Path root, PathMatcher matcher, boolean matchNames, FrameWriter writer) throws IOException {
+        val search = new Search(matcher, matchNames);
+        pool.execute(() -> {
+            try {
+                new FindTask(search, root, Paths.get("")).invoke();
+            } finally {
+                search.publish(END);
+            }
+        });
+        try {
+            while (true) {
+                val frame = search.frames.take();
+                if (frame == END) {
+                    break;
+                }
+                writer.write(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching " + root);
+        } finally {
+            search.isCancelled = true;
+        }
+    }
+
+    /**
+     * Lists the directory unless its summary is cached and up to date.
+     */
+    private Summary summary(Path dir) throws IOException {
+        // the time is read before listing, so a change made while listing makes the summary invalid
+        val modified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS);
+        synchronized (this) {
+            val summary = summaries.get(dir);
+            if (summary != null && summary.modified.equals(modified)) {
+                return summary;
+            }
+        }
+        long size = 0;
+        long files = 0;
+        final List<String> directories = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path p : entries) {
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    directories.add(p.getFileName().toString());
+                } else if (attributes.isRegularFile()) {
+                    size += attributes.size();
+                    files++;
+                }
+            }
+        }
+        val summary = new Summary(modified, size, files, directories.toArray(new String[directories.size()]));
+        if (maxSummaries > 0) {
+            synchronized (this) {
+                summaries.put(dir, summary);
+                val iterator = summaries.values().iterator();
+                while (summaries.size() > maxSummaries && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+        return summary;
+    }
+
+    interface FrameWriter {
+        void write(List<FileRecord> frame) throws IOException;
+    }
+
+    private static final class Summary {
+        @NotNull
+        private final FileTime modified;
+        private final long size;
+        private final long files;
+        @NotNull
+        private final String[] directories;
+
+        private Summary(@NotNull FileTime modified, long size, long files, @NotNull String[] directories) {
+            this.modified = modified;
+            this.size = size;
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    private static final class Usage {
+        private long size;
+        private long files;
+        private long directories = 1;
+    }
+
+    private final class UsageTask extends RecursiveTask<Usage> {
+        private final Path dir;
+
+        private UsageTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Usage compute() {
+            val usage = new Usage();
+            final Summary summary;
+            try {
+                summary = summary(dir);
+            } catch (IOException e) {
+                // e.g. deleted or not readable, it is counted as empty
+                log.debug("Could not list {}: {}", dir, e.toString());
+                return usage;
+            }
+            usage.size = summary.size;
+            usage.files = summary.files;
+            final List<UsageTask> subtasks = new ArrayList<>(summary.directories.length);
+            for (String name : summary.directories) {
+                subtasks.add(new UsageTask(dir.resolve(name)));
+            }
+            invokeAll(subtasks);
+            for (UsageTask subtask : subtasks) {
+                val subtree = subtask.join();
+                usage.size += subtree.size;
+                usage.files += subtree.files;
+                usage.directories += subtree.directories;
+            }
+            return usage;
+        }
+    }
+
+    /**
+     * State of a single FIND shared by its tasks.
+     */
+    private static final class Search {
+        private final PathMatcher matcher;
+        private final boolean matchNames;
+        private final BlockingQueue<List<FileRecord>> frames = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+        /**
+         * Set when the handler stops taking results, e.g. because the client has gone.
+         */
+        private volatile boolean isCancelled;
+
+        private Search(PathMatcher matcher, boolean matchNames) {
+            this.matcher = matcher;
+            this.matchNames = matchNames;
+        }
+
+        /**
+         * Waits for space in the queue. The pool is told that the thread is blocked, so other walks are not starved.
+         */
+        private void publish(List<FileRecord> frame) {
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        while (!isCancelled && !frames.offer(frame, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            log.debug("Waiting for FIND results to be sent");
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return isCancelled || frames.offer(frame);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isCancelled = true;
+            }
+        }
+    }
+
+    private static final class FindTask extends RecursiveAction {
+        private final Search search;
+        private final Path dir;
+        /**
+         * Path of the directory relative to the root of the search.
+         */
+        private final Path relative;
+
+        private FindTask(Search search, Path dir, Path relative) {
+            this.search = search;
+            this.dir = dir;
+            this.relative = relative;
+        }
+
+        @Override
+        protected void compute() {
+            if (search.isCancelled) {
+                return;
+            }
+            final List<FindTask> subtasks = new ArrayList<>();
+            List<FileRecord> frame = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) {
+                    final BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    val path = relative.resolve(p.getFileName());
+                    if (search.matcher.matches(search.matchNames ? p.getFileName() : path)) {
+                        frame.add(FileRecord.builder()
+                                .name(path.toString())
+                                .directory(attributes.isDirectory())
+                                .size(attributes.size())
+                                .lastModified(attributes.lastModifiedTime().toMillis())
+                                .build());
+                        if (frame.size() == ConnectionHandler.LIST_FRAME_SIZE) {
+                            search.publish(frame);
+                            frame = new ArrayList<>();
+                        }
+                    }
+                    if (attributes.isDirectory()) {
+                        subtasks.add(new FindTask(search, p, path));
+                    }
+                }
+            } catch (IOException e) {
+                // entries found so far are still sent, like find(1) the search goes on with other directories
+                log.debug("Could not list {}: {}", dir, e.toString());
+            }
+            if (!frame.isEmpty()) {
+                search.publish(frame);
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ru.mit.spbau.antonpp.ftp.server;
 
+import com.google.common.hash.Hashing;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -7,10 +8,15 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import ru.mit.spbau.antonpp.ftp.compression.Codec;
+import ru.mit.spbau.antonpp.ftp.compression.Codecs;
+import ru.mit.spbau.antonpp.ftp.compression.DeflateCodec;
+import ru.mit.spbau.antonpp.ftp.protocol.FileStatus;
 import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
@@ -18,7 +24,13 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -142,6 +154,52 @@ public class ConnectionHandlerTest {
         Assert.assertArrayEquals(expected, responseOS.toByteArray());
     }
 
+    @Test
+    public void testGetRange() throws IOException {
+        final List<Path> testFiles = testPaths.stream()
+                .filter(Files::isRegularFile).collect(Collectors.toList());
+        final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream expectedOS = new DataOutputStream(expectedBytes)) {
+            for (Path test : testFiles) {
+                final byte[] data = Files.readAllBytes(test);
+                final int offset = data.length / 2;
+                expectedOS.writeLong(data.length);
+                expectedOS.writeLong(data.length - offset);
+                expectedOS.write(data, offset, data.length - offset);
+                // offset beyond the end of file
+                expectedOS.writeLong(data.length);
+                expectedOS.writeLong(0);
+            }
+        }
+        final byte[] expected = expectedBytes.toByteArray();
+
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            for (Path test : testFiles) {
+                final long size = Files.size(test);
+                dos.writeInt(RequestCode.RQ_GET_RANGE);
+                dos.writeUTF(test.toString());
+                dos.writeLong(size / 2);
+                dos.writeLong(Long.MAX_VALUE);
+                dos.writeInt(RequestCode.RQ_GET_RANGE);
+                dos.writeUTF(test.toString());
+                dos.writeLong(size + 1);
+                dos.writeLong(1);
+            }
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+
+        final ByteArrayInputStream requestIS = new ByteArrayInputStream(requestBytes.toByteArray());
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+
+        when(clientSocket.getInputStream()).thenReturn(requestIS);
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        Assert.assertArrayEquals(expected, responseOS.toByteArray());
+    }
+
     @Test
     public void testList() throws IOException {
         final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
@@ -173,4 +231,485 @@ public class ConnectionHandlerTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testListStream() throws IOException {
+        final List<Path> unsorted;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(TEST_DIR))) {
+            unsorted = StreamSupport.stream(ds.spliterator(), false).collect(Collectors.toList());
+        }
+        final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream expectedOS = new DataOutputStream(expectedBytes)) {
+            expectedOS.writeInt(unsorted.size());
+            for (Path p : unsorted) {
+                expectedOS.writeUTF(p.getFileName().toString());
+                expectedOS.writeBoolean(Files.isDirectory(p));
+                expectedOS.writeLong(Files.size(p));
+                expectedOS.writeLong(Files.getLastModifiedTime(p).toMillis());
+            }
+            expectedOS.writeInt(0);
+            // not existing directory
+            expectedOS.writeInt(0);
+        }
+        final byte[] expected = expectedBytes.toByteArray();
+
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            dos.writeInt(RequestCode.RQ_LIST_STREAM);
+            dos.writeUTF(TEST_DIR);
+            dos.writeInt(RequestCode.RQ_LIST_STREAM);
+            dos.writeUTF("Not/existing/path/ever/never");
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+        final ByteArrayInputStream requestIS = new ByteArrayInputStream(requestBytes.toByteArray());
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+
+        when(clientSocket.getInputStream()).thenReturn(requestIS);
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        Assert.assertArrayEquals(expected, responseOS.toByteArray());
+    }
+
+    @Test
+    public void testMultiplexed() throws IOException {
+        final List<Path> testFiles = testPaths.stream()
+                .filter(Files::isRegularFile).collect(Collectors.toList());
+        final Map<Integer, byte[]> expected = new HashMap<>();
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            dos.writeInt(RequestCode.RQ_UPGRADE_V2);
+            int id = 0;
+            for (Path test : testFiles) {
+                dos.writeInt(id);
+                dos.writeInt(RequestCode.RQ_GET);
+                dos.writeUTF(test.toString());
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                try (final DataOutputStream expectedOS = new DataOutputStream(response)) {
+                    expectedOS.writeLong(Files.size(test));
+                    expectedOS.write(Files.readAllBytes(test));
+                }
+                expected.put(id++, response.toByteArray());
+            }
+            dos.writeInt(id);
+            dos.writeInt(RequestCode.RQ_LIST);
+            dos.writeUTF(TEST_DIR);
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try (final DataOutputStream expectedOS = new DataOutputStream(response)) {
+                expectedOS.writeInt(testPaths.size());
+                for (Path p : testPaths) {
+                    expectedOS.writeUTF(p.getFileName().toString());
+                    expectedOS.writeBoolean(Files.isDirectory(p));
+                }
+            }
+            expected.put(id++, response.toByteArray());
+            dos.writeInt(id);
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+
+        final ByteArrayInputStream requestIS = new ByteArrayInputStream(requestBytes.toByteArray());
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+
+        when(clientSocket.getInputStream()).thenReturn(requestIS);
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        // frames of different requests may interleave, so responses are reassembled before comparison
+        final Map<Integer, ByteArrayOutputStream> actual = new HashMap<>();
+        final Set<Integer> finished = new HashSet<>();
+        try (final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(responseOS.toByteArray()))) {
+            Assert.assertEquals(MultiplexedSession.VERSION, dis.readInt());
+            while (finished.size() < expected.size()) {
+                final int id = dis.readInt();
+                final byte[] payload = new byte[dis.readInt()];
+                dis.readFully(payload);
+                Assert.assertFalse(finished.contains(id));
+                if (payload.length == 0) {
+                    finished.add(id);
+                } else {
+                    actual.computeIfAbsent(id, x -> new ByteArrayOutputStream()).write(payload);
+                }
+            }
+            Assert.assertEquals(-1, dis.read());
+        }
+        for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+            Assert.assertArrayEquals(entry.getValue(), actual.get(entry.getKey()).toByteArray());
+        }
+    }
+
+    @Test
+    public void testMultiplexedManyRequests() throws IOException {
+        final Path test = testPaths.stream().filter(Files::isRegularFile).findFirst().get();
+        final int requests = 3 * MultiplexedSession.MAX_IN_FLIGHT;
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            dos.writeInt(RequestCode.RQ_UPGRADE_V2);
+            for (int id = 0; id < requests; id++) {
+                dos.writeInt(id);
+                dos.writeInt(RequestCode.RQ_GET);
+                dos.writeUTF(test.toString());
+            }
+            dos.writeInt(requests);
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+        when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        // requests above the limit are read after earlier responses are finished
+        final Set<Integer> finished = new HashSet<>();
+        try (final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(responseOS.toByteArray()))) {
+            Assert.assertEquals(MultiplexedSession.VERSION, dis.readInt());
+            while (finished.size() < requests) {
+                final int id = dis.readInt();
+                final byte[] payload = new byte[dis.readInt()];
+                dis.readFully(payload);
+                if (payload.length == 0) {
+                    Assert.assertTrue(finished.add(id));
+                }
+            }
+            Assert.assertEquals(-1, dis.read());
+        }
+    }
+
+    @Test
+    public void testMultiplexedLargeResponses() throws IOException {
+        final byte[] data = new byte[3 * MultiplexedSession.WINDOW_SIZE + 17];
+        new Random(0).nextBytes(data);
+        final Path file = Files.createTempFile("multiplexed", ".bin");
+        try {
+            Files.write(file, data);
+            final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+                dos.writeInt(RequestCode.RQ_UPGRADE_V2);
+                dos.writeInt(0);
+                dos.writeInt(RequestCode.RQ_GET);
+                dos.writeUTF(file.toString());
+                dos.writeInt(1);
+                dos.writeInt(RequestCode.RQ_GET_IF_CHANGED);
+                dos.writeUTF(file.toString());
+                dos.write(new byte[16]);
+                // its response would be prepared in memory, so it is rejected and ends the session
+                dos.writeInt(2);
+                dos.writeInt(RequestCode.RQ_MGET);
+                dos.writeInt(1);
+                dos.writeUTF(file.toString());
+            }
+            final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+            when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+            when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+            handler.run();
+
+            final ByteArrayOutputStream get = new ByteArrayOutputStream();
+            try (final DataOutputStream expectedOS = new DataOutputStream(get)) {
+                expectedOS.writeLong(data.length);
+                expectedOS.write(data);
+            }
+            final ByteArrayOutputStream getIfChanged = new ByteArrayOutputStream();
+            try (final DataOutputStream expectedOS = new DataOutputStream(getIfChanged)) {
+                expectedOS.writeByte(FileStatus.OK);
+                expectedOS.writeLong(data.length);
+                expectedOS.writeLong(Files.getLastModifiedTime(file).toMillis());
+                expectedOS.write(Hashing.md5().hashBytes(data).asBytes());
+                expectedOS.write(data);
+            }
+            final Map<Integer, ByteArrayOutputStream> actual = new HashMap<>();
+            final Set<Integer> finished = new HashSet<>();
+            try (final DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(responseOS.toByteArray()))) {
+                Assert.assertEquals(MultiplexedSession.VERSION, dis.readInt());
+                int frames = 0;
+                // responses requested before the rejected one are still sent
+                while (finished.size() < 3) {
+                    final int id = dis.readInt();
+                    final int length = dis.readInt();
+                    if (length == MultiplexedSession.REJECTED) {
+                        Assert.assertEquals(2, id);
+                        finished.add(id);
+                        continue;
+                    }
+                    Assert.assertTrue(length <= MultiplexedSession.WINDOW_SIZE);
+                    final byte[] payload = new byte[length];
+                    dis.readFully(payload);
+                    frames++;
+                    if (payload.length == 0) {
+                        finished.add(id);
+                    } else {
+                        actual.computeIfAbsent(id, x -> new ByteArrayOutputStream()).write(payload);
+                    }
+                }
+                Assert.assertTrue(frames > 2 * 4);
+                Assert.assertEquals(-1, dis.read());
+            }
+            Assert.assertArrayEquals(get.toByteArray(), actual.get(0).toByteArray());
+            Assert.assertArrayEquals(getIfChanged.toByteArray(), actual.get(1).toByteArray());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGetCompressed() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 2 * ConnectionHandler.COMPRESSION_CHUNK_SIZE + 1000) {
+            text.append("{\"line\": ").append(text.length()).append("}\n");
+        }
+        final byte[] compressible = text.toString().getBytes();
+        final byte[] random = new byte[1000];
+        new Random(0).nextBytes(random);
+        final Path compressibleFile = Files.createTempFile("compressible", ".json");
+        final Path randomFile = Files.createTempFile("random", ".bin");
+        try {
+            Files.write(compressibleFile, compressible);
+            Files.write(randomFile, random);
+            final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+                for (Path test : new Path[]{compressibleFile, randomFile}) {
+                    dos.writeInt(RequestCode.RQ_GET_COMPRESSED);
+                    dos.writeUTF(test.toString());
+                    dos.writeInt(Codecs.DEFLATE);
+                }
+                dos.writeInt(RequestCode.RQ_DISCONNECT);
+            }
+            final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+            when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+            when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+            handler.run();
+
+            final DataInputStream response = new DataInputStream(new ByteArrayInputStream(responseOS.toByteArray()));
+            Assert.assertEquals(compressible.length, response.readLong());
+            Assert.assertEquals(Codecs.DEFLATE, response.readInt());
+            final ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            int compressedSize = 0;
+            try (Codec codec = new DeflateCodec()) {
+                while (restored.size() < compressible.length) {
+                    final byte[] chunk = new byte[response.readInt()];
+                    final byte[] compressed = new byte[response.readInt()];
+                    response.readFully(compressed);
+                    codec.decompress(compressed, compressed.length, chunk, chunk.length);
+                    restored.write(chunk);
+                    compressedSize += compressed.length;
+                }
+            }
+            Assert.assertArrayEquals(compressible, restored.toByteArray());
+            Assert.assertTrue(compressedSize < compressible.length / 2);
+
+            Assert.assertEquals(random.length, response.readLong());
+            Assert.assertEquals(Codecs.NONE, response.readInt());
+            final byte[] received = new byte[random.length];
+            response.readFully(received);
+            Assert.assertArrayEquals(random, received);
+            Assert.assertEquals(-1, response.read());
+        } finally {
+            Files.delete(compressibleFile);
+            Files.delete(randomFile);
+        }
+    }
+
+    @Test
+    public void testMget() throws IOException {
+        final List<Path> tests = new ArrayList<>(testPaths);
+        tests.add(Paths.get("Not/existing/path/ever/never"));
+        final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream expectedOS = new DataOutputStream(expectedBytes)) {
+            for (Path test : tests) {
+                if (Files.isRegularFile(test)) {
+                    expectedOS.writeByte(FileStatus.OK);
+                    expectedOS.writeLong(Files.size(test));
+                    expectedOS.write(Files.readAllBytes(test));
+                } else {
+                    expectedOS.writeByte(FileStatus.NOT_FOUND);
+                    expectedOS.writeLong(0);
+                }
+            }
+        }
+        final byte[] expected = expectedBytes.toByteArray();
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            dos.writeInt(RequestCode.RQ_MGET);
+            dos.writeInt(tests.size());
+            for (Path test : tests) {
+                dos.writeUTF(test.toString());
+            }
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+
+        final ByteArrayInputStream requestIS = new ByteArrayInputStream(requestBytes.toByteArray());
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+
+        when(clientSocket.getInputStream()).thenReturn(requestIS);
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        Assert.assertArrayEquals(expected, responseOS.toByteArray());
+    }
+
+    @Test
+    public void testPut() throws IOException {
+        final byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(0).nextBytes(data);
+        final Path dir = Files.createTempDirectory("put");
+        final Path target = dir.resolve("uploaded.bin");
+        handler = new ConnectionHandler(clientSocket, HandlerContext.builder().uploadRoot(dir.toRealPath()).build());
+        try {
+            Files.write(target, new byte[]{1, 2, 3});
+            final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+                dos.writeInt(RequestCode.RQ_PUT);
+                dos.writeUTF(target.toString());
+                dos.writeLong(data.length);
+                dos.write(data);
+                // the upload is still consumed when it could not be stored
+                dos.writeInt(RequestCode.RQ_PUT);
+                dos.writeUTF(dir.resolve("Not/existing/dir").toString());
+                dos.writeLong(data.length);
+                dos.write(data);
+                dos.writeInt(RequestCode.RQ_DISCONNECT);
+            }
+            final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+            when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+            when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+            handler.run();
+
+            Assert.assertArrayEquals(new byte[]{1, 0}, responseOS.toByteArray());
+            Assert.assertArrayEquals(data, Files.readAllBytes(target));
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                // no temporary files are left
+                Assert.assertEquals(1, StreamSupport.stream(ds.spliterator(), false).count());
+            }
+        } finally {
+            Files.deleteIfExists(target);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testPutOutsideUploadRoot() throws IOException {
+        final Path dir = Files.createTempDirectory("put");
+        final Path root = Files.createDirectory(dir.resolve("root"));
+        final Path outside = Files.createDirectory(dir.resolve("outside"));
+        Files.createSymbolicLink(root.resolve("link"), outside);
+        handler = new ConnectionHandler(clientSocket, HandlerContext.builder().uploadRoot(root.toRealPath()).build());
+        final String[] targets = {"../outside/file", outside.resolve("file").toString(), "link/file",
+                root.resolve("sub/../../outside/file").toString(), ""};
+        try {
+            final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+                for (String target : targets) {
+                    dos.writeInt(RequestCode.RQ_PUT);
+                    dos.writeUTF(target);
+                    dos.writeLong(3);
+                    dos.write(new byte[]{1, 2, 3});
+                }
+                dos.writeInt(RequestCode.RQ_PUT);
+                dos.writeUTF("inside");
+                dos.writeLong(3);
+                dos.write(new byte[]{1, 2, 3});
+                dos.writeInt(RequestCode.RQ_DISCONNECT);
+            }
+            final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+            when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+            when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+            handler.run();
+
+            Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 1}, responseOS.toByteArray());
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(outside)) {
+                Assert.assertFalse(ds.iterator().hasNext());
+            }
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(root.resolve("inside")));
+        } finally {
+            Files.deleteIfExists(root.resolve("inside"));
+            Files.delete(root.resolve("link"));
+            Files.delete(root);
+            Files.delete(outside);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testPutRefusedWithoutUploadRoot() throws IOException {
+        final Path dir = Files.createTempDirectory("put");
+        try {
+            final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+                dos.writeInt(RequestCode.RQ_PUT);
+                dos.writeUTF(dir.resolve("file").toString());
+                dos.writeLong(3);
+                dos.write(new byte[]{1, 2, 3});
+                dos.writeInt(RequestCode.RQ_DISCONNECT);
+            }
+            final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+            when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+            when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+            handler.run();
+
+            Assert.assertArrayEquals(new byte[]{0}, responseOS.toByteArray());
+            Assert.assertFalse(Files.exists(dir.resolve("file")));
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testGetIfChanged() throws IOException {
+        final Path test = testPaths.stream().filter(Files::isRegularFile).findFirst()
+                .orElseThrow(() -> new IllegalStateException("test file was not found"));
+        final byte[] data = Files.readAllBytes(test);
+        final byte[] digest = Hashing.md5().hashBytes(data).asBytes();
+        final long modified = Files.getLastModifiedTime(test).toMillis();
+        final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream expectedOS = new DataOutputStream(expectedBytes)) {
+            expectedOS.writeLong(data.length);
+            expectedOS.writeLong(modified);
+            expectedOS.write(digest);
+
+            expectedOS.writeByte(FileStatus.OK);
+            expectedOS.writeLong(data.length);
+            expectedOS.writeLong(modified);
+            expectedOS.write(digest);
+            expectedOS.write(data);
+
+            expectedOS.writeByte(FileStatus.NOT_MODIFIED);
+            expectedOS.writeLong(data.length);
+            expectedOS.writeLong(modified);
+            expectedOS.write(digest);
+
+            expectedOS.writeLong(-1);
+            expectedOS.writeByte(FileStatus.NOT_FOUND);
+        }
+        final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream dos = new DataOutputStream(requestBytes)) {
+            dos.writeInt(RequestCode.RQ_STAT);
+            dos.writeUTF(test.toString());
+            dos.writeInt(RequestCode.RQ_GET_IF_CHANGED);
+            dos.writeUTF(test.toString());
+            dos.write(new byte[digest.length]);
+            dos.writeInt(RequestCode.RQ_GET_IF_CHANGED);
+            dos.writeUTF(test.toString());
+            dos.write(digest);
+            dos.writeInt(RequestCode.RQ_STAT);
+            dos.writeUTF(TEST_DIR);
+            dos.writeInt(RequestCode.RQ_GET_IF_CHANGED);
+            dos.writeUTF("Not/existing/path/ever/never");
+            dos.write(digest);
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+        final ByteArrayOutputStream responseOS = new ByteArrayOutputStream();
+        when(clientSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requestBytes.toByteArray()));
+        when(clientSocket.getOutputStream()).thenReturn(responseOS);
+
+        handler.run();
+
+        Assert.assertArrayEquals(expectedBytes.toByteArray(), responseOS.toByteArray());
+    }
+}
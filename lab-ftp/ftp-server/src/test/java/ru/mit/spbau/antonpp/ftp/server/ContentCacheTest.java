@@ -0,0 +1,128 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author antonpp
+ * @since 30/01/2017
+ */
+public class ContentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    /**
+     * Changes contents of the file without changing its attributes, so only a cached copy has the old contents.
+     */
+    private static void replaceSilently(Path file, byte[] data) throws Exception {
+        final FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, data);
+        Files.setLastModifiedTime(file, modified);
+    }
+
+    @Test
+    public void testCachedUntilModified() throws Exception {
+        final ContentCache cache = new ContentCache(1024);
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3});
+        // the first miss is sent from disk
+        assertNull(cache.get(file));
+        assertArrayEquals(new byte[]{1, 2, 3}, toArray(cache.get(file)));
+
+        replaceSilently(file, new byte[]{4, 5, 6});
+        assertArrayEquals(new byte[]{1, 2, 3}, toArray(cache.get(file)));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        assertArrayEquals(new byte[]{4, 5, 6}, toArray(cache.get(file)));
+    }
+
+    @Test
+    public void testScanDoesNotEvictHotFiles() throws Exception {
+        final ContentCache cache = new ContentCache(8);
+        final Path hot = folder.newFile().toPath();
+        Files.write(hot, new byte[]{1, 2});
+        cache.get(hot);
+        cache.get(hot);
+        for (int i = 0; i < 100; i++) {
+            final Path file = folder.newFile().toPath();
+            Files.write(file, new byte[]{(byte) i, 0});
+            assertNull(cache.get(file));
+        }
+        replaceSilently(hot, new byte[]{3, 4});
+        assertArrayEquals(new byte[]{1, 2}, toArray(cache.get(hot)));
+    }
+
+    @Test
+    public void testDirectMemoryBounded() throws Exception {
+        final ContentCache cache = new ContentCache(4);
+        // buffers sent by unfinished responses cannot be freed
+        final List<ByteBuffer> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final Path file = folder.newFile().toPath();
+            Files.write(file, new byte[]{(byte) i});
+            cache.get(file);
+            final ByteBuffer content = cache.get(file);
+            if (i < 8) {
+                responses.add(content);
+            } else {
+                assertNull(content);
+            }
+        }
+        assertEquals(8, cache.getAllocatedBytes());
+    }
+
+    @Test
+    public void testLargeFileNotCached() throws Exception {
+        final ContentCache cache = new ContentCache(16);
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[5]);
+        assertNull(cache.get(file));
+        assertNull(cache.get(folder.getRoot().toPath()));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        final ContentCache cache = new ContentCache(4);
+        final Path[] files = new Path[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = folder.newFile().toPath();
+            Files.write(files[i], new byte[]{(byte) i});
+        }
+        for (Path file : files) {
+            cache.get(file);
+        }
+        cache.get(files[0]);
+        cache.get(files[1]);
+        cache.get(files[0]);
+        cache.get(files[2]);
+        cache.get(files[3]);
+        // the cache holds 4 bytes, so the least recently used files[1] is evicted
+        cache.get(files[4]);
+
+        replaceSilently(files[0], new byte[]{10});
+        replaceSilently(files[1], new byte[]{10});
+        assertArrayEquals(new byte[]{0}, toArray(cache.get(files[0])));
+        // an evicted file is sent from disk until it misses again
+        assertNull(cache.get(files[1]));
+        assertArrayEquals(new byte[]{10}, toArray(cache.get(files[1])));
+    }
+}
@@ -0,0 +1,80 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 24/01/2017
+ */
+public class ListingCacheTest {
+
+    private static final long WAIT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ListingCache cache;
+    private final AtomicInteger loads = new AtomicInteger();
+    private final ListingCache.Loader loader = dir -> new byte[]{(byte) loads.incrementAndGet()};
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ListingCache(1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void testCachedUntilChanged() throws Exception {
+        final Path dir = folder.newFolder().toPath();
+        assertArrayEquals(new byte[]{1}, cache.get(dir, loader));
+        assertArrayEquals(new byte[]{1}, cache.get(dir, loader));
+        assertEquals(1, loads.get());
+
+        Files.createFile(dir.resolve("new_file"));
+
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (loads.get() == 1 && System.currentTimeMillis() < deadline) {
+            cache.get(dir, loader);
+            Thread.sleep(50);
+        }
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        final ListingCache small = new ListingCache(2);
+        try {
+            final Path dir1 = folder.newFolder().toPath();
+            final Path dir2 = folder.newFolder().toPath();
+            final Path dir3 = folder.newFolder().toPath();
+            small.get(dir1, loader);
+            small.get(dir2, loader);
+            small.get(dir1, loader);
+            small.get(dir3, loader);
+            assertEquals(3, loads.get());
+            // dir2 was evicted, dir1 was not
+            small.get(dir1, loader);
+            assertEquals(3, loads.get());
+            small.get(dir2, loader);
+            assertTrue(loads.get() > 3);
+        } finally {
+            small.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.Test;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 20/01/2017
+ */
+public class RequestDecoderTest {
+
+    private static byte[] mget(int count) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeInt(RequestCode.RQ_MGET);
+            dos.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                dos.writeUTF("/file" + i);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testRequestReceivedInParts() throws Exception {
+        final byte[] request = mget(1000);
+        final ByteBuffer buffer = ByteBuffer.allocate(request.length + 100);
+        final RequestDecoder decoder = new RequestDecoder();
+        // a few bytes before the request are already consumed, offsets are relative to the position
+        buffer.put(new byte[3]);
+        for (int i = 0; i < request.length; i += 7) {
+            buffer.put(request, i, Math.min(7, request.length - i));
+            buffer.flip().position(3);
+            if (i + 7 < request.length) {
+                assertFalse(decoder.isComplete(buffer));
+            } else {
+                assertTrue(decoder.isComplete(buffer));
+            }
+            buffer.position(buffer.limit()).limit(buffer.capacity());
+        }
+    }
+
+    @Test
+    public void testProgressSurvivesCompaction() throws Exception {
+        final byte[] request = mget(10);
+        final RequestDecoder decoder = new RequestDecoder();
+        final ByteBuffer buffer = ByteBuffer.allocate(2 * request.length);
+        buffer.put(new byte[5]).put(request, 0, request.length / 2).flip().position(5);
+        assertFalse(decoder.isComplete(buffer));
+        // the buffer is compacted before the next read, the request moves to its beginning
+        buffer.compact().put(request, request.length / 2, request.length - request.length / 2).flip();
+        assertTrue(decoder.isComplete(buffer));
+
+        decoder.reset();
+        buffer.position(buffer.limit());
+        assertFalse(decoder.isComplete(buffer));
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author antonpp
+ * @since 20/01/2017
+ */
+public class SelectorPortListenerTest {
+
+    private static final String TEST_DIR = SelectorPortListenerTest.class.getClassLoader()
+            .getResource("test_dir").getPath();
+    private static final int TEST_PORT = 31101;
+    private static final String HOST = "localhost";
+    private static final int CLIENTS = FtpServer.MAX_THREADS * 4;
+
+    private FtpServer server;
+    private List<Path> testPaths;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FtpServer(TEST_PORT, true);
+        server.start();
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(TEST_DIR))) {
+            testPaths = StreamSupport.stream(ds.spliterator(), false).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testIdleClientsDoNotBlockOthers() throws Exception {
+        final List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                sockets.add(new Socket(HOST, TEST_PORT));
+            }
+            // the last clients are served even though none of the previous ones has disconnected
+            for (int i = sockets.size() - 1; i >= 0; i--) {
+                final DataOutputStream dos = new DataOutputStream(sockets.get(i).getOutputStream());
+                final DataInputStream dis = new DataInputStream(sockets.get(i).getInputStream());
+                dos.writeInt(RequestCode.RQ_LIST);
+                dos.writeUTF(TEST_DIR);
+                assertEquals(testPaths.size(), dis.readInt());
+                for (Path p : testPaths) {
+                    assertEquals(p.getFileName().toString(), dis.readUTF());
+                    assertEquals(Files.isDirectory(p), dis.readBoolean());
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final List<Path> testFiles = testPaths.stream().filter(Files::isRegularFile).collect(Collectors.toList());
+        try (Socket socket = new Socket(HOST, TEST_PORT)) {
+            final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            final DataInputStream dis = new DataInputStream(socket.getInputStream());
+            for (Path test : testFiles) {
+                dos.writeInt(RequestCode.RQ_GET);
+                dos.writeUTF(test.toString());
+            }
+            for (Path test : testFiles) {
+                final byte[] expected = Files.readAllBytes(test);
+                assertEquals(expected.length, dis.readLong());
+                final byte[] actual = new byte[expected.length];
+                dis.readFully(actual);
+                assertArrayEquals(expected, actual);
+            }
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+    }
+
+    @Test
+    public void testSessionsDoNotBlockOthers() throws Exception {
+        final List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                final Socket socket = new Socket(HOST, TEST_PORT);
+                sockets.add(socket);
+                final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                dos.writeInt(RequestCode.RQ_UPGRADE_V2);
+                dos.flush();
+                assertEquals(MultiplexedSession.VERSION, new DataInputStream(socket.getInputStream()).readInt());
+            }
+            // every session is still open, but requests of protocol v1 are served
+            try (Socket socket = new Socket(HOST, TEST_PORT)) {
+                final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                final DataInputStream dis = new DataInputStream(socket.getInputStream());
+                dos.writeInt(RequestCode.RQ_LIST);
+                dos.writeUTF(TEST_DIR);
+                assertEquals(testPaths.size(), dis.readInt());
+                dos.writeInt(RequestCode.RQ_DISCONNECT);
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testEndlessRequestIsClosed() throws Exception {
+        try (Socket socket = new Socket(HOST, TEST_PORT)) {
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dos.writeInt(RequestCode.RQ_MGET);
+            dos.writeInt(Integer.MAX_VALUE);
+            try {
+                for (int written = 0; written <= 2 * NioConnection.MAX_REQUEST_SIZE; written += 1002) {
+                    dos.writeUTF(new String(new char[1000]).replace('\0', 'a'));
+                }
+                dos.flush();
+            } catch (IOException e) {
+                // the server may close the connection before the whole request is sent
+            }
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+}
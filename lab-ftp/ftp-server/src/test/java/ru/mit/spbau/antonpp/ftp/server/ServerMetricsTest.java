@@ -0,0 +1,60 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.Test;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 02/02/2017
+ */
+public class ServerMetricsTest {
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertWithin(500, histogram.percentile(0.5));
+        assertWithin(900, histogram.percentile(0.9));
+        assertWithin(990, histogram.percentile(0.99));
+        assertWithin(1000, histogram.percentile(1));
+        assertEquals(0, new LatencyHistogram().percentile(0.5));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final ServerMetrics metrics = new ServerMetrics(4);
+        metrics.connectionOpened();
+        metrics.taskQueued();
+        metrics.taskStarted();
+        metrics.requestHandled(RequestCode.RQ_GET, TimeUnit.MILLISECONDS.toNanos(3), 100);
+        metrics.requestHandled(RequestCode.RQ_GET, TimeUnit.MILLISECONDS.toNanos(5), 50);
+        metrics.requestHandled(-1, 0, 0);
+
+        final Map<String, Long> snapshot = metrics.snapshot();
+        assertEquals(1, (long) snapshot.get("connections.open"));
+        assertEquals(0, (long) snapshot.get("connections.queued"));
+        assertEquals(1, (long) snapshot.get("handlers.busy"));
+        assertEquals(150, (long) snapshot.get("bytes.sent"));
+        assertEquals(2, (long) snapshot.get("requests.GET"));
+        assertEquals(1, (long) snapshot.get("requests.OTHER"));
+        assertWithin(5000, snapshot.get("latency.GET.max_us"));
+        assertFalse(snapshot.containsKey("requests.LIST"));
+    }
+
+    /**
+     * Percentiles are reported with relative error up to 1/8.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,104 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures time of downloads from a server with rate limits. Limiters store up to a second worth of bytes, so the
+ * bounds allow for a burst of that size.
+ *
+ * @author antonpp
+ * @since 12/02/2017
+ */
+public class TrafficShaperTest {
+
+    private static final int TEST_PORT = 31104;
+    private static final String HOST = "localhost";
+    private static final int RATE = 1024 * 1024;
+    private static final int FILE_SIZE = 3 * RATE / 2;
+    private static final int CLIENTS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    /**
+     * @return time in milliseconds it took the clients to download the file concurrently, every one on its own
+     * connection
+     */
+    private long downloadConcurrently() throws Exception {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[FILE_SIZE]);
+        final ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            final long start = System.nanoTime();
+            final List<Future<Long>> downloads = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                downloads.add(executor.submit(() -> download(file)));
+            }
+            for (Future<Long> download : downloads) {
+                assertEquals(FILE_SIZE, (long) download.get(10, TimeUnit.SECONDS));
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long download(Path file) throws Exception {
+        try (Socket socket = new Socket(HOST, TEST_PORT)) {
+            final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            final DataInputStream dis = new DataInputStream(socket.getInputStream());
+            dos.writeInt(RequestCode.RQ_GET);
+            dos.writeUTF(file.toString());
+            final long size = dis.readLong();
+            dis.readFully(new byte[(int) size]);
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+            return size;
+        }
+    }
+
+    @Test
+    public void testGlobalLimit() throws Exception {
+        server = FtpServer.builder().port(TEST_PORT).rateLimit(RATE).build();
+        server.start();
+        final long millis = downloadConcurrently();
+        // 3 MB together, at most 1 MB of them in a burst
+        assertTrue("Took " + millis + " ms", millis >= 1800);
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        server = FtpServer.builder().port(TEST_PORT).connectionRateLimit(RATE).build();
+        server.start();
+        final long millis = downloadConcurrently();
+        // 1.5 MB by every connection, the limiter of a new connection has no stored bytes
+        assertTrue("Took " + millis + " ms", millis >= 1300);
+        // connections do not share the limit
+        assertTrue("Took " + millis + " ms", millis < 2500);
+    }
+}
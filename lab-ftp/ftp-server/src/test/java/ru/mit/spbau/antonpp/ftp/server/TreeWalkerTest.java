@@ -0,0 +1,119 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.data.DiskUsage;
+import ru.mit.spbau.antonpp.ftp.data.FileRecord;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 11/02/2017
+ */
+public class TreeWalkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private TreeWalker walker;
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(4);
+        walker = new TreeWalker(pool, 1024);
+        root = folder.getRoot().toPath();
+        for (int i = 0; i < 10; i++) {
+            final Path dir = Files.createDirectories(root.resolve("dir" + i).resolve("sub"));
+            Files.write(dir.getParent().resolve("file" + i + ".txt"), new byte[i]);
+            Files.write(dir.resolve("file" + i + ".bin"), new byte[100]);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testDiskUsage() throws Exception {
+        assertEquals(DiskUsage.builder().size(1045).files(20).directories(21).build(), walker.diskUsage(root));
+        assertEquals(DiskUsage.builder().size(100).files(1).directories(0).build(),
+                walker.diskUsage(root.resolve("dir0/sub/file0.bin")));
+        assertEquals(-1, walker.diskUsage(root.resolve("missing")).getSize());
+    }
+
+    @Test
+    public void testDiskUsageCacheInvalidated() throws Exception {
+        walker.diskUsage(root);
+        // a file created deep in the tree changes only the time of its own directory
+        final Path sub = root.resolve("dir3/sub");
+        final FileTime modified = Files.getLastModifiedTime(sub);
+        Files.write(sub.resolve("new"), new byte[1000]);
+        Files.setLastModifiedTime(sub, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertEquals(DiskUsage.builder().size(2045).files(21).directories(21).build(), walker.diskUsage(root));
+    }
+
+    @Test
+    public void testFind() throws Exception {
+        assertEquals(set("dir1/file1.txt", "dir2/file2.txt"), find("file[12].txt"));
+        assertEquals(set("dir0/sub/file0.bin"), find("dir0/**/*.bin"));
+        assertEquals(10, find("regex:sub").size());
+        assertEquals(0, find("nothing").size());
+    }
+
+    @Test
+    public void testFindStopsWhenWriterFails() throws Exception {
+        for (int i = 0; i < 3 * ConnectionHandler.LIST_FRAME_SIZE; i++) {
+            Files.createFile(root.resolve("many" + i));
+        }
+        final List<Integer> frames = new ArrayList<>();
+        try {
+            walker.find(root, FileSystems.getDefault().getPathMatcher("glob:*"), true, frame -> {
+                frames.add(frame.size());
+                throw new IOException("client has gone");
+            });
+        } catch (IOException e) {
+            assertEquals("client has gone", e.getMessage());
+        }
+        assertEquals(1, frames.size());
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+    }
+
+    private Set<String> find(String pattern) throws IOException {
+        final Set<String> found = new HashSet<>();
+        final String syntaxAndPattern = pattern.startsWith("regex:") ? pattern : "glob:" + pattern;
+        walker.find(root, FileSystems.getDefault().getPathMatcher(syntaxAndPattern), pattern.indexOf('/') < 0,
+                frame -> {
+                    assertTrue(frame.size() <= ConnectionHandler.LIST_FRAME_SIZE);
+                    frame.stream().map(FileRecord::getName).forEach(found::add);
+                });
+        return found;
+    }
+
+    private static Set<String> set(String... names) {
+        final Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mit.spbau.antonpp.ftp.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.mit.spbau.antonpp.ftp.protocol.RequestCode;
+import ru.mit.spbau.antonpp.net.SocketSettings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PUT over real sockets of both connection modes.
+ *
+ * @author antonpp
+ * @since 10/02/2017
+ */
+public class UploadTest {
+
+    private static final int BLOCKING_PORT = 31102;
+    private static final int NIO_PORT = 31103;
+    private static final String HOST = "localhost";
+    private static final int READ_TIMEOUT_MILLIS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FtpServer blockingServer;
+    private FtpServer nioServer;
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.newFolder().toPath().toRealPath();
+        final SocketSettings settings = SocketSettings.builder().readTimeout(READ_TIMEOUT_MILLIS).build();
+        blockingServer = FtpServer.builder().port(BLOCKING_PORT).uploadRoot(root).socketSettings(settings).build();
+        blockingServer.start();
+        nioServer = FtpServer.builder().port(NIO_PORT).nonBlocking(true).uploadRoot(root).socketSettings(settings)
+                .build();
+        nioServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blockingServer.close();
+        nioServer.close();
+    }
+
+    private static byte[] putRequest(String name, byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeInt(RequestCode.RQ_PUT);
+            dos.writeUTF(name);
+            dos.writeLong(data.length);
+            dos.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void assertUploaded(int port) throws Exception {
+        // larger than one read of the selector, so a part of the data arrives with the request and the rest follows
+        final byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(port).nextBytes(data);
+        try (Socket socket = new Socket(HOST, port)) {
+            final DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            final DataInputStream dis = new DataInputStream(socket.getInputStream());
+            dos.write(putRequest("file" + port, data));
+            dos.flush();
+            assertTrue(dis.readBoolean());
+            // the connection is still usable after the upload
+            dos.writeInt(RequestCode.RQ_GET);
+            dos.writeUTF(root.resolve("file" + port).toString());
+            assertEquals(data.length, dis.readLong());
+            final byte[] received = new byte[data.length];
+            dis.readFully(received);
+            assertArrayEquals(data, received);
+            dos.writeInt(RequestCode.RQ_DISCONNECT);
+        }
+        assertArrayEquals(data, Files.readAllBytes(root.resolve("file" + port)));
+    }
+
+    private void assertStalledUploadIsClosed(int port) throws Exception {
+        try (Socket socket = new Socket(HOST, port)) {
+            socket.setSoTimeout(10 * READ_TIMEOUT_MILLIS);
+            final byte[] request = putRequest("stalled", new byte[1000]);
+            // the client sends the header and a part of the data and never sends the rest
+            socket.getOutputStream().write(request, 0, request.length - 500);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        assertFalse(Files.exists(root.resolve("stalled")));
+    }
+
+    @Test
+    public void testPutBlocking() throws Exception {
+        assertUploaded(BLOCKING_PORT);
+    }
+
+    @Test
+    public void testPutNio() throws Exception {
+        assertUploaded(NIO_PORT);
+    }
+
+    @Test
+    public void testStalledPutBlocking() throws Exception {
+        assertStalledUploadIsClosed(BLOCKING_PORT);
+    }
+
+    @Test
+    public void testStalledPutNio() throws Exception {
+        // more stalled clients than handler threads, none of them holds a thread forever
+        for (int i = 0; i <= FtpServer.MAX_THREADS; i++) {
+            assertStalledUploadIsClosed(NIO_PORT);
+        }
+        assertUploaded(NIO_PORT);
+    }
+}
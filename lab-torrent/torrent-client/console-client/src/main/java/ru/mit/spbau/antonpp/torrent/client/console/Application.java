@@ -44,6 +44,8 @@ public class Application {
     private int serverPort = 8081;
     @Parameter(names = {"--directory", "-d"})
     private String dir = "torrent-client-files";
+    @Parameter(names = {"--access-log"}, description = "File to which requests of other clients are logged")
+    private String accessLog;
     @Parameter(names = {"-h", "--help"}, description = "Print this help message and exit", help = true)
     private boolean help;
 
@@ -98,7 +100,8 @@ public class Application {
 
         try {
             checkFirstStart();
-            torrentClient = new TorrentClient(host, (short) serverPort, (short) clientPort, new UpdateCallback(), Paths.get(dir));
+            torrentClient = new TorrentClient(host, (short) serverPort, (short) clientPort, new UpdateCallback(), Paths.get(dir),
+                    accessLog == null ? null : Paths.get(accessLog));
         } catch (TorrentClientStartException | IOException e) {
             printToLogAndSout("Could not start torrent client.", e);
             System.out.println(ERROR_TIP);
@@ -6,6 +6,9 @@ import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 import ru.mit.spbau.antonpp.torrent.client.exceptions.FileManagerException;
 import ru.mit.spbau.antonpp.torrent.client.exceptions.RequestFailedException;
 import ru.mit.spbau.antonpp.torrent.client.exceptions.TorrentClientStartException;
@@ -14,6 +17,7 @@ import ru.mit.spbau.antonpp.torrent.client.files.FileHolder;
 import ru.mit.spbau.antonpp.torrent.client.requests.ClientRequester;
 import ru.mit.spbau.antonpp.torrent.client.requests.ClientStatusUpdater;
 import ru.mit.spbau.antonpp.torrent.client.requests.DownloadFileCallback;
+import ru.mit.spbau.antonpp.torrent.client.uploader.UploaderConnectionHandler;
 import ru.mit.spbau.antonpp.torrent.client.uploader.UploaderPortListener;
 import ru.mit.spbau.antonpp.torrent.commons.data.TrackerFileRecord;
 
@@ -45,9 +49,19 @@ public final class TorrentClient implements Closeable {
     private final UploaderPortListener portListener;
     private final ClientRequester requester;
     private final ClientStatusUpdater updater;
+    @Nullable
+    private final AccessLog accessLog;
 
     public TorrentClient(String host, int trackerPort, int clientPort, FutureCallback<Object> updateCallback, Path dir)
             throws TorrentClientStartException {
+        this(host, trackerPort, clientPort, updateCallback, dir, null);
+    }
+
+    /**
+     * @param accessLogFile file to which requests of other clients are logged, null if they are not logged
+     */
+    public TorrentClient(String host, int trackerPort, int clientPort, FutureCallback<Object> updateCallback, Path dir,
+                         @Nullable Path accessLogFile) throws TorrentClientStartException {
 
         if (!checkPort(trackerPort) || !checkPort(clientPort)) {
             throw new TorrentClientStartException("Bad port value");
@@ -56,11 +70,24 @@ public final class TorrentClient implements Closeable {
         final ServerSocket serverSocket;
         try {
             fileManager = new ClientFileManager(dir);
-            serverSocket = new ServerSocket(clientPort);
+            accessLog = accessLogFile == null
+                    ? null : new AccessLog(accessLogFile, UploaderConnectionHandler::requestName);
+        } catch (IOException | RuntimeException e) {
+            throw new TorrentClientStartException(e);
+        }
+        try {
+            serverSocket = SocketSettings.DEFAULT.bind(clientPort);
         } catch (IOException | RuntimeException e) {
+            if (accessLog != null) {
+                try {
+                    accessLog.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
             throw new TorrentClientStartException(e);
         }
-        portListener = new UploaderPortListener(serverSocket, fileManager);
+        portListener = new UploaderPortListener(serverSocket, fileManager, accessLog);
         listenService.execute(portListener);
         updater = new ClientStatusUpdater(host, trackerPort, fileManager, clientPort);
         val future = updateExecutor.scheduleAtFixedRate(updater, 0, 5, TimeUnit.MINUTES);
@@ -78,6 +105,9 @@ public final class TorrentClient implements Closeable {
         updateExecutor.shutdownNow();
         portListener.stop();
         listenService.shutdown();
+        if (accessLog != null) {
+            accessLog.close();
+        }
     }
 
     public void requestDownloadFile(int id, String destination, DownloadFileCallback callback)
@@ -3,6 +3,8 @@ package ru.mit.spbau.antonpp.torrent.client.uploader;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
 import ru.mit.spbau.antonpp.torrent.client.files.ClientFileManager;
 import ru.mit.spbau.antonpp.torrent.commons.network.AbstractConnectionHandler;
 import ru.mit.spbau.antonpp.torrent.commons.network.ConnectionIOException;
@@ -25,10 +27,31 @@ public class UploaderConnectionHandler extends AbstractConnectionHandler {
     private final ClientFileManager fileManager;
 
     public UploaderConnectionHandler(Socket clientSocket, @NotNull ClientFileManager fileManager) {
-        super(clientSocket);
+        this(clientSocket, fileManager, null);
+    }
+
+    public UploaderConnectionHandler(Socket clientSocket, @NotNull ClientFileManager fileManager,
+                                     @Nullable AccessLog accessLog) {
+        super(clientSocket, accessLog);
         this.fileManager = fileManager;
     }
 
+    /**
+     * @return name of the request code for the access log
+     */
+    public static String requestName(int requestCode) {
+        switch (requestCode) {
+            case ClientRequestCode.RQ_GET:
+                return "GET";
+            case ClientRequestCode.RQ_STAT:
+                return "STAT";
+            case CommonRequestCode.RQ_DC:
+                return "DC";
+            default:
+                return String.valueOf(requestCode);
+        }
+    }
+
     @Override
     protected void onConnected() {
         log.debug("Connected");
@@ -54,7 +77,6 @@ public class UploaderConnectionHandler extends AbstractConnectionHandler {
                 default:
                     throw new ConnectionIOException("Unknown command");
             }
-            log.debug("Request handled");
         } catch (IOException e) {
             throw new ConnectionIOException("Failed to handle request", e);
         }
@@ -63,7 +85,7 @@ public class UploaderConnectionHandler extends AbstractConnectionHandler {
     private void handleGet(DataInputStream dis, DataOutputStream dos) throws IOException {
         val id = dis.readInt();
         val part = dis.readInt();
-        log.debug("received request: GET {} {}", id, part);
+        setRequestArgument(id + "/" + part);
         val data = fileManager.getFilePart(id, part);
         dos.writeLong(data.length);
         dos.write(data);
@@ -71,7 +93,7 @@ public class UploaderConnectionHandler extends AbstractConnectionHandler {
 
     private void handleStat(DataInputStream dis, DataOutputStream dos) throws IOException {
         val id = dis.readInt();
-        log.debug("received request: STAT {}", id);
+        setRequestArgument(id);
         val availableParts = fileManager.getAvailableParts(id);
         dos.writeInt(availableParts.size());
         for (final int availablePart : availableParts) {
@@ -2,6 +2,8 @@ package ru.mit.spbau.antonpp.torrent.client.uploader;
 
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
 import ru.mit.spbau.antonpp.torrent.client.files.ClientFileManager;
 import ru.mit.spbau.antonpp.torrent.commons.network.AbstractPortListener;
 
@@ -20,16 +22,27 @@ public class UploaderPortListener extends AbstractPortListener {
 
     @NotNull
     private final ClientFileManager fileManager;
+    @Nullable
+    private final AccessLog accessLog;
 
     public UploaderPortListener(@NotNull ServerSocket serverSocket, @NotNull ClientFileManager fileManager) {
+        this(serverSocket, fileManager, null);
+    }
+
+    /**
+     * @param accessLog log of requests of other clients, null if they are not logged
+     */
+    public UploaderPortListener(@NotNull ServerSocket serverSocket, @NotNull ClientFileManager fileManager,
+                                @Nullable AccessLog accessLog) {
         super(serverSocket, MAX_THREADS);
         this.fileManager = fileManager;
+        this.accessLog = accessLog;
     }
 
 
     @Override
     protected void handleNewConnection(Socket clientSocket, ExecutorService executor) {
-        executor.submit(new UploaderConnectionHandler(clientSocket, fileManager));
+        executor.submit(new UploaderConnectionHandler(clientSocket, fileManager, accessLog));
     }
 
     @Override
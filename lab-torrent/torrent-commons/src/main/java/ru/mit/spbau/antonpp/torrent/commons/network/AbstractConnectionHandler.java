@@ -1,11 +1,16 @@
 package ru.mit.spbau.antonpp.torrent.commons.network;
 
 import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.BufferPool;
+import ru.mit.spbau.antonpp.net.ResponseWriter;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.Channels;
 
 /**
  * @author Anton Mordberg
@@ -13,11 +18,32 @@ import java.net.Socket;
  */
 public abstract class AbstractConnectionHandler implements Runnable {
 
+    /**
+     * Enough for responses of a few handlers, every handler holds at most {@link ResponseWriter#MAX_BUFFERED}.
+     */
+    private static final BufferPool BUFFER_POOL =
+            new BufferPool(ResponseWriter.BUFFER_SIZE, 4 * ResponseWriter.MAX_BUFFERED / ResponseWriter.BUFFER_SIZE);
+
     protected final Socket clientSocket;
+    @Nullable
+    private final AccessLog accessLog;
     private boolean isConnected;
+    /**
+     * Main argument of the current request for the access log.
+     */
+    @Nullable
+    private Object requestArgument;
 
     public AbstractConnectionHandler(Socket clientSocket) {
+        this(clientSocket, null);
+    }
+
+    /**
+     * @param accessLog log to which every handled request is appended, null if requests are not logged
+     */
+    public AbstractConnectionHandler(Socket clientSocket, @Nullable AccessLog accessLog) {
         this.clientSocket = clientSocket;
+        this.accessLog = accessLog;
     }
 
     protected abstract void onConnected();
@@ -28,12 +54,22 @@ public abstract class AbstractConnectionHandler implements Runnable {
     public void run() {
         isConnected = true;
         onConnected();
-        try (DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+        try (DataOutputStream dos = new DataOutputStream(new ResponseWriter(clientSocket.getChannel() != null
+                ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream()), BUFFER_POOL));
              DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
             clientSocket.setSoTimeout(10000);
             while (isConnected) {
                 val requestCode = dis.readByte();
+                val start = System.nanoTime();
+                val written = dos.size();
                 handle(requestCode, dis, dos);
+                // the response is assembled in memory and sent with a single write
+                dos.flush();
+                if (accessLog != null) {
+                    accessLog.append(clientSocket.getRemoteSocketAddress(), requestCode, requestArgument,
+                            System.nanoTime() - start, dos.size() - written);
+                }
+                requestArgument = null;
             }
         } catch (IOException e) {
             throw new ConnectionIOException("Could not open I/O streams", e);
@@ -42,8 +78,18 @@ public abstract class AbstractConnectionHandler implements Runnable {
         }
     }
 
+    /**
+     * Reads arguments of the request and writes the response. The response is sent when the method returns.
+     */
     protected abstract void handle(byte requestCode, DataInputStream dis, DataOutputStream dos);
 
+    /**
+     * Sets the main argument of the current request, e.g. the id of the requested file, for the access log.
+     */
+    protected void setRequestArgument(@Nullable Object argument) {
+        requestArgument = argument;
+    }
+
     protected void disconnect() {
         isConnected = false;
     }
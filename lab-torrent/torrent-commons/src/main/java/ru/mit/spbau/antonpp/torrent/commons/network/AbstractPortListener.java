@@ -1,10 +1,13 @@
 package ru.mit.spbau.antonpp.torrent.commons.network;
 
+import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -12,16 +15,28 @@ import java.util.concurrent.Executors;
  * @author antonpp
  * @since 12/12/2016
  */
+@Slf4j
 public abstract class AbstractPortListener implements Runnable {
     @NotNull
     private final ExecutorService handleService;
     @NotNull
     private final ServerSocket serverSocket;
+    @NotNull
+    private final SocketSettings socketSettings;
 
     private boolean isRunning = true;
 
     public AbstractPortListener(@NotNull ServerSocket serverSocket, int maxThreads) {
+        this(serverSocket, maxThreads, SocketSettings.DEFAULT);
+    }
+
+    /**
+     * @param socketSettings options applied to every accepted socket
+     */
+    public AbstractPortListener(@NotNull ServerSocket serverSocket, int maxThreads,
+                                @NotNull SocketSettings socketSettings) {
         this.serverSocket = serverSocket;
+        this.socketSettings = socketSettings;
         handleService = Executors.newFixedThreadPool(maxThreads);
     }
 
@@ -39,6 +54,11 @@ public abstract class AbstractPortListener implements Runnable {
             try {
                 final Socket clientSocket;
                 clientSocket = serverSocket.accept();
+                try {
+                    socketSettings.apply(clientSocket);
+                } catch (SocketException e) {
+                    log.warn("Failed to set socket options", e);
+                }
                 onConnect();
                 handleNewConnection(clientSocket, handleService);
                 onDisconnect();
@@ -4,6 +4,7 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 import ru.mit.spbau.antonpp.torrent.commons.Util;
 import ru.mit.spbau.antonpp.torrent.tracker.exceptions.TrackerStartException;
 
@@ -31,6 +32,18 @@ public class Application {
     @Parameter(names = {"-p", "--port"})
     private int port = 8081;
 
+    @Parameter(names = {"--nagle"}, description = "Do not set TCP_NODELAY on client sockets")
+    private boolean nagle;
+
+    @Parameter(names = {"--send-buffer"}, description = "Size of socket send buffers in KB, system default if 0")
+    private int sendBufferKilobytes;
+
+    @Parameter(names = {"--receive-buffer"}, description = "Size of socket receive buffers in KB, system default if 0")
+    private int receiveBufferKilobytes;
+
+    @Parameter(names = {"--access-log"}, description = "File to which handled requests are logged")
+    private String accessLog;
+
     @Parameter(names = {"-h", "--help"}, description = "Print this help message and exit", help = true)
     private boolean help;
 
@@ -85,7 +98,13 @@ public class Application {
                 System.out.println("Could not found tracker state in current folder. " +
                         "Creating empty tracker...");
             }
-            tracker = TorrentTracker.create(TRACKER_FILES, (short) port);
+            val socketSettings = SocketSettings.builder()
+                    .nagle(nagle)
+                    .sendBufferSize(sendBufferKilobytes * 1024)
+                    .receiveBufferSize(receiveBufferKilobytes * 1024)
+                    .build();
+            tracker = TorrentTracker.create(TRACKER_FILES, (short) port, socketSettings,
+                    accessLog == null ? null : Paths.get(accessLog));
         } catch (TrackerStartException e) {
             printToLogAndSout("Failed to start tracker.", e);
             return;
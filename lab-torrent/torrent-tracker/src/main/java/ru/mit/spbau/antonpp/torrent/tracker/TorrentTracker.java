@@ -2,16 +2,19 @@ package ru.mit.spbau.antonpp.torrent.tracker;
 
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 import ru.mit.spbau.antonpp.torrent.commons.Util;
 import ru.mit.spbau.antonpp.torrent.commons.data.SeedRecord;
 import ru.mit.spbau.antonpp.torrent.commons.data.TrackerFileRecord;
 import ru.mit.spbau.antonpp.torrent.commons.serialization.FileSerializable;
 import ru.mit.spbau.antonpp.torrent.commons.serialization.SerializationException;
 import ru.mit.spbau.antonpp.torrent.tracker.exceptions.TrackerStartException;
+import ru.mit.spbau.antonpp.torrent.tracker.handler.TrackerConnectionHandler;
 import ru.mit.spbau.antonpp.torrent.tracker.handler.TrackerPortListener;
 
 import java.io.*;
-import java.net.ServerSocket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -38,12 +41,30 @@ public class TorrentTracker implements FileSerializable, Closeable {
     private ScheduledExecutorService updateClientsExecutor;
     private ExecutorService listenService;
     private TrackerPortListener portListener;
+    private AccessLog accessLog;
     private Path path;
 
     private TorrentTracker() {
     }
 
     public static TorrentTracker create(Path path, short port) throws TrackerStartException {
+        return create(path, port, SocketSettings.DEFAULT);
+    }
+
+    /**
+     * @param socketSettings options of sockets of connected clients
+     */
+    public static TorrentTracker create(Path path, short port, SocketSettings socketSettings)
+            throws TrackerStartException {
+        return create(path, port, socketSettings, null);
+    }
+
+    /**
+     * @param socketSettings options of sockets of connected clients
+     * @param accessLogFile  file to which handled requests are logged, null if they are not logged
+     */
+    public static TorrentTracker create(Path path, short port, SocketSettings socketSettings,
+                                        @Nullable Path accessLogFile) throws TrackerStartException {
         val tracker = new TorrentTracker();
         tracker.path = path;
         try {
@@ -52,16 +73,27 @@ public class TorrentTracker implements FileSerializable, Closeable {
             } else {
                 Files.createDirectories(path.getParent());
             }
-            tracker.start(port);
+            if (accessLogFile != null) {
+                tracker.accessLog = new AccessLog(accessLogFile, TrackerConnectionHandler::requestName);
+            }
+            tracker.start(port, socketSettings);
         } catch (IOException e) {
+            if (tracker.accessLog != null) {
+                try {
+                    tracker.accessLog.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
             throw new TrackerStartException(e);
         }
         return tracker;
     }
 
-    private void start(short port) throws IOException {
-        val serverSocket = new ServerSocket(port);
-        portListener = new TrackerPortListener(serverSocket, availableFiles, activeClients, freeId);
+    private void start(short port, SocketSettings socketSettings) throws IOException {
+        val serverSocket = socketSettings.bind(port);
+        portListener = new TrackerPortListener(serverSocket, availableFiles, activeClients, freeId, socketSettings,
+                accessLog);
 
         listenService = Executors.newSingleThreadExecutor();
         listenService.execute(portListener);
@@ -97,6 +129,9 @@ public class TorrentTracker implements FileSerializable, Closeable {
         updateClientsExecutor.shutdownNow();
         portListener.stop();
         listenService.shutdown();
+        if (accessLog != null) {
+            accessLog.close();
+        }
         serialize();
     }
 
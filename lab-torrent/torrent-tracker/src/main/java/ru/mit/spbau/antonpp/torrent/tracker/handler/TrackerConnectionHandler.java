@@ -3,6 +3,8 @@ package ru.mit.spbau.antonpp.torrent.tracker.handler;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
 import ru.mit.spbau.antonpp.torrent.commons.Util;
 import ru.mit.spbau.antonpp.torrent.commons.data.SeedRecord;
 import ru.mit.spbau.antonpp.torrent.commons.data.TrackerFileRecord;
@@ -41,12 +43,40 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
                                     @NotNull ConcurrentHashMap<Integer, TrackerFileRecord> availableFiles,
                                     @NotNull ConcurrentHashMap<SeedRecord, ClientRecord> activeClients,
                                     @NotNull AtomicInteger freeId) {
-        super(clientSocket);
+        this(clientSocket, availableFiles, activeClients, freeId, null);
+    }
+
+    public TrackerConnectionHandler(Socket clientSocket,
+                                    @NotNull ConcurrentHashMap<Integer, TrackerFileRecord> availableFiles,
+                                    @NotNull ConcurrentHashMap<SeedRecord, ClientRecord> activeClients,
+                                    @NotNull AtomicInteger freeId,
+                                    @Nullable AccessLog accessLog) {
+        super(clientSocket, accessLog);
         this.availableFiles = availableFiles;
         this.activeClients = activeClients;
         this.freeId = freeId;
     }
 
+    /**
+     * @return name of the request code for the access log
+     */
+    public static String requestName(int requestCode) {
+        switch (requestCode) {
+            case TrackerRequestCode.RQ_LIST:
+                return "LIST";
+            case TrackerRequestCode.RQ_UPLOAD:
+                return "UPLOAD";
+            case TrackerRequestCode.RQ_SOURCES:
+                return "SOURCES";
+            case TrackerRequestCode.RQ_UPDATE:
+                return "UPDATE";
+            case CommonRequestCode.RQ_DC:
+                return "DC";
+            default:
+                return String.valueOf(requestCode);
+        }
+    }
+
     private static <T> Set<T> getSetSnapshot(Set<T> set) {
         return new HashSet<>(set);
     }
@@ -83,7 +113,6 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
                 default:
                     throw new ConnectionIOException("Unknown command");
             }
-            log.debug("Request handled");
         } catch (IOException e) {
             throw new ConnectionIOException("Failed to handle request", e);
         }
@@ -93,7 +122,7 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
         val port = dis.readShort();
         val ip = ((InetSocketAddress) clientSocket.getRemoteSocketAddress()).getAddress().getAddress();
         val strInp = String.format("%s %d", Util.ipToStr(ip), port);
-        log.debug("received request: UPDATE {}", strInp);
+        setRequestArgument(port);
         val numFiles = dis.readInt();
         val seed = SeedRecord.builder().ip(ip).port(port).build();
         val time = System.currentTimeMillis();
@@ -110,7 +139,7 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
 
     private void handleSources(DataInputStream dis, DataOutputStream dos) throws IOException {
         val id = dis.readInt();
-        log.debug("received request: SOURCES {}", id);
+        setRequestArgument(id);
         val clients = getSetSnapshot(activeClients.entrySet());
         val seeds = clients.stream().filter(x -> x.getValue().getFiles().contains(id)).collect(Collectors.toList());
         dos.writeInt(seeds.size());
@@ -126,7 +155,7 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
     private void handleUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
         val name = dis.readUTF();
         val size = dis.readLong();
-        log.debug("received request: UPLOAD {} {}", name, size);
+        setRequestArgument(name);
         while (true) {
             val id = freeId.getAndIncrement();
             final TrackerFileRecord trackerFileRecord = TrackerFileRecord.builder().name(name).size(size).id(id).build();
@@ -138,7 +167,6 @@ public class TrackerConnectionHandler extends AbstractConnectionHandler {
     }
 
     private void handleList(DataInputStream dis, DataOutputStream dos) throws IOException {
-        log.debug("received request: LIST");
         val entries = getSetSnapshot(availableFiles.entrySet());
         dos.writeInt(entries.size());
         for (val entry : entries) {
@@ -2,6 +2,9 @@ package ru.mit.spbau.antonpp.torrent.tracker.handler;
 
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mit.spbau.antonpp.net.AccessLog;
+import ru.mit.spbau.antonpp.net.SocketSettings;
 import ru.mit.spbau.antonpp.torrent.commons.data.SeedRecord;
 import ru.mit.spbau.antonpp.torrent.commons.data.TrackerFileRecord;
 import ru.mit.spbau.antonpp.torrent.commons.network.AbstractPortListener;
@@ -27,20 +30,25 @@ public class TrackerPortListener extends AbstractPortListener {
     private final ConcurrentHashMap<SeedRecord, ClientRecord> activeClients;
     @NotNull
     private final AtomicInteger freeId;
+    @Nullable
+    private final AccessLog accessLog;
 
     public TrackerPortListener(@NotNull ServerSocket serverSocket,
                                @NotNull ConcurrentHashMap<Integer, TrackerFileRecord> availableFiles,
                                @NotNull ConcurrentHashMap<SeedRecord, ClientRecord> activeClients,
-                               @NotNull AtomicInteger freeId) {
-        super(serverSocket, TorrentTracker.MAX_THREADS);
+                               @NotNull AtomicInteger freeId,
+                               @NotNull SocketSettings socketSettings,
+                               @Nullable AccessLog accessLog) {
+        super(serverSocket, TorrentTracker.MAX_THREADS, socketSettings);
         this.availableFiles = availableFiles;
         this.activeClients = activeClients;
         this.freeId = freeId;
+        this.accessLog = accessLog;
     }
 
     @Override
     protected void handleNewConnection(Socket clientSocket, ExecutorService executor) {
-        executor.submit(new TrackerConnectionHandler(clientSocket, availableFiles, activeClients, freeId));
+        executor.submit(new TrackerConnectionHandler(clientSocket, availableFiles, activeClients, freeId, accessLog));
     }
 
     @Override
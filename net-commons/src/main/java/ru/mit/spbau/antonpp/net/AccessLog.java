@@ -0,0 +1,290 @@
+package ru.mit.spbau.antonpp.net;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Log of handled requests, one line per request:
+ * <pre>time client request bytes microseconds argument</pre>
+ * Handlers only copy a record into a ring buffer of preallocated slots, lines are formatted and written to the file
+ * in batches by a background thread. A handler never waits for the disk or for other handlers: if the buffer is
+ * full, the record is dropped and counted. If the file cannot be written, the batch is dropped and the file is opened
+ * again for the next batch.
+ * <p>
+ * A handler claims a slot with a CAS on the claim counter, fills it and publishes it by storing its sequence number.
+ * The writer takes records in order and stops at the first slot that is not published yet. When the file grows over
+ * the limit, it is renamed to {@code name.1}, older files are shifted and the oldest one is deleted.
+ *
+ * @author antonpp
+ * @since 11/02/2017
+ */
+@Slf4j
+public class AccessLog implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+    /**
+     * Maximum number of records written at once.
+     */
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    @NotNull
+    private final Path file;
+    @NotNull
+    private final IntFunction<String> requestNames;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final int capacity;
+    private final int mask;
+    private final long[] times;
+    private final Object[] clients;
+    private final int[] codes;
+    private final Object[] arguments;
+    private final long[] durations;
+    private final long[] sizes;
+    /**
+     * Sequence number of the record held by each slot, -1 if the slot was never used.
+     */
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    /**
+     * Sequence number of the next record to be written, slots of earlier records may be reused.
+     */
+    private volatile long taken;
+    private volatile boolean isRunning = true;
+    /**
+     * Null if the file could not be opened, it is opened again before the next batch.
+     */
+    @Nullable
+    private OutputStream out;
+    private long fileSize;
+
+    /**
+     * @param file         file the log is written to, it is appended if it exists
+     * @param requestNames names of request codes
+     * @throws IOException if the file could not be opened
+     */
+    public AccessLog(@NotNull Path file, @NotNull IntFunction<String> requestNames) throws IOException {
+        this(file, requestNames, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param capacity    number of records that may wait to be written, it is rounded up to a power of two
+     * @param maxFileSize size after which the file is rolled
+     * @param maxFiles    number of rolled files that are kept
+     */
+    public AccessLog(@NotNull Path file, @NotNull IntFunction<String> requestNames, int capacity,
+                     long maxFileSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.requestNames = requestNames;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = this.capacity - 1;
+        times = new long[this.capacity];
+        clients = new Object[this.capacity];
+        codes = new int[this.capacity];
+        arguments = new Object[this.capacity];
+        durations = new long[this.capacity];
+        sizes = new long[this.capacity];
+        published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        open();
+        writer = new Thread(this::drain, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a record of a handled request. Objects are converted to strings when the record is written.
+     *
+     * @param client      address of the client
+     * @param requestCode code of the request
+     * @param argument    main argument of the request, e.g. the requested path
+     * @param nanos       time spent on the request
+     * @param bytes       size of the response
+     */
+    public void append(@Nullable Object client, int requestCode, @Nullable Object argument, long nanos, long bytes) {
+        if (!isRunning) {
+            dropped.increment();
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - taken >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        val slot = (int) sequence & mask;
+        times[slot] = System.currentTimeMillis();
+        clients[slot] = client;
+        codes[slot] = requestCode;
+        arguments[slot] = argument;
+        durations[slot] = nanos;
+        sizes[slot] = bytes;
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * @return number of records that were lost because the buffer was full, the file could not be written or
+     * the log was closed
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the records added so far and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            // claimed by handlers that passed the check in append just before close
+            dropped.add(claimed.get() - taken);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        val batch = new StringBuilder();
+        while (true) {
+            // records added before close are still written
+            val isStopping = !isRunning;
+            if (writeBatch(batch) == 0) {
+                if (isStopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Failed to close access log", e);
+            }
+        }
+    }
+
+    private int writeBatch(StringBuilder batch) {
+        long sequence = taken;
+        int count = 0;
+        batch.setLength(0);
+        while (count < MAX_BATCH) {
+            val slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            batch.append(TIME_FORMAT.format(Instant.ofEpochMilli(times[slot]))).append(' ')
+                    .append(clients[slot] == null ? "-" : clients[slot]).append(' ')
+                    .append(requestNames.apply(codes[slot])).append(' ')
+                    .append(sizes[slot]).append(' ')
+                    .append(TimeUnit.NANOSECONDS.toMicros(durations[slot])).append(' ')
+                    .append(arguments[slot] == null ? "-" : arguments[slot]).append('\n');
+            clients[slot] = null;
+            arguments[slot] = null;
+            sequence++;
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        // the records are copied, so their slots may be reused while the batch is written
+        taken = sequence;
+        try {
+            if (out == null) {
+                open();
+            }
+            val bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            out.flush();
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            log.warn("Failed to write access log", e);
+            dropped.add(count);
+            closeQuietly();
+            return count;
+        }
+        if (fileSize >= maxFileSize) {
+            try {
+                roll();
+            } catch (IOException e) {
+                // the batch is already written, the file is rolled after the next one
+                log.warn("Failed to roll access log", e);
+                closeQuietly();
+            }
+        }
+        return count;
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        out = null;
+        if (maxFiles > 0) {
+            for (int i = maxFiles - 1; i > 0; i--) {
+                val rolled = rolledFile(i);
+                if (Files.exists(rolled)) {
+                    Files.move(rolled, rolledFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rolledFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rolledFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void open() throws IOException {
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.debug("Failed to close access log", e);
+            }
+            out = null;
+        }
+    }
+}
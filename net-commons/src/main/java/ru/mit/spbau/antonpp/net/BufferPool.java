@@ -0,0 +1,62 @@
+package ru.mit.spbau.antonpp.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Direct buffers of a fixed size shared by response writers of all connections. Writers take buffers only while
+ * a response is assembled and give them back when it is sent, so idle connections hold no memory and buffers are
+ * not allocated for every response. At most a fixed number of free buffers are kept, extra ones are left to GC.
+ *
+ * @author antonpp
+ * @since 10/02/2017
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize size of every buffer
+     * @param maxPooled  maximum number of free buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, pool size must not be negative");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return empty buffer in write mode
+     */
+    public ByteBuffer take() {
+        synchronized (free) {
+            final ByteBuffer buffer = free.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives back a buffer taken from this pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (free) {
+            // recently used buffers are reused first, they are more likely to be in cache
+            if (free.size() < maxPooled) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ru.mit.spbau.antonpp.net;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream that assembles a response in pooled buffers and sends it with a single gathering write on
+ * {@link #flush()}, so a listing costs one system call instead of one per field. If more than
+ * {@link #MAX_BUFFERED} bytes are written before a flush, the buffered part is sent early. Arrays that are larger
+ * than a buffer are not copied: they are sent at once together with the bytes buffered before them.
+ * <p>
+ * Unlike {@link java.nio.channels.Channels#newOutputStream}, the stream does not take the blocking lock of
+ * the channel, so responses could be written while another thread is blocked reading the next request.
+ *
+ * @author antonpp
+ * @since 10/02/2017
+ */
+public class ResponseWriter extends OutputStream {
+
+    /**
+     * Size of pooled buffers.
+     */
+    public static final int BUFFER_SIZE = 32 * 1024;
+    /**
+     * Maximum number of bytes held by a single writer.
+     */
+    public static final int MAX_BUFFERED = 256 * 1024;
+
+    @NotNull
+    private final WritableByteChannel target;
+    @NotNull
+    private final BufferPool pool;
+    /**
+     * Buffers of the response in write mode, only the last one may have free space.
+     */
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private int buffered;
+
+    public ResponseWriter(@NotNull WritableByteChannel target, @NotNull BufferPool pool) {
+        this.target = target;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        current().put((byte) b);
+        buffered++;
+        if (buffered >= MAX_BUFFERED) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len >= pool.getBufferSize()) {
+            send(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        while (len > 0) {
+            final ByteBuffer buffer = current();
+            final int chunk = Math.min(len, buffer.remaining());
+            buffer.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            buffered += chunk;
+        }
+        if (buffered >= MAX_BUFFERED) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all buffered bytes and gives the buffers back to the pool.
+     */
+    @Override
+    public void flush() throws IOException {
+        send(null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            target.close();
+        }
+    }
+
+    private ByteBuffer current() {
+        if (!buffers.isEmpty()) {
+            final ByteBuffer last = buffers.get(buffers.size() - 1);
+            if (last.hasRemaining()) {
+                return last;
+            }
+        }
+        final ByteBuffer buffer = pool.take();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Writes buffered bytes followed by the tail. Buffers are given back even if the write fails, the connection
+     * is broken then anyway.
+     */
+    private void send(@Nullable ByteBuffer tail) throws IOException {
+        final int count = buffers.size() + (tail == null ? 0 : 1);
+        if (count == 0) {
+            return;
+        }
+        final ByteBuffer[] all = new ByteBuffer[count];
+        for (int i = 0; i < buffers.size(); i++) {
+            all[i] = buffers.get(i);
+            all[i].flip();
+        }
+        if (tail != null) {
+            all[count - 1] = tail;
+        }
+        try {
+            if (target instanceof GatheringByteChannel) {
+                final GatheringByteChannel gathering = (GatheringByteChannel) target;
+                int first = 0;
+                while (first < count) {
+                    gathering.write(all, first, count - first);
+                    while (first < count && !all[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+            } else {
+                for (ByteBuffer buffer : all) {
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+            }
+        } finally {
+            buffers.forEach(pool::release);
+            buffers.clear();
+            buffered = 0;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mit.spbau.antonpp.net;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Options of sockets accepted by a server. Settings that are left unset keep the system defaults, except Nagle's
+ * algorithm: responses are assembled in memory and written at once, so there are no small writes to coalesce and
+ * it is disabled unless asked for.
+ *
+ * @author antonpp
+ * @since 10/02/2017
+ */
+@Data
+@Builder
+public class SocketSettings {
+
+    public static final SocketSettings DEFAULT = SocketSettings.builder().build();
+
+    /**
+     * If true, TCP_NODELAY is not set.
+     */
+    private final boolean nagle;
+    /**
+     * SO_SNDBUF in bytes, 0 for the system default.
+     */
+    private final int sendBufferSize;
+    /**
+     * SO_RCVBUF in bytes, 0 for the system default.
+     */
+    private final int receiveBufferSize;
+    /**
+     * SO_TIMEOUT in milliseconds, 0 to keep the timeout set by the server.
+     */
+    private final int readTimeout;
+
+    /**
+     * Opens a listening socket. It is opened through a channel, so accepted sockets have channels too and responses
+     * are sent with gathering writes.
+     */
+    public ServerSocket bind(int port) throws IOException {
+        final ServerSocket serverSocket = ServerSocketChannel.open().socket();
+        try {
+            apply(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return serverSocket;
+    }
+
+    /**
+     * The receive buffer is set on the listening socket, since TCP window scale is negotiated before a connection
+     * is accepted.
+     */
+    public void apply(ServerSocket serverSocket) throws SocketException {
+        if (receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    public void apply(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(!nagle);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if (readTimeout > 0) {
+            socket.setSoTimeout(readTimeout);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mit.spbau.antonpp.net;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author antonpp
+ * @since 11/02/2017
+ */
+public class AccessLogTest {
+
+    private static final int RQ_LIST = 1;
+    private static final int RQ_GET = 2;
+    private static final IntFunction<String> REQUEST_NAMES = code -> code == RQ_LIST ? "LIST" : "GET";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsWrittenInOrder() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("access.log");
+        final AccessLog accessLog = new AccessLog(file, REQUEST_NAMES);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int client = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    accessLog.append("client" + client, RQ_GET, "/file" + i, TimeUnit.MICROSECONDS
+                            .toNanos(i), i);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        accessLog.close();
+
+        final List<String> lines = Files.readAllLines(file);
+        assertEquals(4000 - accessLog.getDropped(), lines.size());
+        final int[] next = new int[4];
+        for (String line : lines) {
+            final String[] fields = line.split(" ");
+            // date and time, client, request, bytes, microseconds, argument
+            assertEquals(7, fields.length);
+            assertEquals("GET", fields[3]);
+            assertEquals(fields[4], fields[5]);
+            assertEquals("/file" + fields[4], fields[6]);
+            final int client = fields[2].charAt(fields[2].length() - 1) - '0';
+            final int i = Integer.parseInt(fields[4]);
+            assertTrue(i >= next[client]);
+            next[client] = i + 1;
+        }
+    }
+
+    @Test
+    public void testRolled() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("access.log");
+        final AccessLog accessLog = new AccessLog(file, REQUEST_NAMES, 16, 100, 2);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                accessLog.append(null, RQ_LIST, null, 0, 0);
+            }
+            // lets the records be written, the file is rolled after every batch
+            Thread.sleep(50);
+        }
+        accessLog.close();
+
+        assertTrue(Files.size(file) < 100);
+        assertTrue(Files.size(file.resolveSibling("access.log.1")) >= 100);
+        assertTrue(Files.exists(file.resolveSibling("access.log.2")));
+        assertFalse(Files.exists(file.resolveSibling("access.log.3")));
+    }
+
+    @Test
+    public void testFailedRollDropsNothing() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("access.log");
+        // the file cannot be renamed to a directory that is not empty
+        final Path rolled = Files.createDirectory(file.resolveSibling("access.log.1"));
+        Files.createFile(rolled.resolve("other"));
+        final AccessLog accessLog = new AccessLog(file, REQUEST_NAMES, 16, 100, 1);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                accessLog.append(null, RQ_LIST, null, 0, 0);
+            }
+            Thread.sleep(50);
+        }
+        accessLog.close();
+
+        assertEquals(0, accessLog.getDropped());
+        // the file is opened again after every failed roll and keeps all records
+        assertEquals(100, Files.readAllLines(file).size());
+    }
+
+    @Test
+    public void testAppendAfterCloseIsDropped() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("access.log");
+        final AccessLog accessLog = new AccessLog(file, REQUEST_NAMES);
+        accessLog.append(null, RQ_GET, "/file", 0, 0);
+        accessLog.close();
+        accessLog.append(null, RQ_GET, "/file", 0, 0);
+
+        assertEquals(1, accessLog.getDropped());
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+}
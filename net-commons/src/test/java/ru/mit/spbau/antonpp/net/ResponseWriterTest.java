@@ -0,0 +1,220 @@
+package ru.mit.spbau.antonpp.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author antonpp
+ * @since 12/02/2017
+ */
+public class ResponseWriterTest {
+
+    private static final int BUFFER_SIZE = 16;
+
+    private static byte[] randomBytes(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testPartialGatheringWrites() throws Exception {
+        final TestChannel channel = new TestChannel(7);
+        final byte[] data = randomBytes(1000);
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(BUFFER_SIZE, 4))) {
+            for (int off = 0; off < data.length; off += 10) {
+                writer.write(data[off]);
+                writer.write(data, off + 1, 9);
+            }
+            writer.flush();
+            assertArrayEquals(data, channel.toByteArray());
+            // nothing is lost or repeated when only a part of a buffer is accepted
+            assertTrue(channel.writes >= data.length / 7);
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testLargeArrayIsNotCopied() throws Exception {
+        final TestChannel channel = new TestChannel(Integer.MAX_VALUE);
+        final byte[] head = randomBytes(5);
+        final byte[] large = randomBytes(3 * BUFFER_SIZE);
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(BUFFER_SIZE, 4))) {
+            writer.write(head);
+            writer.write(large);
+            // sent at once together with the bytes buffered before it
+            assertEquals(1, channel.writes);
+            assertTrue(channel.arrays.contains(large));
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(head);
+            expected.write(large);
+            assertArrayEquals(expected.toByteArray(), channel.toByteArray());
+        }
+    }
+
+    @Test
+    public void testEarlyFlush() throws Exception {
+        final TestChannel channel = new TestChannel(Integer.MAX_VALUE);
+        final byte[] chunk = randomBytes(BUFFER_SIZE - 1);
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(BUFFER_SIZE, 4))) {
+            int written = 0;
+            while (written + chunk.length < ResponseWriter.MAX_BUFFERED) {
+                writer.write(chunk);
+                written += chunk.length;
+            }
+            assertEquals(0, channel.writes);
+            while (written < ResponseWriter.MAX_BUFFERED) {
+                writer.write(0);
+                written++;
+            }
+            assertEquals(1, channel.writes);
+            assertEquals(ResponseWriter.MAX_BUFFERED, channel.toByteArray().length);
+        }
+    }
+
+    @Test
+    public void testBuffersReused() throws Exception {
+        final RecordingPool pool = new RecordingPool(BUFFER_SIZE, 4);
+        try (ResponseWriter writer = new ResponseWriter(new TestChannel(Integer.MAX_VALUE), pool)) {
+            writer.write(randomBytes(BUFFER_SIZE - 1));
+            writer.write(randomBytes(BUFFER_SIZE - 1));
+            writer.write(randomBytes(BUFFER_SIZE - 1));
+        }
+        assertEquals(3, pool.taken.size());
+        final Set<ByteBuffer> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        used.addAll(pool.taken);
+        pool.taken.clear();
+        try (ResponseWriter writer = new ResponseWriter(new TestChannel(Integer.MAX_VALUE), pool)) {
+            writer.write(randomBytes(2 * BUFFER_SIZE));
+            writer.write(randomBytes(BUFFER_SIZE - 1));
+        }
+        assertEquals(1, pool.taken.size());
+        assertTrue(used.contains(pool.taken.get(0)));
+        assertEquals(0, pool.taken.get(0).position());
+    }
+
+    @Test
+    public void testBuffersReturnedWhenWriteFails() throws Exception {
+        final RecordingPool pool = new RecordingPool(BUFFER_SIZE, 4);
+        final TestChannel channel = new TestChannel(0);
+        final ResponseWriter writer = new ResponseWriter(channel, pool);
+        writer.write(randomBytes(BUFFER_SIZE - 1));
+        try {
+            writer.close();
+            fail("Write must fail");
+        } catch (IOException ignored) {
+        }
+        assertFalse(channel.isOpen());
+        assertSame(pool.taken.get(0), pool.take());
+    }
+
+    @Test
+    public void testPoolSize() {
+        final BufferPool pool = new BufferPool(BUFFER_SIZE, 1);
+        final ByteBuffer first = pool.take();
+        final ByteBuffer second = pool.take();
+        assertEquals(BUFFER_SIZE, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+        pool.release(second);
+        // only one free buffer is kept
+        assertSame(first, pool.take());
+        assertEquals(BUFFER_SIZE, first.remaining());
+        final ByteBuffer third = pool.take();
+        assertTrue(third != first && third != second);
+    }
+
+    /**
+     * Channel that accepts at most a fixed number of bytes per call, zero means that every write fails.
+     */
+    private static class TestChannel implements GatheringByteChannel {
+
+        private final int maxPerWrite;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final Set<byte[]> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int writes;
+        private boolean isOpen = true;
+
+        private TestChannel(int maxPerWrite) {
+            this.maxPerWrite = maxPerWrite;
+        }
+
+        private byte[] toByteArray() {
+            return received.toByteArray();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (maxPerWrite == 0) {
+                throw new IOException("Broken pipe");
+            }
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length && total < maxPerWrite; i++) {
+                final ByteBuffer src = srcs[i];
+                if (src.hasArray()) {
+                    arrays.add(src.array());
+                }
+                final int count = (int) Math.min(src.remaining(), maxPerWrite - total);
+                for (int j = 0; j < count; j++) {
+                    received.write(src.get());
+                }
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public void close() {
+            isOpen = false;
+        }
+    }
+
+    private static class RecordingPool extends BufferPool {
+
+        private final List<ByteBuffer> taken = new ArrayList<>();
+
+        private RecordingPool(int bufferSize, int maxPooled) {
+            super(bufferSize, maxPooled);
+        }
+
+        @Override
+        public ByteBuffer take() {
+            final ByteBuffer buffer = super.take();
+            taken.add(buffer);
+            return buffer;
+        }
+    }
+}